@@ -0,0 +1,61 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.benchmark.UserFixtures;
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of an upstream page to users
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UserDecodeBenchmark {
+
+    @Param({"400", "4000"})
+    public int pageSize;
+
+    private String body;
+    private UserDecoder streaming;
+    private UserDecoder projected;
+
+    @Setup
+    public void setup() {
+        body = UserFixtures.page(pageSize);
+        streaming = new UserDecoder(UserProjection.ALL);
+        projected = new UserDecoder(UserProjection.of(false, false, true, false, Collections.singletonList("department")));
+    }
+
+    @Benchmark
+    public Set<UserDto> readUsers() throws IOException {
+        return UserRepository.readUsers(body);
+    }
+
+    @Benchmark
+    public Set<UserDto> streamUsers() throws IOException {
+        return streaming.readUsers(body);
+    }
+
+    @Benchmark
+    public Set<UserDto> streamProjectedUsers() throws IOException {
+        return projected.readUsers(body);
+    }
+}
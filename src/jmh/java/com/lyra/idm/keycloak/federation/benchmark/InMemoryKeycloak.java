@@ -0,0 +1,300 @@
+package com.lyra.idm.keycloak.federation.benchmark;
+
+import lombok.Getter;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.UserStorageProviderFactory;
+import org.mockito.invocation.InvocationOnMock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Keycloak model kept in memory, enough for federation synchronization.
+ * <p>
+ * Sessions, realm, users and roles are mocks answering from maps, transactions do nothing.
+ * Each session records its duration from creation to close: one session is one user transaction during synchronization.
+ */
+public class InMemoryKeycloak {
+
+    public static final String REALM_ID = "benchmark";
+
+    private final UserStorageProviderFactory<? extends UserStorageProvider> factory;
+    private final ComponentModel component;
+    private final Map<String, UserModel> usersById = new ConcurrentHashMap<>();
+    private final Map<String, UserModel> usersByName = new ConcurrentHashMap<>();
+    private final Map<String, UserModel> usersByEmail = new ConcurrentHashMap<>();
+    private final Map<String, RoleModel> roles = new ConcurrentHashMap<>();
+
+    private final RealmModel realm;
+    private final RealmProvider realms;
+    private final UserProvider users;
+    private final UserCache userCache = mock(UserCache.class);
+    private final KeycloakTransactionManager transaction = mock(KeycloakTransactionManager.class);
+    @Getter
+    private final KeycloakSessionFactory sessionFactory;
+
+    private long[] durations = new long[1024];
+    private int count;
+
+    /**
+     * @param factory   federation factory creating providers of sessions
+     * @param component federation component of the realm
+     */
+    public InMemoryKeycloak(UserStorageProviderFactory<? extends UserStorageProvider> factory, ComponentModel component) {
+        this.factory = factory;
+        this.component = component;
+        this.realm = mock(RealmModel.class, this::realm);
+        this.realms = mock(RealmProvider.class, i -> "getRealm".equals(i.getMethod().getName()) ? realm : RETURNS_DEFAULTS.answer(i));
+        this.users = mock(UserProvider.class, this::users);
+        this.sessionFactory = mock(KeycloakSessionFactory.class, i -> "create".equals(i.getMethod().getName()) ? session() : RETURNS_DEFAULTS.answer(i));
+    }
+
+    public int getUsersCount() {
+        return usersById.size();
+    }
+
+    /**
+     * Forget recorded transaction durations
+     */
+    public synchronized void resetDurations() {
+        count = 0;
+    }
+
+    public synchronized int getTransactions() {
+        return count;
+    }
+
+    /**
+     * Transaction duration percentile
+     *
+     * @param percentile from 0 to 100
+     * @return duration in nanoseconds, 0 without transaction
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(durations, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    private synchronized void record(long duration) {
+        if (count == durations.length) {
+            durations = Arrays.copyOf(durations, count * 2);
+        }
+        durations[count++] = duration;
+    }
+
+    private KeycloakSession session() {
+        final long start = System.nanoTime();
+        final Map<String, Object> attributes = new HashMap<>();
+        final KeycloakSession[] self = new KeycloakSession[1];
+        self[0] = mock(KeycloakSession.class, invocation -> {
+            Object[] args = invocation.getArguments();
+            switch (invocation.getMethod().getName()) {
+                case "getTransactionManager":
+                    return transaction;
+                case "realms":
+                    return realms;
+                case "users":
+                case "userLocalStorage":
+                case "userStorageManager":
+                    return users;
+                case "userCache":
+                    return userCache;
+                case "getAttribute":
+                    return attributes.get(args[0]);
+                case "setAttribute":
+                    attributes.put((String) args[0], args[1]);
+                    return null;
+                case "removeAttribute":
+                    return attributes.remove(args[0]);
+                case "getProvider":
+                    if (args.length == 2 && UserStorageProvider.class.equals(args[0])) {
+                        return factory.create(self[0], (ComponentModel) args[1]);
+                    }
+                    break;
+                case "close":
+                    record(System.nanoTime() - start);
+                    return null;
+                default:
+                    break;
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        });
+        return self[0];
+    }
+
+    private Object realm(InvocationOnMock invocation) throws Throwable {
+        Object[] args = invocation.getArguments();
+        switch (invocation.getMethod().getName()) {
+            case "getId":
+            case "getName":
+                return REALM_ID;
+            case "getComponent":
+                return component.getId().equals(args[0]) ? component : null;
+            case "getRole":
+                return roles.get((String) args[0]);
+            case "addRole":
+                return roles.computeIfAbsent((String) args[args.length - 1], InMemoryKeycloak::role);
+            default:
+                return RETURNS_DEFAULTS.answer(invocation);
+        }
+    }
+
+    private static RoleModel role(String name) {
+        return mock(RoleModel.class, invocation -> {
+            switch (invocation.getMethod().getName()) {
+                case "getId":
+                case "getName":
+                    return name;
+                default:
+                    return RETURNS_DEFAULTS.answer(invocation);
+            }
+        });
+    }
+
+    private Object users(InvocationOnMock invocation) throws Throwable {
+        Object[] args = invocation.getArguments();
+        switch (invocation.getMethod().getName()) {
+            case "getUserById":
+                return usersById.get((String) args[0]);
+            case "getUserByUsername":
+                return usersByName.get(lower(args[0]));
+            case "getUserByEmail":
+                return usersByEmail.get(lower(args[0]));
+            case "addUser":
+                // addUser(realm, username) or addUser(realm, id, username, ...)
+                String id = args.length > 2 && args[1] != null ? (String) args[1] : KeycloakModelUtils.generateId();
+                UserModel user = user(id, lower(args.length > 2 ? args[2] : args[1]));
+                usersById.put(id, user);
+                usersByName.put(user.getUsername(), user);
+                return user;
+            case "removeUser":
+                UserModel removed = usersById.remove(((UserModel) args[1]).getId());
+                if (removed != null) {
+                    usersByName.remove(removed.getUsername());
+                    if (removed.getEmail() != null) {
+                        usersByEmail.remove(removed.getEmail());
+                    }
+                }
+                return removed != null;
+            case "searchForUserByUserAttribute":
+                return usersById.values().stream()
+                        .filter(u -> u.getAttribute((String) args[0]) != null && u.getAttribute((String) args[0]).contains(args[1]))
+                        .collect(Collectors.toList());
+            case "getUsersCount":
+                return usersById.size();
+            default:
+                return RETURNS_DEFAULTS.answer(invocation);
+        }
+    }
+
+    /**
+     * User bean: properties, attributes and realm role mappings in maps, user name and email indexed
+     */
+    @SuppressWarnings("unchecked")
+    private UserModel user(String id, String username) {
+        final Map<String, Object> fields = new HashMap<>();
+        final Map<String, List<String>> attributes = new HashMap<>();
+        final Set<RoleModel> roleMappings = new HashSet<>();
+        fields.put("Id", id);
+        fields.put("Username", username);
+        fields.put("CreatedTimestamp", System.currentTimeMillis());
+        final UserModel[] self = new UserModel[1];
+        self[0] = mock(UserModel.class, invocation -> {
+            Object[] args = invocation.getArguments();
+            String name = invocation.getMethod().getName();
+            switch (name) {
+                case "getAttributes":
+                    return attributes;
+                case "getAttribute":
+                    return attributes.get((String) args[0]);
+                case "getFirstAttribute":
+                    List<String> values = attributes.get((String) args[0]);
+                    return values == null || values.isEmpty() ? null : values.get(0);
+                case "setAttribute":
+                    attributes.put((String) args[0], new ArrayList<>((List<String>) args[1]));
+                    return null;
+                case "setSingleAttribute":
+                    attributes.put((String) args[0], new ArrayList<>(Collections.singletonList((String) args[1])));
+                    return null;
+                case "removeAttribute":
+                    attributes.remove((String) args[0]);
+                    return null;
+                case "getRealmRoleMappings":
+                case "getRoleMappings":
+                    // Copies, like JPA adapters
+                    return new HashSet<>(roleMappings);
+                case "getClientRoleMappings":
+                    return new HashSet<RoleModel>();
+                case "grantRole":
+                    roleMappings.add((RoleModel) args[0]);
+                    return null;
+                case "deleteRoleMapping":
+                    roleMappings.remove((RoleModel) args[0]);
+                    return null;
+                case "hasRole":
+                    return roleMappings.contains((RoleModel) args[0]);
+                case "setUsername":
+                    reindex(usersByName, (String) fields.get("Username"), lower(args[0]), self[0]);
+                    fields.put("Username", lower(args[0]));
+                    return null;
+                case "setEmail":
+                    reindex(usersByEmail, (String) fields.get("Email"), lower(args[0]), self[0]);
+                    fields.put("Email", lower(args[0]));
+                    return null;
+                default:
+                    break;
+            }
+            if (name.startsWith("set") && args.length == 1) {
+                fields.put(name.substring(3), args[0]);
+                return null;
+            } else if (name.startsWith("get") && args.length == 0 && fields.containsKey(name.substring(3))) {
+                return fields.get(name.substring(3));
+            } else if (name.startsWith("is") && args.length == 0 && fields.containsKey(name.substring(2))) {
+                return fields.get(name.substring(2));
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        });
+        return self[0];
+    }
+
+    private static void reindex(Map<String, UserModel> index, String previous, String current, UserModel user) {
+        if (previous != null) {
+            index.remove(previous, user);
+        }
+        if (current != null) {
+            index.put(current, user);
+        }
+    }
+
+    private static String lower(Object value) {
+        return value != null ? value.toString().toLowerCase(Locale.US) : null;
+    }
+}
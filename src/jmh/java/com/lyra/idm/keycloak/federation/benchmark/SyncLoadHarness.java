@@ -0,0 +1,112 @@
+package com.lyra.idm.keycloak.federation.benchmark;
+
+import com.lyra.idm.keycloak.federation.api.user.UserRepository;
+import com.lyra.idm.keycloak.federation.provider.RestUserFederationProviderFactory;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * End to end synchronization load harness: generated upstream, federation factory and in memory Keycloak.
+ * <p>
+ * Runs a full synchronization importing every user, a second full synchronization updating them, then an
+ * incremental synchronization, and reports users/sec, p99 user transaction time and peak heap of each run.
+ * <p>
+ * Options (key=value): users, perPage, roles, attributes, updated, latency (ms by page), failureRate (0..1), seed.
+ * The in memory model has no database cost: results compare federation code versions, not deployments.
+ */
+public class SyncLoadHarness {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        int users = intOption(options, "users", 10000);
+        int perPage = intOption(options, "perPage", UserRepository.PER_PAGE);
+        UserRepository.PER_PAGE = perPage;
+
+        UpstreamSimulator upstream = new UpstreamSimulator(users, perPage,
+                intOption(options, "roles", 5),
+                intOption(options, "attributes", 5),
+                intOption(options, "updated", users / 10),
+                intOption(options, "latency", 0),
+                Double.parseDouble(options.getOrDefault("failureRate", "0")),
+                Long.parseLong(options.getOrDefault("seed", String.valueOf(UserFixtures.SEED)))).start();
+        RestUserFederationProviderFactory factory = new RestUserFederationProviderFactory();
+        try {
+            ComponentModel component = component(format("http://localhost:%d", upstream.getPort()));
+            InMemoryKeycloak keycloak = new InMemoryKeycloak(factory, component);
+            UserStorageProviderModel model = new UserStorageProviderModel(component);
+
+            System.out.println(format("Upstream: %s users, %s by page, %s roles, %s attributes, %s updated, %sms latency, %s failure rate",
+                    users, perPage, upstream.getRoles(), upstream.getAttributes(), upstream.getUpdatedUsers(),
+                    upstream.getLatencyMs(), upstream.getFailureRate()));
+            System.out.println(format("%-12s %10s %10s %10s %10s %12s %10s %12s",
+                    "run", "added", "updated", "failed", "seconds", "users/sec", "p99 ms", "peak heap MB"));
+            run("full", keycloak, () -> factory.sync(keycloak.getSessionFactory(), InMemoryKeycloak.REALM_ID, model));
+            run("full again", keycloak, () -> factory.sync(keycloak.getSessionFactory(), InMemoryKeycloak.REALM_ID, model));
+            run("incremental", keycloak, () -> factory.syncSince(new Date(), keycloak.getSessionFactory(), InMemoryKeycloak.REALM_ID, model));
+            System.out.println(format("Keycloak users: %s, upstream requests: %s (%s failed)",
+                    keycloak.getUsersCount(), upstream.getRequests().get(), upstream.getFailures().get()));
+        } finally {
+            factory.close();
+            upstream.stop();
+        }
+    }
+
+    private static void run(String name, InMemoryKeycloak keycloak, Supplier<SynchronizationResult> sync) {
+        System.gc();
+        ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+        keycloak.resetDurations();
+
+        long start = System.nanoTime();
+        SynchronizationResult result = sync.get();
+        long elapsed = System.nanoTime() - start;
+
+        long peakHeap = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(p -> p.getType() == MemoryType.HEAP)
+                .mapToLong(p -> p.getPeakUsage().getUsed())
+                .sum();
+        int processed = result.getAdded() + result.getUpdated() + result.getFailed();
+        double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.println(format("%-12s %10d %10d %10d %10.2f %12.0f %10.3f %12d",
+                name, result.getAdded(), result.getUpdated(), result.getFailed(), seconds,
+                seconds > 0 ? processed / seconds : 0,
+                keycloak.percentile(99) / (double) TimeUnit.MILLISECONDS.toNanos(1),
+                peakHeap / (1024 * 1024)));
+    }
+
+    private static ComponentModel component(String url) {
+        ComponentModel component = new ComponentModel();
+        component.setId("rest-federation-benchmark");
+        component.setName("benchmark");
+        component.setParentId(InMemoryKeycloak.REALM_ID);
+        component.setProviderId(RestUserFederationProviderFactory.PROVIDER_NAME);
+        component.setProviderType(UserStorageProvider.class.getName());
+        component.setConfig(new MultivaluedHashMap<>());
+        component.getConfig().putSingle(RestUserFederationProviderFactory.PROPERTY_URL, url);
+        component.getConfig().putSingle(RestUserFederationProviderFactory.PREFIX, "APP");
+        component.getConfig().putSingle(RestUserFederationProviderFactory.ROLE_SYNC, "true");
+        component.getConfig().putSingle(RestUserFederationProviderFactory.ATTR_SYNC, "true");
+        return component;
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+}
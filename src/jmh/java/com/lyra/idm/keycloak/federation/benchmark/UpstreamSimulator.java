@@ -0,0 +1,159 @@
+package com.lyra.idm.keycloak.federation.benchmark;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import com.xebialabs.restito.server.StubServer;
+import lombok.Getter;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.util.HttpStatus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.xebialabs.restito.builder.stub.StubHttp.whenHttp;
+import static com.xebialabs.restito.semantics.Action.custom;
+import static com.xebialabs.restito.semantics.Condition.startsWithUri;
+import static com.xebialabs.restito.semantics.Condition.withHeader;
+
+/**
+ * Local upstream generating synthetic users.
+ * <p>
+ * Pages are generated on request from a seed, so memory does not depend on the number of users.
+ * Full pages serve every user, updated pages serve a share of users with a new generation of roles and attributes.
+ * Every page answer waits a latency and fails (503) with a probability.
+ */
+@Getter
+public class UpstreamSimulator extends StubServer {
+
+    private final int users;
+    private final int perPage;
+    private final int roles;
+    private final int attributes;
+    private final int updatedUsers;
+    private final long latencyMs;
+    private final double failureRate;
+    private final long seed;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * @param users        number of users
+     * @param perPage      users by page
+     * @param roles        roles by user
+     * @param attributes   attributes by user
+     * @param updatedUsers users served by updated pages
+     * @param latencyMs    latency of every page
+     * @param failureRate  probability of a page failure, from 0 to 1
+     * @param seed         generation seed
+     */
+    public UpstreamSimulator(int users, int perPage, int roles, int attributes, int updatedUsers, long latencyMs,
+                             double failureRate, long seed) {
+        super();
+        this.users = users;
+        this.perPage = perPage;
+        this.roles = roles;
+        this.attributes = attributes;
+        this.updatedUsers = updatedUsers;
+        this.latencyMs = latencyMs;
+        this.failureRate = failureRate;
+        this.seed = seed;
+    }
+
+    /**
+     * Start server and declare full and updated pages
+     *
+     * @return this
+     */
+    public UpstreamSimulator start() {
+        run();
+        stubPages("/full", users, 0);
+        stubPages("/updated", updatedUsers, 1);
+        return this;
+    }
+
+    private void stubPages(String context, int count, int generation) {
+        int totalPages = Math.max(1, (count + perPage - 1) / perPage);
+        for (int page = 1; page <= totalPages; page++) {
+            final int current = page;
+            whenHttp(this).
+                    match(startsWithUri(context), withHeader("X-Page", String.valueOf(page))).
+                    then(custom(response -> answer(response, current, totalPages, count, generation)));
+        }
+    }
+
+    private Response answer(Response response, int page, int totalPages, int count, int generation) {
+        requests.incrementAndGet();
+        try {
+            if (latencyMs > 0) {
+                TimeUnit.MILLISECONDS.sleep(latencyMs);
+            }
+            if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                failures.incrementAndGet();
+                response.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+            } else {
+                response.setStatus(HttpStatus.OK_200);
+                response.setHeader("X-Page", String.valueOf(page));
+                response.setHeader("X-Total-Pages", String.valueOf(totalPages));
+                response.setHeader("X-Per-Page", String.valueOf(perPage));
+                response.setContentType("application/json");
+                mapper.writeValue(response.getWriter(), page(page, count, generation));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return response;
+    }
+
+    private List<UserDto> page(int page, int count, int generation) {
+        List<UserDto> result = new ArrayList<>();
+        int from = (page - 1) * perPage;
+        for (int id = from; id < Math.min(from + perPage, count); id++) {
+            result.add(user(id, generation));
+        }
+        return result;
+    }
+
+    /**
+     * Generated user, stable for an id and a generation
+     *
+     * @param id         user index
+     * @param generation 0 for full pages, 1 for updated pages
+     * @return user
+     */
+    UserDto user(int id, int generation) {
+        Random random = new Random(seed * 31 + id * 7L + generation);
+        UserDto user = new UserDto();
+        user.setUserName("user" + id);
+        user.setEmail("user" + id + "@example.com");
+        user.setFirstName("First" + id);
+        user.setLastName("Last" + id + (generation > 0 ? "-" + generation : ""));
+        user.setEnabled(true);
+        Set<String> userRoles = new HashSet<>();
+        for (int r = 0; r < roles; r++) {
+            userRoles.add("role" + random.nextInt(roles * 4));
+        }
+        user.setRoles(userRoles);
+        Map<String, List<String>> userAttributes = new HashMap<>();
+        for (int a = 0; a < attributes; a++) {
+            List<String> values = new ArrayList<>();
+            values.add("value" + random.nextInt(1000));
+            userAttributes.put("attribute" + a, values);
+        }
+        user.setAttributes(userAttributes);
+        user.setLastModified(1500000000000L + generation);
+        return user;
+    }
+}
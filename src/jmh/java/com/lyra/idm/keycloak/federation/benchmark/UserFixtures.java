@@ -0,0 +1,79 @@
+package com.lyra.idm.keycloak.federation.benchmark;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generated users for benchmarks.
+ * <p>
+ * Generation is seeded: two runs with the same size work on the same users.
+ */
+public final class UserFixtures {
+
+    public static final long SEED = 42L;
+    public static final List<String> ROLES = Arrays.asList("admin", "user", "manager", "MYAPP_reader", "MYAPP_writer", "auditor");
+    public static final List<String> ATTRIBUTES = Arrays.asList("phone_number", "locale", "department", "MYAPP_contract", "cost_center");
+
+    private UserFixtures() {
+    }
+
+    /**
+     * Generate users, about 1% of them duplicate a user name or an email
+     *
+     * @param size number of users
+     * @return users
+     */
+    public static Set<UserDto> users(int size) {
+        Random random = new Random(SEED);
+        Set<UserDto> result = new LinkedHashSet<>();
+        for (int i = 0; i < size; i++) {
+            int id = random.nextInt(100) == 0 && i > 0 ? random.nextInt(i) : i;
+            UserDto user = new UserDto();
+            user.setUserName("user" + id);
+            user.setEmail("user" + (random.nextInt(100) == 0 ? id : i) + "@example.com");
+            user.setFirstName("First" + i);
+            user.setLastName("Last" + i);
+            user.setEnabled(random.nextBoolean());
+            Set<String> roles = new HashSet<>();
+            for (int r = 0; r < 3; r++) {
+                roles.add(ROLES.get(random.nextInt(ROLES.size())));
+            }
+            user.setRoles(roles);
+            Map<String, List<String>> attributes = new HashMap<>();
+            for (String attribute : ATTRIBUTES) {
+                List<String> values = new ArrayList<>();
+                values.add(attribute + "-" + random.nextInt(1000));
+                attributes.put(attribute, values);
+            }
+            user.setAttributes(attributes);
+            user.setLastModified(1500000000000L + random.nextInt(Integer.MAX_VALUE));
+            result.add(user);
+        }
+        return result;
+    }
+
+    /**
+     * Page body as returned by upstream
+     *
+     * @param size number of users
+     * @return JSON array
+     */
+    public static String page(int size) {
+        try {
+            return new ObjectMapper().writeValueAsString(users(size));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
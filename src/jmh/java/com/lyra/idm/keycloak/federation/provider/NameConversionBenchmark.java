@@ -0,0 +1,64 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.benchmark.UserFixtures;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of remote role and attribute names, as done for every user by role and attribute synchronization
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NameConversionBenchmark {
+
+    @Param({"", "MYAPP"})
+    public String prefix;
+
+    @Param({"false", "true"})
+    public boolean upperCase;
+
+    private RestUserFederationProvider provider;
+
+    @Setup
+    public void setup() {
+        ComponentModel model = new ComponentModel();
+        model.setId("benchmark");
+        model.setConfig(new MultivaluedHashMap<>());
+        model.getConfig().putSingle(RestUserFederationProviderFactory.PREFIX, prefix);
+        model.getConfig().putSingle(RestUserFederationProviderFactory.UPPERCASE, String.valueOf(upperCase));
+        RestUserFederationConfig config = RestUserFederationConfig.of(model);
+        provider = new RestUserFederationProvider(null, model, null, config, new ComponentCache(config));
+    }
+
+    @Benchmark
+    public void roles(Blackhole blackhole) {
+        for (String role : UserFixtures.ROLES) {
+            blackhole.consume(provider.convertRemoteName(role));
+        }
+    }
+
+    @Benchmark
+    public void attributes(Blackhole blackhole) {
+        for (String attribute : UserFixtures.ATTRIBUTES) {
+            blackhole.consume(provider.convertRemoteName(attribute));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.benchmark.UserFixtures;
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deduplication of fetched users by user name and email
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class ProtectorBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int users;
+
+    private Set<UserDto> fetched;
+
+    @Setup
+    public void setup() {
+        fetched = UserFixtures.users(users);
+    }
+
+    @Benchmark
+    public Set<UserDto> protector() {
+        return RestUserFederationProviderFactory.protector(fetched, new SynchronizationResult());
+    }
+}
@@ -0,0 +1,105 @@
+package com.lyra.idm.keycloak.federation.admin;
+
+import com.lyra.idm.keycloak.federation.provider.RestUserFederationProviderFactory;
+import com.lyra.idm.keycloak.federation.provider.ResyncResult;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.storage.UserStorageProvider;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.ForbiddenException;
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Administration of REST federation components of a realm.
+ * <p>
+ * Requires a bearer token of the realm with the manage-users role of realm-management.
+ */
+@JBossLog
+public class RestFederationResource {
+
+    public static final int MAX_USERS = 100;
+
+    private final KeycloakSession session;
+
+    public RestFederationResource(KeycloakSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Synchronize some users now
+     *
+     * @param componentId federation component
+     * @param userNames   at most MAX_USERS user names
+     * @return outcome by user
+     */
+    @POST
+    @Path("{componentId}/resync")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<ResyncResult> resync(@PathParam("componentId") String componentId, List<String> userNames) {
+        RealmModel realm = session.getContext().getRealm();
+        checkManageUsers(realm);
+        if (userNames == null || userNames.isEmpty() || userNames.size() > MAX_USERS) {
+            throw new BadRequestException("Between 1 and " + MAX_USERS + " user names expected");
+        }
+        ComponentModel fedModel = realm.getComponent(componentId);
+        if (fedModel == null || !RestUserFederationProviderFactory.PROVIDER_NAME.equals(fedModel.getProviderId())
+                || !realm.getId().equals(fedModel.getParentId())) {
+            throw new NotFoundException("Federation component not found");
+        }
+        RestUserFederationProviderFactory factory = (RestUserFederationProviderFactory) session.getKeycloakSessionFactory()
+                .getProviderFactory(UserStorageProvider.class, RestUserFederationProviderFactory.PROVIDER_NAME);
+        try {
+            return factory.resync(session.getKeycloakSessionFactory(), realm.getId(), fedModel, userNames);
+        } catch (IOException e) {
+            log.warn("Resynchronization failed", e);
+            throw new ServiceUnavailableException("Upstream not available");
+        }
+    }
+
+    /**
+     * Synchronize one user now
+     *
+     * @param componentId federation component
+     * @param userName
+     * @return outcome
+     */
+    @POST
+    @Path("{componentId}/resync/{userName}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public ResyncResult resyncUser(@PathParam("componentId") String componentId, @PathParam("userName") String userName) {
+        return resync(componentId, Collections.singletonList(userName)).get(0);
+    }
+
+    private void checkManageUsers(RealmModel realm) {
+        AuthenticationManager.AuthResult auth = new AppAuthManager().authenticateBearerToken(session, realm);
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        ClientModel realmManagement = realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID);
+        RoleModel manageUsers = realmManagement != null ? realmManagement.getRole(AdminRoles.MANAGE_USERS) : null;
+        if (manageUsers == null || !auth.getUser().hasRole(manageUsers)) {
+            throw new ForbiddenException("manage-users role required");
+        }
+    }
+}
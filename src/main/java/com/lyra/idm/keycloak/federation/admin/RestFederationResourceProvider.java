@@ -0,0 +1,22 @@
+package com.lyra.idm.keycloak.federation.admin;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+public class RestFederationResourceProvider implements RealmResourceProvider {
+
+    private final KeycloakSession session;
+
+    public RestFederationResourceProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public Object getResource() {
+        return new RestFederationResource(session);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,37 @@
+package com.lyra.idm.keycloak.federation.admin;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/**
+ * Realm REST extension of the federation, available at /auth/realms/{realm}/rest-federation
+ */
+public class RestFederationResourceProviderFactory implements RealmResourceProviderFactory {
+
+    public static final String ID = "rest-federation";
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new RestFederationResourceProvider(session);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
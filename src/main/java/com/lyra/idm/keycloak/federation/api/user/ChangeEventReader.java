@@ -0,0 +1,69 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Reader of a Server-Sent Events change feed: one user by event, JSON in data lines.
+ * <p>
+ * Events without data only move the event id forward, comments (heartbeats) and other fields are ignored.
+ */
+@JBossLog
+public class ChangeEventReader {
+
+    private final UserDecoder decoder;
+
+    public ChangeEventReader(UserDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    /**
+     * Read events until the stream ends or the listener is no longer active
+     *
+     * @param reader   event stream
+     * @param listener receives each event
+     * @throws IOException stream interrupted, malformed event or change not applied
+     */
+    public void read(BufferedReader reader, ChangeListener listener) throws IOException {
+        StringBuilder data = new StringBuilder();
+        String eventId = null;
+        boolean hasId = false;
+        String line;
+        while (listener.isActive() && (line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                dispatch(eventId, hasId, data, listener);
+                data.setLength(0);
+                hasId = false;
+            } else if (!line.startsWith(":")) {
+                int colon = line.indexOf(':');
+                String field = colon < 0 ? line : line.substring(0, colon);
+                String value = colon < 0 ? "" : line.substring(colon + 1);
+                if (value.startsWith(" ")) {
+                    value = value.substring(1);
+                }
+                if ("data".equals(field)) {
+                    if (data.length() > 0) {
+                        data.append('\n');
+                    }
+                    data.append(value);
+                } else if ("id".equals(field)) {
+                    eventId = value;
+                    hasId = true;
+                }
+            }
+        }
+    }
+
+    private void dispatch(String eventId, boolean hasId, StringBuilder data, ChangeListener listener) throws IOException {
+        if (data.length() > 0) {
+            UserDto user = decoder.readUser(data.toString());
+            listener.onChanges(eventId, user != null ? Collections.singletonList(user) : Collections.emptyList());
+        } else if (hasId) {
+            listener.onChanges(eventId, Collections.emptyList());
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receiver of the upstream change feed
+ */
+@FunctionalInterface
+public interface ChangeListener {
+
+    /**
+     * Users changed up to an event, in feed order
+     *
+     * @param eventId last event id of the changes, to resume the feed after them
+     * @param users   changed users, tombstones included
+     * @throws IOException changes not applied, feed reading stops
+     */
+    void onChanges(String eventId, List<UserDto> users) throws IOException;
+
+    /**
+     * @return false to stop reading the feed after the current line
+     */
+    default boolean isActive() {
+        return true;
+    }
+}
@@ -0,0 +1,15 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+/**
+ * Resolution of a user returned by several shards
+ */
+public enum ConflictPolicy {
+    /**
+     * First shard in configuration order wins
+     */
+    PRIORITY,
+    /**
+     * Greatest lastModified wins, then shard priority
+     */
+    MOST_RECENT
+}
@@ -0,0 +1,211 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hedged page requests of one upstream.
+ * <p>
+ * When a request has not answered within a percentile of recently observed latencies, an identical request is sent
+ * and the first successful answer wins. Each request earns a fraction of a hedge (the budget), a hedge spends one,
+ * so extra requests stay below the budget percentage. Disabled if the percentile is <= 0.
+ */
+@JBossLog
+public class PageHedger {
+
+    public static final PageHedger NONE = new PageHedger(0, 0);
+
+    static final int SAMPLES = 64;
+    static final int MIN_SAMPLES = 8;
+    private static final double MAX_TOKENS = 10;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "rest-federation-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int percentile;
+    private final double earning;
+    private final long[] latencies = new long[SAMPLES];
+    private int count;
+    private int next;
+    private double tokens;
+    private int requests;
+    private int hedged;
+    private int wins;
+
+    /**
+     * @param percentile latency percentile before sending a hedge, disabled if <= 0
+     * @param budget     maximum hedges in percent of requests
+     */
+    public PageHedger(int percentile, int budget) {
+        this.percentile = Math.min(percentile, 100);
+        this.earning = Math.max(0, budget) / 100d;
+    }
+
+    public boolean isEnabled() {
+        return percentile > 0;
+    }
+
+    /**
+     * Run a request, hedged if it is slower than usual
+     *
+     * @param request idempotent request
+     * @param <T>     result type
+     * @return first successful result
+     * @throws IOException request failed
+     */
+    public <T> T call(Callable<T> request) throws IOException {
+        if (!isEnabled()) {
+            return invoke(request);
+        }
+        long delay = earn();
+        if (delay < 0) {
+            return invoke(timed(request));
+        }
+        CompletionService<T> service = new ExecutorCompletionService<>(EXECUTOR);
+        List<Future<T>> futures = new ArrayList<>(2);
+        futures.add(service.submit(timed(request)));
+        try {
+            Future<T> done = service.poll(delay, TimeUnit.NANOSECONDS);
+            if (done == null) {
+                if (spend()) {
+                    log.debugf("Request slower than %s ms, hedged", TimeUnit.NANOSECONDS.toMillis(delay));
+                    futures.add(service.submit(timed(request)));
+                }
+                done = service.take();
+            }
+            try {
+                T result = done.get();
+                if (futures.size() > 1 && done == futures.get(1)) {
+                    won();
+                }
+                return result;
+            } catch (ExecutionException e) {
+                if (futures.size() == 1) {
+                    throw unwrap(e);
+                }
+                log.debug("Hedged request failed, waiting for the other", e.getCause());
+                Future<T> other = service.take();
+                try {
+                    T result = other.get();
+                    if (other == futures.get(1)) {
+                        won();
+                    }
+                    return result;
+                } catch (ExecutionException e2) {
+                    throw unwrap(e2);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upstream");
+        } finally {
+            futures.forEach(f -> f.cancel(true));
+        }
+    }
+
+    private <T> Callable<T> timed(Callable<T> request) {
+        return () -> {
+            long start = System.nanoTime();
+            T result = request.call();
+            record(System.nanoTime() - start);
+            return result;
+        };
+    }
+
+    private static <T> T invoke(Callable<T> request) throws IOException {
+        try {
+            return request.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static IOException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * Count a request and earn its share of budget
+     *
+     * @return hedge delay in nanoseconds, -1 if not enough latencies observed
+     */
+    private synchronized long earn() {
+        requests++;
+        tokens = Math.min(MAX_TOKENS, tokens + earning);
+        return count < MIN_SAMPLES ? -1 : delay();
+    }
+
+    private synchronized boolean spend() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        hedged++;
+        return true;
+    }
+
+    private synchronized void won() {
+        wins++;
+    }
+
+    synchronized void record(long nanos) {
+        latencies[next] = nanos;
+        next = (next + 1) % SAMPLES;
+        count = Math.min(count + 1, SAMPLES);
+    }
+
+    /**
+     * @return configured percentile of observed latencies in nanoseconds
+     */
+    synchronized long delay() {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100d * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+
+    public synchronized int getRequests() {
+        return requests;
+    }
+
+    public synchronized int getHedged() {
+        return hedged;
+    }
+
+    public synchronized int getWins() {
+        return wins;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d requests, %d hedged, %d won by hedge", requests, hedged, wins);
+    }
+}
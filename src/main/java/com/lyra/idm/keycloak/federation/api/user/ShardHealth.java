@@ -0,0 +1,34 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Health of one upstream shard: after a failure the shard is skipped during an increasing delay
+ */
+public class ShardHealth {
+
+    private static final long BASE_DELAY = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_DELAY = TimeUnit.MINUTES.toMillis(10);
+
+    private int failures;
+    private long openUntil;
+
+    public synchronized boolean isAvailable() {
+        return System.currentTimeMillis() >= openUntil;
+    }
+
+    public synchronized void success() {
+        failures = 0;
+        openUntil = 0;
+    }
+
+    public synchronized void failure() {
+        failures++;
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(failures - 1, 16));
+        openUntil = System.currentTimeMillis() + delay;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+}
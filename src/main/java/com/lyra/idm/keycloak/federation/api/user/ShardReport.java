@@ -0,0 +1,28 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Fetch statistics of one upstream shard
+ */
+@Getter
+@AllArgsConstructor
+public class ShardReport {
+
+    public enum Status {
+        OK,
+        FAILED,
+        SKIPPED
+    }
+
+    private final String url;
+    private final Status status;
+    private final int users;
+    private final long millis;
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s, %d users in %d ms", url, status, users, millis);
+    }
+}
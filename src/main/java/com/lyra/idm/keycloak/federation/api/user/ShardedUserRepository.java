@@ -0,0 +1,266 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Remote repository split across several upstream shards.
+ * <p>
+ * Shards are requested concurrently and their users merged by user name with a conflict policy.
+ * Shard order defines priority. A failing shard is skipped during a back-off delay.
+ */
+@JBossLog
+public class ShardedUserRepository implements UserMapper {
+
+    @FunctionalInterface
+    private interface PageLoader {
+        UserPage load(UserRepository shard, int page) throws IOException;
+    }
+
+    private final List<UserRepository> shards;
+    private final ConflictPolicy policy;
+    private final Map<String, ShardHealth> health;
+    private volatile List<ShardReport> lastReports = Collections.emptyList();
+
+    /**
+     * @param urls    shard urls, by priority
+     * @param proxyOn
+     * @param policy  conflict policy
+     * @param health  shard health by url, shared between synchronizations
+     */
+    public ShardedUserRepository(List<String> urls, Boolean proxyOn, ConflictPolicy policy, Map<String, ShardHealth> health) {
+        this(urls, proxyOn, policy, health, UserProjection.ALL);
+    }
+
+    /**
+     * @param urls       shard urls, by priority
+     * @param proxyOn
+     * @param policy     conflict policy
+     * @param health     shard health by url, shared between synchronizations
+     * @param projection fields requested and decoded
+     */
+    public ShardedUserRepository(List<String> urls, Boolean proxyOn, ConflictPolicy policy, Map<String, ShardHealth> health,
+                                 UserProjection projection) {
+        this(urls, proxyOn, policy, health, projection, url -> PageHedger.NONE);
+    }
+
+    /**
+     * @param urls       shard urls, by priority
+     * @param proxyOn
+     * @param policy     conflict policy
+     * @param health     shard health by url, shared between synchronizations
+     * @param projection fields requested and decoded
+     * @param hedgers    hedging of page requests by url, shared between synchronizations
+     */
+    public ShardedUserRepository(List<String> urls, Boolean proxyOn, ConflictPolicy policy, Map<String, ShardHealth> health,
+                                 UserProjection projection, Function<String, PageHedger> hedgers) {
+        this(urls, proxyOn, policy, health, projection, hedgers, new UserClients(proxyOn));
+    }
+
+    /**
+     * @param urls       shard urls, by priority
+     * @param proxyOn
+     * @param policy     conflict policy
+     * @param health     shard health by url, shared between synchronizations
+     * @param projection fields requested and decoded
+     * @param hedgers    hedging of page requests by url, shared between synchronizations
+     * @param clients    clients of the component, shared by shards and requests
+     */
+    public ShardedUserRepository(List<String> urls, Boolean proxyOn, ConflictPolicy policy, Map<String, ShardHealth> health,
+                                 UserProjection projection, Function<String, PageHedger> hedgers, UserClients clients) {
+        this.shards = new ArrayList<>();
+        urls.forEach(url -> shards.add(new UserRepository(url, proxyOn, projection, hedgers.apply(url), ConcurrentHashMap.newKeySet(), clients)));
+        this.policy = policy;
+        this.health = health;
+    }
+
+    @Override
+    public Set<UserDto> getUsers() {
+        return fetch(UserRepository::getUsersPage);
+    }
+
+    @Override
+    public Set<UserDto> getUpdatedUsers(String date) {
+        return fetch((shard, page) -> shard.getUpdatedUsersPage(date, page));
+    }
+
+    /**
+     * Single user, from the first shard knowing him
+     */
+    @Override
+    public Optional<UserDto> getUser(String userName) throws IOException {
+        IOException error = null;
+        for (UserRepository shard : shards) {
+            try {
+                Optional<UserDto> result = shard.getUser(userName);
+                if (result.isPresent()) {
+                    return result;
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Single user by email, from the first shard knowing him
+     */
+    @Override
+    public Optional<UserDto> getUserByEmail(String email) throws IOException {
+        IOException error = null;
+        for (UserRepository shard : shards) {
+            try {
+                Optional<UserDto> result = shard.getUserByEmail(email);
+                if (result.isPresent()) {
+                    return result;
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Password is valid if one shard validates it
+     */
+    @Override
+    public boolean verify(String userName, String password) throws IOException {
+        IOException error = null;
+        for (UserRepository shard : shards) {
+            try {
+                if (shard.verify(userName, password)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return false;
+    }
+
+    @Override
+    public List<ShardReport> getLastReports() {
+        return lastReports;
+    }
+
+    private Set<UserDto> fetch(PageLoader loader) {
+        ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+        try {
+            List<Future<Set<UserDto>>> futures = new ArrayList<>();
+            List<long[]> timings = new ArrayList<>();
+            for (UserRepository shard : shards) {
+                ShardHealth shardHealth = health.computeIfAbsent(shard.getUrl(), k -> new ShardHealth());
+                long[] timing = new long[1];
+                timings.add(timing);
+                futures.add(shardHealth.isAvailable() ? executor.submit(() -> fetchShard(shard, loader, timing)) : null);
+            }
+
+            List<ShardReport> reports = new ArrayList<>();
+            List<Set<UserDto>> results = new ArrayList<>();
+            for (int i = 0; i < shards.size(); i++) {
+                String url = shards.get(i).getUrl();
+                ShardHealth shardHealth = health.get(url);
+                Set<UserDto> users = Collections.emptySet();
+                ShardReport.Status status;
+                if (futures.get(i) == null) {
+                    status = ShardReport.Status.SKIPPED;
+                    log.warnf("Shard %s skipped after %s failures", url, shardHealth.getFailures());
+                } else {
+                    try {
+                        users = futures.get(i).get();
+                        shardHealth.success();
+                        status = ShardReport.Status.OK;
+                    } catch (ExecutionException e) {
+                        shardHealth.failure();
+                        status = ShardReport.Status.FAILED;
+                        log.warn("Received a non OK answer from upstream shard " + url, e.getCause());
+                    }
+                }
+                results.add(users);
+                reports.add(new ShardReport(url, status, users.size(), timings.get(i)[0]));
+            }
+            lastReports = reports;
+            return merge(results);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Shards fetch interrupted", e);
+            return new HashSet<>();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Set<UserDto> fetchShard(UserRepository shard, PageLoader loader, long[] timing) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            UserPage first = loader.load(shard, 1);
+            Set<UserDto> result = new HashSet<>(first.getUsers());
+            for (int i = 2; i <= first.getTotalPages(); i++) {
+                result.addAll(loader.load(shard, i).getUsers());
+            }
+            return result;
+        } finally {
+            timing[0] = System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * Merge shard results by user name
+     *
+     * @param results by shard priority
+     * @return deduplicated users
+     */
+    Set<UserDto> merge(List<Set<UserDto>> results) {
+        Map<String, UserDto> merged = new LinkedHashMap<>();
+        Set<UserDto> result = new HashSet<>();
+        for (Set<UserDto> users : results) {
+            for (UserDto user : users) {
+                if (user == null || user.getUserName() == null) {
+                    // Let synchronization report invalid users
+                    result.add(user);
+                    continue;
+                }
+                String key = user.getUserName().toLowerCase(Locale.US);
+                UserDto current = merged.get(key);
+                if (current == null || (policy == ConflictPolicy.MOST_RECENT && isMoreRecent(user, current))) {
+                    merged.put(key, user);
+                }
+            }
+        }
+        result.addAll(merged.values());
+        return result;
+    }
+
+    private static boolean isMoreRecent(UserDto user, UserDto current) {
+        return user.getLastModified() != null
+                && (current.getLastModified() == null || user.getLastModified() > current.getLastModified());
+    }
+}
@@ -0,0 +1,91 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.provider.RestUserFederationProviderFactory;
+import lombok.extern.jbosslog.JBossLog;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * REST clients of a component, shared by its repositories and closed with its configuration.
+ * <p>
+ * Each client keeps a pool of connections: requests of the login path (lookup, password verification) and of
+ * synchronizations reuse connections instead of opening one, with its TLS handshake, by request.
+ * One client by socket timeout and certificate validation: passwords are only sent over validated connections.
+ */
+@JBossLog
+public class UserClients implements Closeable {
+
+    /**
+     * Pooled connections by client, and by upstream host
+     */
+    static final int POOL_SIZE = 20;
+
+    private final Boolean proxyOn;
+    private final Map<String, ResteasyClient> clients = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * @param proxyOn use the proxy of the http(s).proxyHost and http(s).proxyPort system properties
+     */
+    public UserClients(Boolean proxyOn) {
+        this.proxyOn = proxyOn;
+    }
+
+    /**
+     * @param socketTimeout        seconds, 0 for none
+     * @param validateCertificates false to trust every server certificate
+     * @return shared client
+     */
+    ResteasyClient get(int socketTimeout, boolean validateCertificates) {
+        if (closed) {
+            throw new IllegalStateException("Clients closed with their configuration");
+        }
+        return clients.computeIfAbsent(socketTimeout + ":" + validateCertificates, k -> newClient(socketTimeout, validateCertificates));
+    }
+
+    private ResteasyClient newClient(int socketTimeout, boolean validateCertificates) {
+        String portTemp = Optional.ofNullable(System.getProperty("http." + RestUserFederationProviderFactory.PROXY_PORT))
+                .filter(s -> s != null && !s.isEmpty()).orElse(System.getProperty("https." + RestUserFederationProviderFactory.PROXY_PORT));
+
+        final String host = Optional.ofNullable(System.getProperty("http." + RestUserFederationProviderFactory.PROXY_HOST))
+                .filter(s -> s != null && !s.isEmpty()).orElse(System.getProperty("https." + RestUserFederationProviderFactory.PROXY_HOST));
+        final int port = portTemp != null ? Integer.parseInt(portTemp) : 8080;
+
+        ResteasyClientBuilder builder = new ResteasyClientBuilder()
+                .connectionPoolSize(POOL_SIZE)
+                .maxPooledPerRoute(POOL_SIZE);
+
+        if (proxyOn) {
+            builder.defaultProxy(host, port);
+        }
+        if (socketTimeout > 0) {
+            builder.socketTimeout(socketTimeout, TimeUnit.SECONDS);
+        }
+        if (!validateCertificates) {
+            builder.disableTrustManager();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Close every client, requests still running fail
+     */
+    @Override
+    public void close() {
+        closed = true;
+        clients.values().forEach(c -> {
+            try {
+                c.close();
+            } catch (RuntimeException e) {
+                log.debug("Client not closed", e);
+            }
+        });
+        clients.clear();
+    }
+}
@@ -0,0 +1,164 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streaming decoder of users.
+ * <p>
+ * Fields and attributes out of projection, and unknown fields, are skipped by the parser without being read as text.
+ */
+public class UserDecoder {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final UserProjection projection;
+
+    public UserDecoder(UserProjection projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Decode a page of users
+     *
+     * @param body JSON array of users
+     * @return Users
+     * @throws IOException malformed JSON
+     */
+    public Set<UserDto> readUsers(String body) throws IOException {
+        Set<UserDto> result = new HashSet<>();
+        try (JsonParser parser = FACTORY.createJsonParser(body)) {
+            expect(parser, parser.nextToken(), JsonToken.START_ARRAY);
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == JsonToken.START_OBJECT) {
+                    result.add(readUser(parser));
+                } else if (token != JsonToken.VALUE_NULL) {
+                    expect(parser, token, JsonToken.START_OBJECT);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decode a user
+     *
+     * @param body JSON user
+     * @return User, null for JSON null
+     * @throws IOException malformed JSON
+     */
+    public UserDto readUser(String body) throws IOException {
+        try (JsonParser parser = FACTORY.createJsonParser(body)) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                return null;
+            }
+            expect(parser, token, JsonToken.START_OBJECT);
+            return readUser(parser);
+        }
+    }
+
+    private UserDto readUser(JsonParser parser) throws IOException {
+        UserDto user = new UserDto();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL || !projection.isField(field)) {
+                parser.skipChildren();
+                continue;
+            }
+            switch (field) {
+                case "userName":
+                    user.setUserName(parser.getText());
+                    break;
+                case "email":
+                    user.setEmail(parser.getText());
+                    break;
+                case "firstName":
+                    user.setFirstName(parser.getText());
+                    break;
+                case "lastName":
+                    user.setLastName(parser.getText());
+                    break;
+                case "enabled":
+                    user.setEnabled(token == JsonToken.VALUE_TRUE || (token == JsonToken.VALUE_STRING && Boolean.parseBoolean(parser.getText())));
+                    break;
+                case "emailVerified":
+                    user.setEmailVerified(token == JsonToken.VALUE_TRUE || (token == JsonToken.VALUE_STRING && Boolean.parseBoolean(parser.getText())));
+                    break;
+                case "deleted":
+                    user.setDeleted(token == JsonToken.VALUE_TRUE || (token == JsonToken.VALUE_STRING && Boolean.parseBoolean(parser.getText())));
+                    break;
+                case "lastModified":
+                    user.setLastModified(parser.getLongValue());
+                    break;
+                case "password":
+                    user.setPassword(parser.getText());
+                    break;
+                case "roles":
+                    user.setRoles(readStrings(parser, token, new HashSet<>()));
+                    break;
+                case "groups":
+                    user.setGroups(readStrings(parser, token, new HashSet<>()));
+                    break;
+                case "attributes":
+                    user.setAttributes(readAttributes(parser, token));
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return user;
+    }
+
+    private Map<String, List<String>> readAttributes(JsonParser parser, JsonToken token) throws IOException {
+        expect(parser, token, JsonToken.START_OBJECT);
+        Map<String, List<String>> result = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (projection.isAttribute(name) && value != JsonToken.VALUE_NULL) {
+                result.put(name, readStrings(parser, value, new ArrayList<>()));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Array of strings, or a single string
+     */
+    private static <C extends Collection<String>> C readStrings(JsonParser parser, JsonToken token, C result) throws IOException {
+        if (token == JsonToken.START_ARRAY) {
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (parser.getCurrentToken() != JsonToken.VALUE_NULL) {
+                    result.add(parser.getText());
+                }
+            }
+        } else {
+            result.add(parser.getText());
+        }
+        return result;
+    }
+
+    private static void expect(JsonParser parser, JsonToken token, JsonToken expected) throws JsonParseException {
+        if (token != expected) {
+            throw new JsonParseException("Expected " + expected + " but was " + token, parser.getCurrentLocation());
+        }
+    }
+}
@@ -2,6 +2,12 @@ package com.lyra.idm.keycloak.federation.api.user;
 
 import com.lyra.idm.keycloak.federation.model.UserDto;
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 
 /**
@@ -22,4 +28,56 @@ public interface UserMapper {
      * @return Users
      */
     Set<UserDto> getUpdatedUsers(String date);
+
+    /**
+     * Single user
+     *
+     * @param userName
+     * @return User or empty if unknown by upstream
+     * @throws IOException upstream not available
+     */
+    Optional<UserDto> getUser(String userName) throws IOException;
+
+    /**
+     * Several users, requested one by one
+     *
+     * @param userNames
+     * @return Users known by upstream
+     * @throws IOException upstream not available
+     */
+    default Set<UserDto> getUsers(Collection<String> userNames) throws IOException {
+        Set<UserDto> result = new HashSet<>();
+        for (String userName : userNames) {
+            getUser(userName).ifPresent(result::add);
+        }
+        return result;
+    }
+
+    /**
+     * Single user by email
+     *
+     * @param email
+     * @return User or empty if unknown by upstream
+     * @throws IOException upstream not available
+     */
+    Optional<UserDto> getUserByEmail(String email) throws IOException;
+
+    /**
+     * Verify a password
+     *
+     * @param userName
+     * @param password clear password
+     * @return true if valid
+     * @throws IOException upstream not available
+     */
+    boolean verify(String userName, String password) throws IOException;
+
+    /**
+     * Fetch statistics of the last full or updated users request, by upstream shard
+     *
+     * @return reports, empty for a single upstream
+     */
+    default List<ShardReport> getLastReports() {
+        return Collections.emptyList();
+    }
 }
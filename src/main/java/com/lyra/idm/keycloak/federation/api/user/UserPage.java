@@ -0,0 +1,21 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Set;
+
+/**
+ * One page of remote users
+ */
+@Getter
+@AllArgsConstructor
+public class UserPage {
+    private final Set<UserDto> users;
+    private final int page;
+    /**
+     * Total number of pages announced by upstream (X-Total-Pages)
+     */
+    private final int totalPages;
+}
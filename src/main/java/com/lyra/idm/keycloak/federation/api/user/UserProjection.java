@@ -0,0 +1,80 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * User fields requested from upstream and decoded.
+ * <p>
+ * Sent as X-Fields (user fields) and X-Attributes (attribute names) headers. Upstream may ignore them:
+ * fields and attributes out of projection are skipped while decoding.
+ */
+@Getter
+public class UserProjection {
+
+    public static final String FIELDS_HEADER = "X-Fields";
+    public static final String ATTRIBUTES_HEADER = "X-Attributes";
+    public static final UserProjection ALL = new UserProjection(null, null);
+
+    private static final Set<String> REQUIRED = Collections.unmodifiableSet(new LinkedHashSet<>(
+            Arrays.asList("userName", "email", "firstName", "lastName", "enabled", "emailVerified", "lastModified", "deleted")));
+
+    /**
+     * Projected fields, null for every field
+     */
+    private final Set<String> fields;
+    /**
+     * Projected attributes, null for every attribute
+     */
+    private final Set<String> attributes;
+
+    private UserProjection(Set<String> fields, Set<String> attributes) {
+        this.fields = fields != null ? Collections.unmodifiableSet(fields) : null;
+        this.attributes = attributes != null ? Collections.unmodifiableSet(attributes) : null;
+    }
+
+    /**
+     * Projection of synchronized data
+     *
+     * @param roles             roles synchronized
+     * @param groups            groups synchronized
+     * @param attributes        attributes synchronized
+     * @param password          password synchronized
+     * @param allowedAttributes attributes synchronized, empty for every attribute
+     * @return projection
+     */
+    public static UserProjection of(boolean roles, boolean groups, boolean attributes, boolean password,
+                                    Collection<String> allowedAttributes) {
+        Set<String> fields = new LinkedHashSet<>(REQUIRED);
+        if (roles) {
+            fields.add("roles");
+        }
+        if (groups) {
+            fields.add("groups");
+        }
+        if (attributes) {
+            fields.add("attributes");
+        }
+        if (password) {
+            fields.add("password");
+        }
+        return new UserProjection(fields, attributes && !allowedAttributes.isEmpty() ? new LinkedHashSet<>(allowedAttributes) : null);
+    }
+
+    public boolean isAll() {
+        return fields == null && attributes == null;
+    }
+
+    public boolean isField(String name) {
+        return fields == null || fields.contains(name);
+    }
+
+    public boolean isAttribute(String name) {
+        return attributes == null || attributes.contains(name);
+    }
+}
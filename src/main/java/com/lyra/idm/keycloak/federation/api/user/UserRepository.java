@@ -1,8 +1,8 @@
 package com.lyra.idm.keycloak.federation.api.user;
 
 
+import com.lyra.idm.keycloak.federation.model.CredentialDto;
 import com.lyra.idm.keycloak.federation.model.UserDto;
-import com.lyra.idm.keycloak.federation.provider.RestUserFederationProviderFactory;
 import lombok.Getter;
 import lombok.extern.jbosslog.JBossLog;
 import org.codehaus.jackson.JsonParseException;
@@ -10,15 +10,27 @@ import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
 import org.jboss.resteasy.client.jaxrs.ResteasyClient;
-import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
 import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
 
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.ClientRequestFilter;
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * Remote repository to load remote user data from UserService using REST
@@ -27,30 +39,91 @@ import java.util.Set;
 @Getter
 public class UserRepository implements UserMapper {
     public static int PER_PAGE = 400;
+    public static final String LAST_EVENT_ID_HEADER = "X-Last-Event-Id";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<Set<UserDto>> USERS_TYPE = new TypeReference<Set<UserDto>>() {
+    };
     private String url;
     private Boolean proxyOn;
+    private UserProjection projection;
+    private UserDecoder decoder;
+    private PageHedger hedger;
+    private Set<String> bulkUnsupported;
+    private UserClients clients;
 
     public UserRepository(String url, Boolean proxyOn) {
-        this.url = url;
-        this.proxyOn = proxyOn;
+        this(url, proxyOn, UserProjection.ALL);
     }
 
-    private static UserServiceObject buildClient(String uri, Boolean proxyOn) {
-        String portTemp = Optional.ofNullable(System.getProperty("http." + RestUserFederationProviderFactory.PROXY_PORT))
-                .filter(s -> s != null && !s.isEmpty()).orElse(System.getProperty("https." + RestUserFederationProviderFactory.PROXY_PORT));
+    /**
+     * @param url
+     * @param proxyOn
+     * @param projection fields requested and decoded
+     */
+    public UserRepository(String url, Boolean proxyOn, UserProjection projection) {
+        this(url, proxyOn, projection, PageHedger.NONE);
+    }
 
-        final String host = Optional.ofNullable(System.getProperty("http." + RestUserFederationProviderFactory.PROXY_HOST))
-                .filter(s -> s != null && !s.isEmpty()).orElse(System.getProperty("https." + RestUserFederationProviderFactory.PROXY_HOST));
-        final int port = portTemp != null ? Integer.parseInt(portTemp) : 8080;
+    /**
+     * @param url
+     * @param proxyOn
+     * @param projection fields requested and decoded
+     * @param hedger     hedging of page requests, shared between synchronizations
+     */
+    public UserRepository(String url, Boolean proxyOn, UserProjection projection, PageHedger hedger) {
+        this(url, proxyOn, projection, hedger, ConcurrentHashMap.newKeySet());
+    }
 
-        ResteasyClientBuilder builder = new ResteasyClientBuilder();
+    /**
+     * @param url
+     * @param proxyOn
+     * @param projection      fields requested and decoded
+     * @param hedger          hedging of page requests, shared between synchronizations
+     * @param bulkUnsupported urls without bulk users endpoint, shared between requests
+     */
+    public UserRepository(String url, Boolean proxyOn, UserProjection projection, PageHedger hedger, Set<String> bulkUnsupported) {
+        this(url, proxyOn, projection, hedger, bulkUnsupported, new UserClients(proxyOn));
+    }
 
-        if (proxyOn) {
-            builder.defaultProxy(host, port);
-        }
+    /**
+     * @param url
+     * @param proxyOn
+     * @param projection      fields requested and decoded
+     * @param hedger          hedging of page requests, shared between synchronizations
+     * @param bulkUnsupported urls without bulk users endpoint, shared between requests
+     * @param clients         clients of the component, shared between requests
+     */
+    public UserRepository(String url, Boolean proxyOn, UserProjection projection, PageHedger hedger, Set<String> bulkUnsupported,
+                          UserClients clients) {
+        this.url = url;
+        this.proxyOn = proxyOn;
+        this.projection = projection;
+        this.decoder = new UserDecoder(projection);
+        this.hedger = hedger;
+        this.bulkUnsupported = bulkUnsupported;
+        this.clients = clients;
+    }
 
-        ResteasyClient client = builder.disableTrustManager().build();
-        ResteasyWebTarget target = client.target(uri);
+    private UserServiceObject service() {
+        return service(clients.get(0, false));
+    }
+
+    /**
+     * @param client shared client
+     * @return proxy of the upstream service, sending the projection headers
+     */
+    private UserServiceObject service(ResteasyClient client) {
+        ResteasyWebTarget target = client.target(url);
+        if (!projection.isAll()) {
+            target.register((ClientRequestFilter) request -> {
+                if (projection.getFields() != null) {
+                    request.getHeaders().putSingle(UserProjection.FIELDS_HEADER, String.join(",", projection.getFields()));
+                }
+                if (projection.getAttributes() != null) {
+                    request.getHeaders().putSingle(UserProjection.ATTRIBUTES_HEADER, String.join(",", projection.getAttributes()));
+                }
+            });
+        }
 
         return target
                 .proxyBuilder(UserServiceObject.class)
@@ -67,16 +140,13 @@ public class UserRepository implements UserMapper {
     public Set<UserDto> getUsers() {
         Set<UserDto> result = new HashSet<>();
         try {
-            UserResponseObject remoteUsers = buildClient(url, proxyOn).getUsers(1, PER_PAGE);
-            result = new ObjectMapper().readValue(remoteUsers.body(), new TypeReference<Set<UserDto>>() {
-            });
-            int totalPages = getTotalPage(remoteUsers);
+            UserPage first = loadPage(() -> service().getUsers(1, PER_PAGE), 1);
+            result = first.getUsers();
+            int totalPages = first.getTotalPages();
             if (totalPages > 1) {
                 for (int i = 2; i <= totalPages; i++) {
-                    Set<UserDto> added=new ObjectMapper().readValue(
-                            buildClient(url, proxyOn).getUsers(i, PER_PAGE).body(),
-                            new TypeReference<Set<UserDto>>() {
-                            });
+                    final int page = i;
+                    Set<UserDto> added = loadPage(() -> service().getUsers(page, PER_PAGE), page).getUsers();
                     log.debug("Process page:" + i + " and adding " + added.size() + " elements.");
                     result.addAll(added);
                 }
@@ -97,14 +167,13 @@ public class UserRepository implements UserMapper {
     public Set<UserDto> getUpdatedUsers(String date) {
         Set<UserDto> result = new HashSet<>();
         try {
-            UserResponseObject remoteUsers = buildClient(url, proxyOn).getUpdatedUsers(date, 1, PER_PAGE);
-            result = new ObjectMapper().readValue(remoteUsers.body(), new TypeReference<Set<UserDto>>() {
-            });
-            int totalPages = getTotalPage(remoteUsers);
-            if (getTotalPage(remoteUsers) > 1) {
+            UserPage first = loadPage(() -> service().getUpdatedUsers(date, 1, PER_PAGE), 1);
+            result = first.getUsers();
+            int totalPages = first.getTotalPages();
+            if (totalPages > 1) {
                 for (int i = 2; i <= totalPages; i++) {
-                    result.addAll(new ObjectMapper().readValue(buildClient(url, proxyOn).getUpdatedUsers(date, i, PER_PAGE).body(), new TypeReference<Set<UserDto>>() {
-                    }));
+                    final int page = i;
+                    result.addAll(loadPage(() -> service().getUpdatedUsers(date, page, PER_PAGE), page).getUsers());
                 }
             }
         } catch (WebApplicationException | IOException e) {
@@ -114,6 +183,224 @@ public class UserRepository implements UserMapper {
         return result;
     }
 
+    /**
+     * One page of full users
+     *
+     * @param page index starting at 1
+     * @return page with total number of pages
+     * @throws IOException upstream not available
+     */
+    public UserPage getUsersPage(int page) throws IOException {
+        return readPage(() -> service().getUsers(page, PER_PAGE), page);
+    }
+
+    /**
+     * One page of updated users
+     *
+     * @param date
+     * @param page index starting at 1
+     * @return page with total number of pages
+     * @throws IOException upstream not available
+     */
+    public UserPage getUpdatedUsersPage(String date, int page) throws IOException {
+        return readPage(() -> service().getUpdatedUsers(date, page, PER_PAGE), page);
+    }
+
+    private UserPage readPage(Supplier<UserResponseObject> call, int page) throws IOException {
+        try {
+            return loadPage(call, page);
+        } catch (WebApplicationException | ProcessingException e) {
+            throw new IOException("Received a non OK answer from upstream migration service", e);
+        }
+    }
+
+    /**
+     * Request and decode a page, hedged if slower than usual
+     */
+    private UserPage loadPage(Supplier<UserResponseObject> call, int page) throws IOException {
+        return hedger.call(() -> {
+            UserResponseObject remoteUsers = call.get();
+            try {
+                Set<UserDto> users = decoder.readUsers(remoteUsers.body());
+                return new UserPage(users, page, Math.max(page, getTotalPage(remoteUsers)));
+            } finally {
+                remoteUsers.response().close();
+            }
+        });
+    }
+
+    /**
+     * Single user
+     *
+     * @param userName
+     * @return User or empty if unknown by upstream
+     * @throws IOException upstream not available
+     */
+    public Optional<UserDto> getUser(String userName) throws IOException {
+        return readUser(() -> service().getUser(userName));
+    }
+
+    /**
+     * Several users with one bulk request, or one by one if upstream has no bulk endpoint
+     *
+     * @param userNames
+     * @return Users known by upstream
+     * @throws IOException upstream not available
+     */
+    public Set<UserDto> getUsers(Collection<String> userNames) throws IOException {
+        if (userNames.size() > 1 && !bulkUnsupported.contains(url)) {
+            try {
+                UserResponseObject remoteUsers = service().getUsersByName(new LinkedHashSet<>(userNames));
+                try {
+                    int status = remoteUsers.response().getStatus();
+                    if (status == Response.Status.OK.getStatusCode()) {
+                        return decoder.readUsers(remoteUsers.body());
+                    }
+                    if (!isNotImplemented(status)) {
+                        throw new IOException("Received a non OK answer from upstream users service: " + status);
+                    }
+                } finally {
+                    // Pooled connection released
+                    remoteUsers.response().close();
+                }
+            } catch (WebApplicationException e) {
+                if (e.getResponse() == null || !isNotImplemented(e.getResponse().getStatus())) {
+                    throw new IOException("Received a non OK answer from upstream users service", e);
+                }
+            } catch (ProcessingException e) {
+                throw new IOException("Upstream users service not available", e);
+            }
+            log.debugf("No bulk users endpoint on %s, users requested one by one", url);
+            bulkUnsupported.add(url);
+        }
+        return UserMapper.super.getUsers(userNames);
+    }
+
+    /**
+     * Read the change feed once: events until the stream ends, or one long-polling answer
+     *
+     * @param lastEventId last processed event id, null to start from now
+     * @param wait        long-polling wait in seconds, twice as long without data ends the connection
+     * @param listener    receives changed users with their event id, in order
+     * @throws IOException feed not available, malformed or interrupted
+     */
+    public void readChanges(String lastEventId, int wait, ChangeListener listener) throws IOException {
+        Response response;
+        try {
+            response = service(clients.get(Math.max(wait, 1) * 2, false)).getChanges(lastEventId, wait);
+        } catch (WebApplicationException | ProcessingException e) {
+            throw new IOException("Upstream change feed not available", e);
+        }
+        try {
+            int status = response.getStatus();
+            if (status == Response.Status.NO_CONTENT.getStatusCode()) {
+                return;
+            }
+            if (status != Response.Status.OK.getStatusCode()) {
+                throw new IOException("Received a non OK answer from upstream change feed: " + status);
+            }
+            if (MediaType.SERVER_SENT_EVENTS_TYPE.isCompatible(response.getMediaType())) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.readEntity(InputStream.class), StandardCharsets.UTF_8))) {
+                    new ChangeEventReader(decoder).read(reader, listener);
+                }
+            } else {
+                String eventId = response.getHeaderString(LAST_EVENT_ID_HEADER);
+                Set<UserDto> users = decoder.readUsers(response.readEntity(String.class));
+                listener.onChanges(eventId != null ? eventId : lastEventId, new ArrayList<>(users));
+            }
+        } catch (ProcessingException e) {
+            throw new IOException("Upstream change feed interrupted", e);
+        } finally {
+            response.close();
+        }
+    }
+
+    private static boolean isNotImplemented(int status) {
+        return status == Response.Status.NOT_FOUND.getStatusCode() || status == 405 || status == 501;
+    }
+
+    /**
+     * Single user by email
+     *
+     * @param email
+     * @return User or empty if unknown by upstream
+     * @throws IOException upstream not available
+     */
+    public Optional<UserDto> getUserByEmail(String email) throws IOException {
+        return readUser(() -> service().getUserByEmail(email));
+    }
+
+    /**
+     * Verify a password. The clear password is only sent to a server with a valid certificate.
+     *
+     * @param userName
+     * @param password clear password
+     * @return true if valid
+     * @throws IOException upstream not available
+     */
+    public boolean verify(String userName, String password) throws IOException {
+        int status;
+        try {
+            Response response = service(clients.get(0, true)).verify(new CredentialDto(userName, password)).response();
+            try {
+                status = response.getStatus();
+            } finally {
+                response.close();
+            }
+        } catch (WebApplicationException e) {
+            status = e.getResponse() != null ? e.getResponse().getStatus() : Response.Status.INTERNAL_SERVER_ERROR.getStatusCode();
+            if (e.getResponse() != null) {
+                e.getResponse().close();
+            }
+        } catch (ProcessingException e) {
+            throw new IOException("Upstream verify service not available", e);
+        }
+        if (status == Response.Status.UNAUTHORIZED.getStatusCode() || status == Response.Status.FORBIDDEN.getStatusCode()) {
+            return false;
+        }
+        if (Response.Status.Family.familyOf(status) != Response.Status.Family.SUCCESSFUL) {
+            throw new IOException("Received a non OK answer from upstream verify service: " + status);
+        }
+        return true;
+    }
+
+    private Optional<UserDto> readUser(Supplier<UserResponseObject> call) throws IOException {
+        try {
+            UserResponseObject remoteUser = call.get();
+            try {
+                int status = remoteUser.response().getStatus();
+                if (status == Response.Status.NOT_FOUND.getStatusCode()) {
+                    return Optional.empty();
+                }
+                if (status != Response.Status.OK.getStatusCode()) {
+                    throw new IOException("Received a non OK answer from upstream user service: " + status);
+                }
+                return Optional.ofNullable(decoder.readUser(remoteUser.body()));
+            } finally {
+                remoteUser.response().close();
+            }
+        } catch (WebApplicationException e) {
+            if (e.getResponse() != null && e.getResponse().getStatus() == Response.Status.NOT_FOUND.getStatusCode()) {
+                return Optional.empty();
+            }
+            throw new IOException("Received a non OK answer from upstream user service", e);
+        } catch (ProcessingException e) {
+            throw new IOException("Upstream user service not available", e);
+        }
+    }
+
+    /**
+     * Decode a page of users with data binding, every field
+     *
+     * @param body JSON array of users
+     * @return Users
+     * @throws IOException malformed JSON
+     * @see UserDecoder streaming decoder used by repository
+     */
+    static Set<UserDto> readUsers(String body) throws IOException {
+        return MAPPER.readValue(body, USERS_TYPE);
+    }
+
     private int getTotalPage(UserResponseObject response) {
         int result = 0;
         if (response != null && response.totalPages() != null && response.page() != null) {
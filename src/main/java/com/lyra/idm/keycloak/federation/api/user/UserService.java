@@ -1,10 +1,12 @@
 package com.lyra.idm.keycloak.federation.api.user;
 
 
+import com.lyra.idm.keycloak.federation.model.CredentialDto;
 import com.lyra.idm.keycloak.federation.model.UserDto;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import java.util.Set;
 
 /**
@@ -32,4 +34,54 @@ public interface UserService {
     @GET
     @Path("/updated/{from}")
     Set<UserDto> getUpdatedUsers(@PathParam("from") String date,@HeaderParam("X-Page") int page,@HeaderParam("X-Per-Page") int perPage);
+
+    /**
+     * Single user, 404 if unknown
+     *
+     * @param userName
+     */
+    @GET
+    @Path("/user/{userName}")
+    UserDto getUser(@PathParam("userName") String userName);
+
+    /**
+     * Single user by email, 404 if unknown
+     *
+     * @param email
+     */
+    @GET
+    @Path("/email/{email}")
+    UserDto getUserByEmail(@PathParam("email") String email);
+
+    /**
+     * Several users by user name, unknown users omitted. Optional, 404 or 405 if not implemented
+     *
+     * @param userNames
+     */
+    @POST
+    @Path("/users")
+    Set<UserDto> getUsersByName(Set<String> userNames);
+
+    /**
+     * Verify a password, 200 if valid, 401 if not
+     *
+     * @param credential user name and clear password
+     */
+    @POST
+    @Path("/verify")
+    void verify(CredentialDto credential);
+
+    /**
+     * Change feed of users, tombstones included. Optional.
+     * Server-Sent Events (text/event-stream): one user by event (id and data), stream kept open with heartbeat comments.
+     * Long-polling (application/json): users changed after the event id, answered after at most wait seconds,
+     * last event id in X-Last-Event-Id header, 204 if nothing changed.
+     *
+     * @param lastEventId last processed event id, absent to start from now
+     * @param wait        long-polling wait in seconds
+     */
+    @GET
+    @Path("/changes")
+    @Produces({MediaType.SERVER_SENT_EVENTS, MediaType.APPLICATION_JSON})
+    Response getChanges(@HeaderParam("Last-Event-ID") String lastEventId, @QueryParam("wait") int wait);
 }
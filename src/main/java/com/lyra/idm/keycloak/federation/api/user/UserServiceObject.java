@@ -1,8 +1,12 @@
 package com.lyra.idm.keycloak.federation.api.user;
 
 
+import com.lyra.idm.keycloak.federation.model.CredentialDto;
+
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Set;
 
 /**
  * Stub Service class to be used with RestEasy to access user rest api
@@ -21,4 +25,27 @@ public interface UserServiceObject {
     @GET
     @Path("/updated/{from}")
     UserResponseObject getUpdatedUsers(@PathParam("from") String date, @HeaderParam("X-Page") int page, @HeaderParam("X-Per-Page") int perPage);
+
+    @GET
+    @Path("/user/{userName}")
+    UserResponseObject getUser(@PathParam("userName") String userName);
+
+    @GET
+    @Path("/email/{email}")
+    UserResponseObject getUserByEmail(@PathParam("email") String email);
+
+    @POST
+    @Path("/users")
+    @Consumes(MediaType.APPLICATION_JSON)
+    UserResponseObject getUsersByName(Set<String> userNames);
+
+    @POST
+    @Path("/verify")
+    @Consumes(MediaType.APPLICATION_JSON)
+    UserResponseObject verify(CredentialDto credential);
+
+    @GET
+    @Path("/changes")
+    @Produces({MediaType.SERVER_SENT_EVENTS, MediaType.APPLICATION_JSON})
+    Response getChanges(@HeaderParam("Last-Event-ID") String lastEventId, @QueryParam("wait") int wait);
 }
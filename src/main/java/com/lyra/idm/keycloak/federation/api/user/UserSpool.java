@@ -0,0 +1,318 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import lombok.extern.jbosslog.JBossLog;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Users fetched for a synchronization, kept in memory up to a threshold then spilled to a temporary file.
+ * <p>
+ * Records are length-prefixed JSON encoded users without null fields, read back sequentially through memory-mapped windows.
+ * Users are deduplicated on add by user name and email with the precedence of the synchronization: when two records
+ * share a key, the first in precedence order wins and the other one is skipped, even if already spilled.
+ * Tombstones have no email key. Only the keys of kept records stay in memory.
+ * The temporary file is only readable by its owner and is deleted on close.
+ */
+@JBossLog
+public class UserSpool extends AbstractCollection<UserDto> implements Closeable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .setSerializationInclusion(JsonSerialize.Inclusion.NON_NULL);
+    private static final int WINDOW = 64 * 1024 * 1024;
+
+    private final long threshold;
+    private final Comparator<UserDto> precedence;
+    private final Consumer<UserDto> rejected;
+    private final List<UserDto> memory = new ArrayList<>();
+    private final Map<String, Key> emails = new HashMap<>();
+    private final Map<String, Key> userNames = new HashMap<>();
+    private final BitSet skipped = new BitSet();
+    private final List<FileChannel> channels = new ArrayList<>();
+    private long estimated;
+    private int records;
+    private int size;
+    private Path file;
+    private DataOutputStream out;
+
+    /**
+     * Precedence keys of a kept record
+     */
+    private static class Key {
+        private final int index;
+        private final UserDto user;
+
+        Key(int index, UserDto user) {
+            this.index = index;
+            this.user = user;
+        }
+    }
+
+    /**
+     * @param threshold  estimated bytes of users kept in memory before spilling
+     * @param precedence order of records sharing a user name or an email, first wins
+     * @param rejected   receives records skipped for a record with precedence, only with their keys once spilled
+     */
+    public UserSpool(long threshold, Comparator<UserDto> precedence, Consumer<UserDto> rejected) {
+        this.threshold = threshold;
+        this.precedence = precedence;
+        this.rejected = rejected;
+    }
+
+    /**
+     * Add a user unless null or superseded by a record with precedence, records it supersedes are skipped
+     *
+     * @param user remote user
+     * @return true if added
+     * @throws UncheckedIOException spill file not writable
+     */
+    @Override
+    public boolean add(UserDto user) {
+        if (user == null) {
+            return false;
+        }
+        Set<Key> conflicts = new LinkedHashSet<>(2);
+        if (user.getUserName() != null && userNames.containsKey(user.getUserName())) {
+            conflicts.add(userNames.get(user.getUserName()));
+        }
+        if (!user.isDeleted() && user.getEmail() != null && emails.containsKey(user.getEmail())) {
+            conflicts.add(emails.get(user.getEmail()));
+        }
+        if (conflicts.stream().anyMatch(k -> precedence.compare(k.user, user) <= 0)) {
+            rejected.accept(user);
+            return false;
+        }
+        conflicts.forEach(this::skip);
+        Key key = new Key(records, keys(user));
+        if (user.getUserName() != null) {
+            userNames.put(user.getUserName(), key);
+        }
+        if (!user.isDeleted() && user.getEmail() != null) {
+            emails.put(user.getEmail(), key);
+        }
+        try {
+            if (out == null) {
+                memory.add(user);
+                estimated += estimate(user);
+                if (estimated > threshold) {
+                    spill();
+                }
+            } else {
+                write(user);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Users spool not writable", e);
+        }
+        records++;
+        size++;
+        return true;
+    }
+
+    /**
+     * Skip a record superseded by a record with precedence
+     */
+    private void skip(Key key) {
+        skipped.set(key.index);
+        userNames.remove(key.user.getUserName(), key);
+        if (key.user.getEmail() != null) {
+            emails.remove(key.user.getEmail(), key);
+        }
+        size--;
+        rejected.accept(key.user);
+    }
+
+    /**
+     * Fields compared by precedence, with user name and email for logs
+     */
+    private static UserDto keys(UserDto user) {
+        UserDto result = new UserDto();
+        result.setUserName(user.getUserName());
+        result.setEmail(user.getEmail());
+        result.setLastModified(user.getLastModified());
+        result.setDeleted(user.isDeleted());
+        return result;
+    }
+
+    public boolean isSpilled() {
+        return out != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Kept users in insertion order, read from disk once spilled
+     *
+     * @throws UncheckedIOException spill file not readable
+     */
+    @Override
+    public Iterator<UserDto> iterator() {
+        if (out == null) {
+            List<UserDto> kept = new ArrayList<>(size);
+            for (int i = 0; i < memory.size(); i++) {
+                if (!skipped.get(i)) {
+                    kept.add(memory.get(i));
+                }
+            }
+            return kept.iterator();
+        }
+        try {
+            out.flush();
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            channels.add(channel);
+            return new SpoolIterator(channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Users spool not readable", e);
+        }
+    }
+
+    /**
+     * Release memory and delete the spill file
+     */
+    @Override
+    public void close() throws IOException {
+        memory.clear();
+        try {
+            if (out != null) {
+                out.close();
+            }
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+        } finally {
+            channels.clear();
+            if (file != null) {
+                Files.deleteIfExists(file);
+                log.debugf("Users spool %s deleted", file);
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        file = Files.createTempFile("rest-federation-", ".spool");
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+        for (UserDto user : memory) {
+            write(user);
+        }
+        log.infof("Users spilled to %s after %s users (about %s bytes)", file, memory.size(), estimated);
+        memory.clear();
+    }
+
+    private void write(UserDto user) throws IOException {
+        byte[] record = MAPPER.writeValueAsBytes(user);
+        out.writeInt(record.length);
+        out.write(record);
+    }
+
+    /**
+     * Rough heap footprint of a user: object headers and UTF-16 strings
+     */
+    static long estimate(UserDto user) {
+        long result = 128 + length(user.getUserName()) + length(user.getEmail()) + length(user.getFirstName())
+                + length(user.getLastName()) + length(user.getPassword());
+        if (user.getRoles() != null) {
+            for (String role : user.getRoles()) {
+                result += 48 + length(role);
+            }
+        }
+        if (user.getAttributes() != null) {
+            for (Map.Entry<String, List<String>> entry : user.getAttributes().entrySet()) {
+                result += 64 + length(entry.getKey());
+                if (entry.getValue() != null) {
+                    for (String value : entry.getValue()) {
+                        result += 16 + length(value);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static long length(String value) {
+        return value != null ? 40 + 2L * value.length() : 0;
+    }
+
+    /**
+     * Sequential reader mapping the file by windows, a window is moved when the next record overflows it
+     */
+    private class SpoolIterator implements Iterator<UserDto> {
+        private final FileChannel channel;
+        private final long length;
+        private MappedByteBuffer buffer;
+        private long bufferStart;
+        private long position;
+        private int index;
+        private int remaining = size;
+
+        SpoolIterator(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.length = channel.size();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public UserDto next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                while (skipped.get(index)) {
+                    position += Integer.BYTES + window(Integer.BYTES).getInt();
+                    index++;
+                }
+                int recordLength = window(Integer.BYTES).getInt();
+                position += Integer.BYTES;
+                byte[] record = new byte[recordLength];
+                window(recordLength).get(record);
+                position += recordLength;
+                index++;
+                remaining--;
+                if (remaining == 0) {
+                    channel.close();
+                }
+                return MAPPER.readValue(record, UserDto.class);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Users spool not readable", e);
+            }
+        }
+
+        private ByteBuffer window(int needed) throws IOException {
+            if (buffer == null || position + needed > bufferStart + buffer.capacity()) {
+                bufferStart = position;
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(WINDOW, needed), length - position));
+            }
+            buffer.position((int) (position - bufferStart));
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.lyra.idm.keycloak.federation.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class CredentialDto {
+    private String userName;
+    private String password;
+}
@@ -20,4 +20,8 @@ public class UserDto {
     private Set<String> roles;
     private Map<String, List<String>> attributes;
     private String password;
+    private Long lastModified; //epoch millis, optional
+    private Set<String> groups; //optional, group mode
+    private boolean deleted; //false, tombstone of a user deleted upstream
+    private Boolean emailVerified; //optional, enabled if absent
 }
@@ -0,0 +1,100 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.api.user.PageHedger;
+import com.lyra.idm.keycloak.federation.api.user.ShardHealth;
+import com.lyra.idm.keycloak.federation.api.user.UserClients;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runtime caches of a federation component, shared by providers and dropped with configuration
+ */
+@Getter
+public class ComponentCache implements Closeable {
+
+    /**
+     * Lookup keys unknown by upstream
+     */
+    private final TtlCache<String, Boolean> unknownUsers;
+
+    /**
+     * Remote mode users by lookup key
+     */
+    private final TtlCache<String, RemoteUser> remoteUsers;
+
+    /**
+     * Passwords verified by upstream
+     */
+    private final VerifiedPasswordCache verifiedPasswords;
+
+    /**
+     * Health of upstream shards by url
+     */
+    private final Map<String, ShardHealth> shardHealth = new ConcurrentHashMap<>();
+
+    /**
+     * Hedging of page requests by upstream url
+     */
+    @Getter(AccessLevel.NONE)
+    private final Map<String, PageHedger> pageHedgers = new ConcurrentHashMap<>();
+
+    /**
+     * Upstream urls without bulk users endpoint
+     */
+    private final Set<String> bulkUnsupported = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Synchronized group ids by name (group mode)
+     */
+    private final Map<String, String> groupIds = new ConcurrentHashMap<>();
+
+    /**
+     * Import rate, kept between pages and synchronizations
+     */
+    private final ImportThrottle importThrottle;
+
+    /**
+     * Upstream clients with their connection pools, closed with the caches
+     */
+    private final UserClients clients;
+
+    @Getter(AccessLevel.NONE)
+    private final int hedgePercentile;
+
+    @Getter(AccessLevel.NONE)
+    private final int hedgeBudget;
+
+    public ComponentCache(RestUserFederationConfig config) {
+        this.unknownUsers = new TtlCache<>(config.getLookupNegativeTtl(), TimeUnit.SECONDS, config.getLookupNegativeSize());
+        this.importThrottle = new ImportThrottle(config.getThrottleLatency(), config.getThrottleProbeLatency(), config.getThrottleMaxRate());
+        this.remoteUsers = new TtlCache<>(config.getRemoteCacheTtl(), TimeUnit.SECONDS, config.getRemoteCacheSize());
+        this.verifiedPasswords = new VerifiedPasswordCache(config.getPasswordCacheTtl(), TimeUnit.SECONDS, config.getPasswordCacheSize());
+        this.hedgePercentile = config.getHedgePercentile();
+        this.hedgeBudget = config.getHedgeBudget();
+        this.clients = new UserClients(config.getProxyOn());
+    }
+
+    /**
+     * Hedging of page requests of an upstream
+     *
+     * @param url upstream url
+     * @return hedger, disabled if not configured
+     */
+    public PageHedger getPageHedger(String url) {
+        return hedgePercentile > 0 ? pageHedgers.computeIfAbsent(url, k -> new PageHedger(hedgePercentile, hedgeBudget)) : PageHedger.NONE;
+    }
+
+    /**
+     * Close upstream clients of a dropped configuration
+     */
+    @Override
+    public void close() {
+        clients.close();
+    }
+}
@@ -0,0 +1,139 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Import rate of a component adapted to database latency (AIMD).
+ * <p>
+ * Imports are spaced to respect a rate of users by second. After each window of user imports, the rate is halved
+ * if the average user import, or the optional login probe, is slower than its ceiling,
+ * and increased by a step otherwise. Disabled if the import ceiling is <= 0.
+ */
+@JBossLog
+public class ImportThrottle {
+
+    static final int WINDOW = 20;
+    private static final double MIN_RATE = 1;
+
+    private final long ceilingNanos;
+    private final long probeCeilingNanos;
+    private final double maxRate;
+    private final double step;
+    private double rate;
+    private long next = System.nanoTime();
+    private int samples;
+    private long windowNanos;
+    private int decreases;
+
+    /**
+     * @param ceiling      import transaction latency ceiling in milliseconds, disabled if <= 0
+     * @param probeCeiling login probe latency ceiling in milliseconds, no probe if <= 0
+     * @param maxRate      maximum users by second, also the starting rate
+     */
+    public ImportThrottle(int ceiling, int probeCeiling, int maxRate) {
+        this.ceilingNanos = TimeUnit.MILLISECONDS.toNanos(ceiling);
+        this.probeCeilingNanos = TimeUnit.MILLISECONDS.toNanos(probeCeiling);
+        this.maxRate = Math.max(MIN_RATE, maxRate);
+        this.step = Math.max(MIN_RATE, this.maxRate / 20);
+        this.rate = this.maxRate;
+    }
+
+    public boolean isEnabled() {
+        return ceilingNanos > 0;
+    }
+
+    public boolean isProbeEnabled() {
+        return isEnabled() && probeCeilingNanos > 0;
+    }
+
+    /**
+     * Wait for the next import slot
+     *
+     * @param users users imported by the next transaction
+     */
+    public void acquire(int users) {
+        if (!isEnabled()) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            wait = next - now;
+            next = Math.max(now, next) + (long) (users * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Record the latency of an import transaction, adapt the rate at the end of a window
+     *
+     * @param nanos transaction duration
+     * @param probe login probe, duration in nanoseconds, called once by window if enabled
+     */
+    public void record(long nanos, LongSupplier probe) {
+        record(nanos, 1, probe);
+    }
+
+    /**
+     * Record the latency of an import transaction of several users, counted as one sample by user
+     *
+     * @param nanos transaction duration
+     * @param users users imported by the transaction
+     * @param probe login probe, duration in nanoseconds, called once by window if enabled
+     */
+    public void record(long nanos, int users, LongSupplier probe) {
+        if (!isEnabled() || users <= 0) {
+            return;
+        }
+        long average;
+        synchronized (this) {
+            windowNanos += nanos;
+            samples += users;
+            if (samples < WINDOW) {
+                return;
+            }
+            average = windowNanos / samples;
+            samples = 0;
+            windowNanos = 0;
+        }
+        adjust(average, isProbeEnabled() ? probe.getAsLong() : 0);
+    }
+
+    synchronized void adjust(long averageNanos, long probeNanos) {
+        double previous = rate;
+        if (averageNanos > ceilingNanos || (isProbeEnabled() && probeNanos > probeCeilingNanos)) {
+            rate = Math.max(MIN_RATE, rate / 2);
+            decreases++;
+            log.infof("Import slowed down to %.1f users/s: transaction %s ms, probe %s ms", rate,
+                    TimeUnit.NANOSECONDS.toMillis(averageNanos), TimeUnit.NANOSECONDS.toMillis(probeNanos));
+        } else {
+            rate = Math.min(maxRate, rate + step);
+            if (rate != previous) {
+                log.debugf("Import sped up to %.1f users/s: transaction %s ms, probe %s ms", rate,
+                        TimeUnit.NANOSECONDS.toMillis(averageNanos), TimeUnit.NANOSECONDS.toMillis(probeNanos));
+            }
+        }
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public synchronized int getDecreases() {
+        return decreases;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%.1f users/s, %d slow downs", rate, decreases);
+    }
+}
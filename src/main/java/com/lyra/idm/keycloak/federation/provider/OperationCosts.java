@@ -0,0 +1,43 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Average duration of user synchronization by outcome, measured during real synchronizations
+ * (exponentially weighted moving average)
+ */
+public class OperationCosts {
+
+    private static final double WEIGHT = 0.05;
+    private static final Map<SyncOutcome, Long> DEFAULT_NANOS = new EnumMap<>(SyncOutcome.class);
+
+    static {
+        // Used until a synchronization has measured real costs
+        DEFAULT_NANOS.put(SyncOutcome.ADDED, TimeUnit.MILLISECONDS.toNanos(50));
+        DEFAULT_NANOS.put(SyncOutcome.UPDATED, TimeUnit.MILLISECONDS.toNanos(20));
+        DEFAULT_NANOS.put(SyncOutcome.SKIPPED, TimeUnit.MILLISECONDS.toNanos(2));
+        DEFAULT_NANOS.put(SyncOutcome.REMOVED, TimeUnit.MILLISECONDS.toNanos(20));
+        DEFAULT_NANOS.put(SyncOutcome.FAILED, TimeUnit.MILLISECONDS.toNanos(5));
+    }
+
+    private final Map<SyncOutcome, Double> averages = new EnumMap<>(SyncOutcome.class);
+
+    public synchronized void record(SyncOutcome outcome, long nanos) {
+        averages.merge(outcome, (double) nanos, (avg, value) -> avg + WEIGHT * (value - avg));
+    }
+
+    /**
+     * @param outcome
+     * @return average duration, default value if never measured
+     */
+    public synchronized long nanos(SyncOutcome outcome) {
+        Double avg = averages.get(outcome);
+        return avg != null ? avg.longValue() : DEFAULT_NANOS.get(outcome);
+    }
+
+    public synchronized boolean isMeasured(SyncOutcome outcome) {
+        return averages.containsKey(outcome);
+    }
+}
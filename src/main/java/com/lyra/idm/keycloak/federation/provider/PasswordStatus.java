@@ -0,0 +1,12 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+/**
+ * Outcome of a password credential synchronization
+ */
+public enum PasswordStatus {
+    CREATED,
+    UPDATED,
+    UNCHANGED,
+    MISSING,
+    FAILED
+}
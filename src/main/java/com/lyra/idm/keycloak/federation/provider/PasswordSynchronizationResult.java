@@ -0,0 +1,31 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Password synchronization counters, complement SynchronizationResult
+ */
+public class PasswordSynchronizationResult {
+
+    private final Map<PasswordStatus, Integer> counters = new EnumMap<>(PasswordStatus.class);
+
+    public void increase(PasswordStatus status) {
+        counters.merge(status, 1, Integer::sum);
+    }
+
+    public void addAll(PasswordSynchronizationResult other) {
+        other.counters.forEach((status, count) -> counters.merge(status, count, Integer::sum));
+    }
+
+    public int get(PasswordStatus status) {
+        return counters.getOrDefault(status, 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d created, %d updated, %d password unchanged, %d missing, %d failed",
+                get(PasswordStatus.CREATED), get(PasswordStatus.UPDATED), get(PasswordStatus.UNCHANGED),
+                get(PasswordStatus.MISSING), get(PasswordStatus.FAILED));
+    }
+}
@@ -0,0 +1,27 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Upstream user mapped as it would be imported: lower case names, converted role, group and attribute names.
+ * Immutable, shared by sessions through the component cache.
+ */
+@Getter
+@AllArgsConstructor
+public class RemoteUser {
+
+    private final String userName;
+    private final String email;
+    private final String firstName;
+    private final String lastName;
+    private final boolean enabled;
+    private final boolean emailVerified;
+    private final Map<String, List<String>> attributes;
+    private final Set<String> roles;
+    private final Set<String> groups;
+}
@@ -0,0 +1,110 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.storage.adapter.AbstractUserAdapter;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Read-only user served from upstream, nothing is stored locally.
+ * <p>
+ * Roles and groups must exist in the realm, missing ones are ignored.
+ * Keycloak id is f:componentId:userName.
+ */
+public class RemoteUserAdapter extends AbstractUserAdapter {
+
+    private final RemoteUser user;
+    private final ClientModel roleClient;
+
+    /**
+     * @param session
+     * @param realm
+     * @param model      federation component
+     * @param user       mapped upstream user
+     * @param roleClient client of roles, null for realm roles
+     */
+    public RemoteUserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, RemoteUser user, ClientModel roleClient) {
+        super(session, realm, model);
+        this.user = user;
+        this.roleClient = roleClient;
+    }
+
+    @Override
+    public String getUsername() {
+        return user.getUserName();
+    }
+
+    @Override
+    public String getEmail() {
+        return user.getEmail();
+    }
+
+    @Override
+    public String getFirstName() {
+        return user.getFirstName();
+    }
+
+    @Override
+    public String getLastName() {
+        return user.getLastName();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return user.isEnabled();
+    }
+
+    @Override
+    public boolean isEmailVerified() {
+        return user.isEmailVerified();
+    }
+
+    @Override
+    public String getFirstAttribute(String name) {
+        List<String> values = user.getAttributes().get(name);
+        return values != null && !values.isEmpty() ? values.get(0) : null;
+    }
+
+    @Override
+    public List<String> getAttribute(String name) {
+        List<String> values = user.getAttributes().get(name);
+        return values != null ? values : Collections.emptyList();
+    }
+
+    @Override
+    public Map<String, List<String>> getAttributes() {
+        MultivaluedHashMap<String, String> result = new MultivaluedHashMap<>();
+        result.putAll(user.getAttributes());
+        return result;
+    }
+
+    @Override
+    protected Set<RoleModel> getRoleMappingsInternal() {
+        return user.getRoles().stream()
+                .map(name -> roleClient != null ? roleClient.getRole(name) : realm.getRole(name))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toCollection(HashSet::new));
+    }
+
+    @Override
+    protected Set<GroupModel> getGroupsInternal() {
+        if (user.getGroups().isEmpty()) {
+            return new HashSet<>();
+        }
+        return realm.getTopLevelGroups().stream()
+                .filter(g -> user.getGroups().contains(g.getName()))
+                .collect(Collectors.toCollection(HashSet::new));
+    }
+}
@@ -0,0 +1,39 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import lombok.Getter;
+import org.jboss.resteasy.spi.ResteasyUriInfo;
+import org.keycloak.models.Constants;
+import org.keycloak.models.RealmModel;
+
+import javax.ws.rs.core.UriInfo;
+import java.net.URI;
+
+/**
+ * Link and token settings shared by every reset action email of a realm
+ */
+@Getter
+public class ResetActionContext {
+
+    private final UriInfo uriInfo;
+    private final String clientId;
+    private final int lifespan;
+
+    private ResetActionContext(String publicUrl, int lifespan) {
+        ResteasyUriInfo info = new ResteasyUriInfo(URI.create(publicUrl));
+        info.setUri(URI.create(publicUrl), URI.create("/auth"));
+        this.uriInfo = info;
+        this.clientId = Constants.ACCOUNT_MANAGEMENT_CLIENT_ID;
+        this.lifespan = lifespan;
+    }
+
+    /**
+     * Compute link and token settings for a realm
+     *
+     * @param realm
+     * @param publicUrl public url of IDM
+     * @return context
+     */
+    public static ResetActionContext of(RealmModel realm, String publicUrl) {
+        return new ResetActionContext(publicUrl, realm.getActionTokenGeneratedByAdminLifespan());
+    }
+}
@@ -0,0 +1,271 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageProvider;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable outbox of reset action emails.
+ * <p>
+ * Pending actions are stored as user attributes in the import transaction, then sent by a background
+ * dispatcher with a rate limit, outside of any transaction. Emails are sent user by user through Keycloak's email
+ * provider, which opens an SMTP connection by email. Actions not sent are kept and retried by next dispatch
+ * until max attempts.
+ */
+@JBossLog
+public class ResetActionOutbox {
+
+    public static final String OUTBOX_COMPONENT = "rest_federation_outbox";
+    public static final String OUTBOX_ACTIONS = "rest_federation_outbox_actions";
+    public static final String OUTBOX_ATTEMPTS = "rest_federation_outbox_attempts";
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "rest-federation-reset-action");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Store pending actions for a new user
+     *
+     * @param user        new user
+     * @param componentId federation component
+     * @param actions     actions to send
+     */
+    public static void enqueue(UserModel user, String componentId, List<String> actions) {
+        user.setSingleAttribute(OUTBOX_COMPONENT, componentId);
+        user.setAttribute(OUTBOX_ACTIONS, new ArrayList<>(actions));
+        user.setSingleAttribute(OUTBOX_ATTEMPTS, "0");
+    }
+
+    public static boolean isOutboxAttribute(String name) {
+        return name.startsWith(OUTBOX_COMPONENT);
+    }
+
+    private static void clear(UserModel user) {
+        user.removeAttribute(OUTBOX_COMPONENT);
+        user.removeAttribute(OUTBOX_ACTIONS);
+        user.removeAttribute(OUTBOX_ATTEMPTS);
+    }
+
+    /**
+     * Send pending emails of a component in background. Ignored if a dispatch is already pending for this component.
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     */
+    public void dispatch(final KeycloakSessionFactory sessionFactory, final String realmId, final ComponentModel fedModel,
+                         final RestUserFederationConfig config) {
+        if (scheduled.add(fedModel.getId())) {
+            executor.submit(() -> {
+                try {
+                    send(sessionFactory, realmId, fedModel, config);
+                } catch (RuntimeException e) {
+                    log.error("Reset action dispatch failed", e);
+                } finally {
+                    scheduled.remove(fedModel.getId());
+                }
+            });
+        } else {
+            log.debugf("[%s] Reset action dispatch already pending", fedModel.getName());
+        }
+    }
+
+    /**
+     * Send pending emails of a component, user by user. Attempts are counted in a first transaction, emails are sent
+     * without transaction and the outcome is stored in a second transaction: a failure while storing the outcome
+     * can only resend emails of one user, still bounded by max attempts.
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     */
+    void send(KeycloakSessionFactory sessionFactory, String realmId, ComponentModel fedModel, RestUserFederationConfig config) {
+        final List<String> ids = new ArrayList<>();
+        final List<ResetActionContext> context = new ArrayList<>(1);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            context.add(ResetActionContext.of(realm, config.getPublicUrl()));
+            session.userLocalStorage().searchForUserByUserAttribute(OUTBOX_COMPONENT, fedModel.getId(), realm)
+                    .forEach(u -> ids.add(u.getId()));
+        });
+        if (ids.isEmpty()) {
+            return;
+        }
+        log.infof("[%s] Sending reset action emails to %s users", fedModel.getName(), ids.size());
+
+        final Throttle throttle = new Throttle(config.getResetActionRate());
+        final int maxAttempts = config.getResetActionRetry();
+        int done = 0;
+        int pending = 0;
+        for (String id : ids) {
+            try {
+                Optional<Pending> claimed = claim(sessionFactory, realmId, id, maxAttempts);
+                if (!claimed.isPresent()) {
+                    done++;
+                    continue;
+                }
+                List<String> remaining = sendActions(sessionFactory, realmId, fedModel, id, claimed.get().actions, context.get(0), throttle);
+                if (record(sessionFactory, realmId, id, remaining, claimed.get().attempts, maxAttempts)) {
+                    done++;
+                } else {
+                    pending++;
+                }
+            } catch (ModelException e) {
+                log.warn("Failed during reset action dispatch", e);
+                pending++;
+            }
+        }
+        log.infof("[%s] Reset action emails ended: %s users done, %s users pending or abandoned", fedModel.getName(), done, pending);
+    }
+
+    /**
+     * Count an attempt for a user before sending
+     *
+     * @return actions to send, empty if nothing to send (user removed, no email, or max attempts already reached)
+     */
+    private Optional<Pending> claim(KeycloakSessionFactory sessionFactory, String realmId, String id, int maxAttempts) {
+        final List<Pending> result = new ArrayList<>(1);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            UserModel user = session.userLocalStorage().getUserById(id, realm);
+            if (user == null) {
+                return;
+            }
+            List<String> actions = user.getAttribute(OUTBOX_ACTIONS) != null ? new ArrayList<>(user.getAttribute(OUTBOX_ACTIONS)) : new ArrayList<>();
+            int attempts = 0;
+            try {
+                attempts = Integer.parseInt(user.getFirstAttribute(OUTBOX_ATTEMPTS));
+            } catch (NumberFormatException e) {
+                log.debugf("Malformed outbox attempts for %s", user.getUsername());
+            }
+            if (user.getEmail() == null || actions.isEmpty()) {
+                clear(user);
+            } else if (attempts >= maxAttempts) {
+                log.errorf("Reset actions %s abandoned for %s after %s attempts", actions, user.getUsername(), attempts);
+                clear(user);
+            } else {
+                user.setSingleAttribute(OUTBOX_ATTEMPTS, String.valueOf(attempts + 1));
+                result.add(new Pending(actions, attempts + 1));
+            }
+        });
+        return result.stream().findFirst();
+    }
+
+    /**
+     * Send actions emails in a session without transaction: no database connection kept during mail round trips
+     *
+     * @return actions not sent
+     */
+    private List<String> sendActions(KeycloakSessionFactory sessionFactory, String realmId, ComponentModel fedModel, String id,
+                                     List<String> actions, ResetActionContext context, Throttle throttle) {
+        List<String> remaining = new ArrayList<>(actions);
+        KeycloakSession session = sessionFactory.create();
+        try {
+            RestUserFederationProvider restFedProvider = (RestUserFederationProvider) session.getProvider(UserStorageProvider.class, fedModel);
+            RealmModel realm = session.realms().getRealm(realmId);
+            UserModel user = session.userLocalStorage().getUserById(id, realm);
+            if (user != null) {
+                Iterator<String> it = remaining.iterator();
+                while (it.hasNext()) {
+                    throttle.acquire();
+                    if (restFedProvider.sendResetAction(realm, user, it.next(), context)) {
+                        it.remove();
+                    }
+                }
+            }
+        } finally {
+            session.close();
+        }
+        return remaining;
+    }
+
+    /**
+     * Store the outcome of an attempt
+     *
+     * @return true if every action has been sent
+     */
+    private boolean record(KeycloakSessionFactory sessionFactory, String realmId, String id, List<String> remaining,
+                           int attempts, int maxAttempts) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            UserModel user = session.userLocalStorage().getUserById(id, realm);
+            if (user == null) {
+                return;
+            }
+            if (remaining.isEmpty()) {
+                clear(user);
+            } else if (attempts >= maxAttempts) {
+                log.errorf("Reset actions %s abandoned for %s after %s attempts", remaining, user.getUsername(), attempts);
+                clear(user);
+            } else {
+                user.setAttribute(OUTBOX_ACTIONS, remaining);
+            }
+        });
+        return remaining.isEmpty();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Actions of a user claimed for an attempt
+     */
+    private static class Pending {
+        private final List<String> actions;
+        private final int attempts;
+
+        Pending(List<String> actions, int attempts) {
+            this.actions = actions;
+            this.attempts = attempts;
+        }
+    }
+
+    /**
+     * Space emails to respect a rate by second (no limit if rate <= 0)
+     */
+    private static class Throttle {
+        private final long intervalNanos;
+        private long next = System.nanoTime();
+
+        Throttle(int ratePerSecond) {
+            this.intervalNanos = ratePerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerSecond : 0;
+        }
+
+        void acquire() {
+            if (intervalNanos > 0) {
+                long now = System.nanoTime();
+                long wait = next - now;
+                next = Math.max(now, next) + intervalNanos;
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.api.user.ConflictPolicy;
+import lombok.Getter;
+import lombok.extern.jbosslog.JBossLog;
+import org.apache.commons.lang.StringUtils;
+import org.keycloak.component.ComponentModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import static com.lyra.idm.keycloak.federation.provider.RestUserFederationProviderFactory.*;
+
+/**
+ * Immutable typed snapshot of a federation component configuration.
+ * <p>
+ * Environment substitution and parsing are done once per component version,
+ * providers created for the same component share the same instance.
+ */
+@JBossLog
+@Getter
+public final class RestUserFederationConfig {
+
+    /**
+     * Last synchronization date property of user storage components
+     */
+    private static final String LAST_SYNC = "lastSync";
+
+    private final String componentId;
+    private final int version;
+
+    private final String url;
+    private final List<String> urls;
+    private final ConflictPolicy shardConflictPolicy;
+    private final Boolean proxyOn;
+    private final String prefix;
+    private final Boolean upperCase;
+    private final Boolean roleIsSync;
+    private final Boolean groupIsSync;
+    private final String roleClient;
+    private final Boolean attributesIsSync;
+    private final List<String> attributesAllowList;
+    private final Boolean uncheckFederation;
+    private final Boolean notCreateUsers;
+    private final List<String> resetActions;
+    private final Boolean resetActionAsync;
+    private final int resetActionRate;
+    private final int resetActionRetry;
+    private final String publicUrl;
+    private final Boolean byPass;
+    private final Boolean dryRun;
+    private final int spillThreshold;
+    private final Boolean checkpointEnabled;
+    private final int cacheEvictBatch;
+    private final int cacheClearRatio;
+    private final int throttleLatency;
+    private final int throttleProbeLatency;
+    private final int throttleMaxRate;
+    private final int hedgePercentile;
+    private final int hedgeBudget;
+    private final String snapshotDir;
+    private final int bulkImportSize;
+    private final TombstoneAction tombstoneAction;
+    private final int snapshotMaxAge;
+
+    private final Boolean clusterSync;
+    private final int clusterSyncPages;
+    private final int clusterSyncTimeout;
+
+    private final Boolean lookupEnabled;
+    private final int lookupNegativeTtl;
+    private final int lookupNegativeSize;
+
+    private final Boolean remoteMode;
+    private final int remoteCacheTtl;
+    private final int remoteCacheSize;
+    private final Boolean changeFeed;
+    private final int changeFeedWait;
+
+    private final Boolean passwordIsSync;
+    private final String passwordAlgorithm;
+    private final Integer passwordIteration;
+    private final int passwordBatchSize;
+    private final Boolean passwordValidation;
+    private final int passwordCacheTtl;
+    private final int passwordCacheSize;
+
+    private RestUserFederationConfig(ComponentModel model) {
+        this.componentId = model.getId();
+        this.version = version(model);
+
+        this.url = substitute(model, PROPERTY_URL);
+        this.urls = this.url != null
+                ? Collections.unmodifiableList(Arrays.stream(this.url.split(",")).map(String::trim).filter(u -> !u.isEmpty()).collect(Collectors.toList()))
+                : Collections.emptyList();
+        ConflictPolicy policy = ConflictPolicy.PRIORITY;
+        String policyStr = substitute(model, SHARD_CONFLICT_POLICY);
+        if (!StringUtils.isBlank(policyStr)) {
+            try {
+                policy = ConflictPolicy.valueOf(policyStr.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.warnf("Unknown shard conflict policy %s, use %s", policyStr, policy);
+            }
+        }
+        this.shardConflictPolicy = policy;
+        this.proxyOn = Boolean.valueOf(substitute(model, PROXY_ENABLED));
+        this.prefix = substitute(model, PREFIX);
+        this.upperCase = Boolean.valueOf(substitute(model, UPPERCASE));
+        this.roleIsSync = Boolean.valueOf(substitute(model, ROLE_SYNC));
+        this.groupIsSync = Boolean.valueOf(substitute(model, GROUP_SYNC));
+        this.roleClient = substitute(model, ROLE_CLIENT_SYNC);
+        this.attributesIsSync = Boolean.valueOf(substitute(model, ATTR_SYNC));
+        this.attributesAllowList = Collections.unmodifiableList(formatResetActions(substitute(model, ATTR_ALLOW_LIST)));
+        this.uncheckFederation = Boolean.valueOf(substitute(model, UNCHECK_FEDERATION));
+        this.notCreateUsers = Boolean.valueOf(substitute(model, NOT_CREATE_USERS));
+        this.resetActions = Collections.unmodifiableList(formatResetActions(model.getConfig().getFirst(RESET_ACTIONS)));
+        this.resetActionAsync = Boolean.valueOf(substitute(model, RESET_ACTION_ASYNC));
+        this.resetActionRate = intValue(model, RESET_ACTION_RATE, 10);
+        this.resetActionRetry = intValue(model, RESET_ACTION_RETRY, 3);
+        this.publicUrl = substitute(model, PUBLIC_URL);
+
+        Boolean byPassTmp = false;
+        try {
+            byPassTmp = Boolean.valueOf(substitute(model, BY_PASS));
+        } catch (IllegalArgumentException e) {
+            log.warn("By pass parameter '" + model.getConfig().getFirst(BY_PASS).replaceAll("[${}]", "") + "' not exists.");
+        }
+        this.byPass = byPassTmp;
+        this.dryRun = Boolean.valueOf(substitute(model, DRY_RUN));
+        this.spillThreshold = intValue(model, SPILL_THRESHOLD, 0);
+        this.checkpointEnabled = Boolean.valueOf(substitute(model, CHECKPOINT_ENABLED));
+        this.cacheEvictBatch = intValue(model, CACHE_EVICT_BATCH, 100);
+        this.cacheClearRatio = intValue(model, CACHE_CLEAR_RATIO, 50);
+        this.throttleLatency = intValue(model, THROTTLE_LATENCY, 0);
+        this.throttleProbeLatency = intValue(model, THROTTLE_PROBE_LATENCY, 0);
+        this.throttleMaxRate = intValue(model, THROTTLE_MAX_RATE, 200);
+        this.hedgePercentile = intValue(model, HEDGE_PERCENTILE, 0);
+        this.hedgeBudget = intValue(model, HEDGE_BUDGET, 5);
+        this.snapshotDir = substitute(model, SNAPSHOT_DIR);
+        this.bulkImportSize = intValue(model, BULK_IMPORT_SIZE, 0);
+        TombstoneAction action = TombstoneAction.DISABLE;
+        String actionStr = substitute(model, TOMBSTONE_ACTION);
+        if (!StringUtils.isBlank(actionStr)) {
+            try {
+                action = TombstoneAction.valueOf(actionStr.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.warnf("Unknown deleted users action %s, use %s", actionStr, action);
+            }
+        }
+        this.tombstoneAction = action;
+        this.snapshotMaxAge = intValue(model, SNAPSHOT_MAX_AGE, 168);
+
+        this.clusterSync = Boolean.valueOf(substitute(model, CLUSTER_SYNC));
+        this.clusterSyncPages = intValue(model, CLUSTER_SYNC_PAGES, 10);
+        this.clusterSyncTimeout = intValue(model, CLUSTER_SYNC_TIMEOUT, 7200);
+
+        this.lookupEnabled = Boolean.valueOf(substitute(model, LOOKUP_ENABLED));
+        this.lookupNegativeTtl = intValue(model, LOOKUP_NEGATIVE_TTL, 300);
+        this.lookupNegativeSize = intValue(model, LOOKUP_NEGATIVE_SIZE, 10000);
+
+        this.remoteMode = Boolean.valueOf(substitute(model, REMOTE_MODE));
+        this.remoteCacheTtl = intValue(model, REMOTE_CACHE_TTL, 300);
+        this.remoteCacheSize = intValue(model, REMOTE_CACHE_SIZE, 10000);
+        this.changeFeed = Boolean.valueOf(substitute(model, CHANGE_FEED));
+        this.changeFeedWait = Math.min(Math.max(intValue(model, CHANGE_FEED_WAIT, 30), 1), 60);
+
+        this.passwordIsSync = Boolean.valueOf(substitute(model, PASSWORD_SYNC));
+        String passwordAlgorithmTmp = "";
+        Integer passwordIterationTmp = 0;
+        String passwordIterationStr = substitute(model, PASSWORD_HASH_ITERATION);
+        if (this.passwordIsSync && passwordIterationStr != null) {
+            passwordAlgorithmTmp = substitute(model, PASSWORD_HASH_ALGORITHM).toLowerCase();
+            passwordIterationTmp = Integer.parseInt(passwordIterationStr);
+        }
+        this.passwordAlgorithm = passwordAlgorithmTmp;
+        this.passwordIteration = passwordIterationTmp;
+        this.passwordBatchSize = intValue(model, PASSWORD_BATCH_SIZE, 100);
+        this.passwordValidation = Boolean.valueOf(substitute(model, PASSWORD_VALIDATION));
+        this.passwordCacheTtl = intValue(model, PASSWORD_CACHE_TTL, 60);
+        this.passwordCacheSize = intValue(model, PASSWORD_CACHE_SIZE, 10000);
+    }
+
+    /**
+     * Build a configuration snapshot from component model
+     *
+     * @param model component
+     * @return configuration
+     */
+    public static RestUserFederationConfig of(ComponentModel model) {
+        return new RestUserFederationConfig(model);
+    }
+
+    /**
+     * Version of a component configuration, changes when any raw property changes.
+     * Last synchronization date excluded, updated by every synchronization.
+     *
+     * @param model component
+     * @return version
+     */
+    public static int version(ComponentModel model) {
+        if (model.getConfig() == null) {
+            return 0;
+        }
+        Map<String, List<String>> settings = new HashMap<>(model.getConfig());
+        settings.remove(LAST_SYNC);
+        return settings.hashCode();
+    }
+
+    /**
+     * Version of the settings changing how remote users are imported, scheduling settings excluded
+     *
+     * @return version
+     */
+    public int importVersion() {
+        return Objects.hash(url, prefix, upperCase, roleIsSync, groupIsSync, roleClient, attributesIsSync, attributesAllowList,
+                uncheckFederation, notCreateUsers, passwordIsSync, passwordAlgorithm, passwordIteration, tombstoneAction);
+    }
+
+    /**
+     * Version of the settings read by the change feed consumer: import settings, upstream connection and wait
+     *
+     * @return version
+     */
+    public int feedVersion() {
+        return Objects.hash(importVersion(), urls, proxyOn, changeFeedWait);
+    }
+
+    static List<String> formatResetActions(String resetActions) {
+        final String SEP = ",";
+        List<String> result;
+
+        if (!StringUtils.isBlank(resetActions)) {
+            result = Arrays.stream(resetActions.split(SEP)).map(String::trim).collect(Collectors.toList());
+        } else {
+            result = new ArrayList<>();
+        }
+        return result;
+    }
+
+    private static int intValue(ComponentModel model, String key, int defaultValue) {
+        String value = substitute(model, key);
+        int result = defaultValue;
+        if (!StringUtils.isBlank(value)) {
+            try {
+                result = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                log.warnf("Property %s is not an integer (%s), use default %s", key, value, defaultValue);
+            }
+        }
+        return result;
+    }
+
+    private static String substitute(ComponentModel model, String key) {
+        return EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(key));
+    }
+}
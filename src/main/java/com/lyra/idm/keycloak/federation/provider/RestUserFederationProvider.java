@@ -15,13 +15,14 @@
  */
 package com.lyra.idm.keycloak.federation.provider;
 
-import com.lyra.idm.keycloak.federation.api.user.UserRepository;
+import com.lyra.idm.keycloak.federation.api.user.UserMapper;
 import com.lyra.idm.keycloak.federation.model.UserDto;
 import lombok.extern.jbosslog.JBossLog;
-import org.jboss.resteasy.spi.ResteasyUriInfo;
 import org.keycloak.authentication.actiontoken.execactions.ExecuteActionsActionToken;
 import org.keycloak.common.util.Time;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.credential.CredentialInput;
+import org.keycloak.credential.CredentialInputValidator;
 import org.keycloak.credential.CredentialModel;
 import org.keycloak.credential.UserCredentialStore;
 import org.keycloak.email.EmailException;
@@ -36,77 +37,60 @@ import org.keycloak.models.UserCredentialModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.services.ServicesLogger;
 import org.keycloak.services.resources.LoginActionsService;
+import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.UserLookupProvider;
 
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
-import java.net.URI;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 
 /**
  * Rest User federation to import users from remote user store
  */
 @JBossLog
-public class RestUserFederationProvider implements UserStorageProvider {
+public class RestUserFederationProvider implements UserStorageProvider, UserLookupProvider, CredentialInputValidator {
 
     public static final int ROLE_MIN_LENGTH = 3;
     public static final String ACTION = "action";
+    /**
+     * Session attribute set by synchronization jobs, lookup is disabled in these sessions
+     */
+    public static final String SYNC_SESSION = "rest_federation_sync";
     private static final String TEMPLATE = "template";
     private final Pattern p3 = Pattern.compile("\\((.*?)\\)");
     protected KeycloakSession session;
     protected UserStorageProviderModel model;
-    protected UserRepository repository;
-    protected Boolean upperCaseName;
-    protected Boolean proxyOn;
-    protected String prefix;
-    protected Boolean roleIsSync;
-    protected String roleClient;
-    protected Boolean attributesIsSync;
-    protected Boolean uncheckFederation;
-    protected Boolean notCreateUsers;
-    protected List<String> resetActions;
-    protected String publicUrl;
-
-    protected Boolean passwordIsSync;
-    protected String passwordAlgorithm;
-    protected Integer passwordIteration;
-
-    public RestUserFederationProvider(KeycloakSession session, ComponentModel model, UserRepository repository,
-                                      Boolean roleIsSync, String roleClient,
-                                      String prefix, Boolean upperCaseName,
-                                      Boolean attributesIsSync,
-                                      Boolean passwordIsSync, String passwordAlgorithm, Integer passwordIteration,
-                                      Boolean proxyOn, Boolean uncheckFederation,
-                                      List<String> resetActions,
-                                      Boolean notCreateUsers,
-                                      String publicUrl
-    ) {
+    protected UserMapper repository;
+    protected RestUserFederationConfig config;
+    protected ComponentCache cache;
+
+    public RestUserFederationProvider(KeycloakSession session, ComponentModel model, UserMapper repository,
+                                      RestUserFederationConfig config, ComponentCache cache) {
         this.session = session;
         this.model = new UserStorageProviderModel(model);
         this.repository = repository;
-        this.prefix = prefix;
-        this.roleIsSync = roleIsSync;
-        this.roleClient = roleClient;
-        this.proxyOn = proxyOn;
-        this.upperCaseName = upperCaseName;
-        this.attributesIsSync = attributesIsSync;
-        this.uncheckFederation = uncheckFederation;
-        this.resetActions = resetActions;
-        this.notCreateUsers = notCreateUsers;
-        this.publicUrl = publicUrl;
-        this.passwordIsSync = passwordIsSync;
-        this.passwordAlgorithm = passwordAlgorithm;
-        this.passwordIteration = passwordIteration;
+        this.config = config;
+        this.cache = cache;
     }
 
     /**
@@ -115,15 +99,15 @@ public class RestUserFederationProvider implements UserStorageProvider {
      * @param remoteName
      * @return converted name
      */
-    private String convertRemoteName(String remoteName) {
+    String convertRemoteName(String remoteName) {
         //see standard https://openid.net/specs/openid-connect-core-1_0.html
         String name = remoteName;
 
         if (!RestUserFederationProviderFactory.OIDC_ATTRIBUTES.contains(name)) {
-            if (this.prefix != null && this.prefix.length() > 0) {
-                name = this.prefix + "_" + remoteName.replaceFirst("^" + this.prefix + "_", "");
+            if (config.getPrefix() != null && config.getPrefix().length() > 0) {
+                name = config.getPrefix() + "_" + remoteName.replaceFirst("^" + config.getPrefix() + "_", "");
             }
-            if (this.upperCaseName) {
+            if (config.getUpperCase()) {
                 name = name.toUpperCase(Locale.US);
             }
         }
@@ -151,6 +135,197 @@ public class RestUserFederationProvider implements UserStorageProvider {
         //n/a
     }
 
+    @Override
+    public UserModel getUserById(String id, RealmModel realm) {
+        //imported users are served by local storage
+        UserModel result = null;
+        if (config.getRemoteMode() && id != null) {
+            StorageId storageId = new StorageId(id);
+            if (model.getId().equals(storageId.getProviderId())) {
+                result = getUserByUsername(storageId.getExternalId(), realm);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public UserModel getUserByUsername(String username, RealmModel realm) {
+        UserModel result = null;
+        if (config.getRemoteMode() && username != null) {
+            result = remote(realm, "username:" + username.toLowerCase(Locale.US), () -> repository.getUser(username));
+        } else if (config.getLookupEnabled() && username != null) {
+            result = lookup(realm, "username:" + username.toLowerCase(Locale.US), () -> repository.getUser(username));
+        }
+        return result;
+    }
+
+    @Override
+    public UserModel getUserByEmail(String email, RealmModel realm) {
+        UserModel result = null;
+        if (config.getRemoteMode() && email != null) {
+            result = remote(realm, "email:" + email.toLowerCase(Locale.US), () -> repository.getUserByEmail(email));
+        } else if (config.getLookupEnabled() && email != null) {
+            result = lookup(realm, "email:" + email.toLowerCase(Locale.US), () -> repository.getUserByEmail(email));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean supportsCredentialType(String credentialType) {
+        return config.getPasswordValidation() && UserCredentialModel.PASSWORD.equals(credentialType);
+    }
+
+    @Override
+    public boolean isConfiguredFor(RealmModel realm, UserModel user, String credentialType) {
+        return supportsCredentialType(credentialType)
+                && (model.getId().equals(user.getFederationLink()) || model.getId().equals(new StorageId(user.getId()).getProviderId()));
+    }
+
+    /**
+     * Validate password with upstream, successful verifications are kept in cache
+     *
+     * @param realm
+     * @param user
+     * @param input
+     * @return true if valid
+     */
+    @Override
+    public boolean isValid(RealmModel realm, UserModel user, CredentialInput input) {
+        boolean result = false;
+        if (input instanceof UserCredentialModel && isConfiguredFor(realm, user, input.getType())) {
+            String password = ((UserCredentialModel) input).getValue();
+            VerifiedPasswordCache verified = cache.getVerifiedPasswords();
+            if (password == null) {
+                result = false;
+            } else if (verified.isVerified(user.getUsername(), password)) {
+                log.tracef("Password of %s verified (cached)", user.getUsername());
+                result = true;
+            } else {
+                try {
+                    result = repository.verify(user.getUsername(), password);
+                    if (result) {
+                        verified.verified(user.getUsername(), password);
+                    } else {
+                        verified.invalidate(user.getUsername());
+                    }
+                } catch (IOException e) {
+                    log.warn("Failed during password verification of " + user.getUsername(), e);
+                }
+            }
+        }
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface RemoteLookup {
+        Optional<UserDto> get() throws IOException;
+    }
+
+    /**
+     * Load a user unknown locally from upstream and import him.
+     * Misses are kept in negative cache, upstream errors are not.
+     *
+     * @param realm
+     * @param key    negative cache key
+     * @param remote upstream call
+     * @return imported user or null
+     */
+    private UserModel lookup(RealmModel realm, String key, RemoteLookup remote) {
+        UserModel result = null;
+        if (session.getAttribute(SYNC_SESSION) != null) {
+            log.tracef("Lookup of %s skipped during synchronization", key);
+        } else if (cache.getUnknownUsers().get(key) == null) {
+            try {
+                Optional<UserDto> restUser = remote.get().filter(u -> u.getUserName() != null && u.getEmail() != null && !u.isDeleted());
+                if (restUser.isPresent()) {
+                    result = importOnLookup(realm, restUser.get());
+                } else {
+                    cache.getUnknownUsers().put(key, Boolean.TRUE);
+                    log.debugf("User %s unknown by upstream", key);
+                }
+            } catch (IOException e) {
+                log.warn("Failed during lookup of " + key, e);
+            }
+        } else {
+            log.debugf("User %s unknown by upstream (cached)", key);
+        }
+        return result;
+    }
+
+    /**
+     * Remote mode: read-only user served from upstream, mapped records are kept in cache by username and email.
+     * Misses are kept in negative cache, upstream errors are not.
+     *
+     * @param realm
+     * @param key    cache key
+     * @param remote upstream call
+     * @return user adapter or null
+     */
+    private UserModel remote(RealmModel realm, String key, RemoteLookup remote) {
+        RemoteUser user = cache.getRemoteUsers().get(key);
+        if (user == null && cache.getUnknownUsers().get(key) == null) {
+            try {
+                Optional<UserDto> restUser = remote.get().filter(u -> u.getUserName() != null && u.getEmail() != null && !u.isDeleted());
+                if (restUser.isPresent()) {
+                    user = remoteUser(restUser.get());
+                    cache.getRemoteUsers().put("username:" + user.getUserName(), user);
+                    cache.getRemoteUsers().put("email:" + user.getEmail(), user);
+                } else {
+                    cache.getUnknownUsers().put(key, Boolean.TRUE);
+                    log.debugf("User %s unknown by upstream", key);
+                }
+            } catch (IOException e) {
+                log.warn("Failed during remote lookup of " + key, e);
+            }
+        }
+        return user != null ? new RemoteUserAdapter(session, realm, model, user, config.getRoleIsSync() ? roleClient(realm) : null) : null;
+    }
+
+    /**
+     * Map an upstream user as imported users are mapped
+     *
+     * @param restUser upstream user
+     * @return immutable record
+     */
+    RemoteUser remoteUser(UserDto restUser) {
+        Map<String, List<String>> attributes = new HashMap<>();
+        if (config.getAttributesIsSync() && restUser.getAttributes() != null) {
+            restUser.getAttributes().forEach((name, values) -> {
+                if (values != null && (config.getAttributesAllowList().isEmpty() || config.getAttributesAllowList().contains(name))) {
+                    attributes.put(convertRemoteName(name), Collections.unmodifiableList(new ArrayList<>(values)));
+                }
+            });
+        }
+        Set<String> roles = new HashSet<>();
+        Set<String> groups = new HashSet<>();
+        if (config.getRoleIsSync() && restUser.getRoles() != null) {
+            restUser.getRoles().forEach(r -> roles.add(convertRemoteName(r)));
+        }
+        if (config.getRoleIsSync() && config.getGroupIsSync() && restUser.getGroups() != null) {
+            restUser.getGroups().forEach(g -> groups.add(convertRemoteName(g)));
+        }
+        return new RemoteUser(restUser.getUserName().toLowerCase(Locale.US), restUser.getEmail().toLowerCase(Locale.US),
+                restUser.getFirstName(), restUser.getLastName(), restUser.isEnabled(), emailVerified(restUser), Collections.unmodifiableMap(attributes),
+                Collections.unmodifiableSet(roles), Collections.unmodifiableSet(groups));
+    }
+
+    private UserModel importOnLookup(RealmModel realm, UserDto restUser) {
+        UserModel result = null;
+        if (config.getNotCreateUsers()) {
+            log.debugf("notCreateUsers mode: Skip this users %s", restUser.getUserName());
+        } else if (session.userLocalStorage().getUserByUsername(restUser.getUserName().toLowerCase(Locale.US), realm) != null
+                || session.userLocalStorage().getUserByEmail(restUser.getEmail().toLowerCase(Locale.US), realm) != null) {
+            log.warnf("User '%s' is not imported on lookup as he already exists in Keycloak database", restUser.getUserName());
+        } else {
+            result = importUserFromRest(session, realm, restUser, config.getUncheckFederation());
+            if (config.getPasswordIsSync()) {
+                passwordSynchronization(realm, result, restUser);
+            }
+            log.infof("Imported user %s on lookup", result.getUsername());
+        }
+        return result;
+    }
+
     protected UserModel importUserFromRest(KeycloakSession session, RealmModel realm, UserDto restUser, final Boolean uncheck) {
         String restUsername = restUser.getUserName();
 
@@ -158,8 +333,12 @@ public class RestUserFederationProvider implements UserStorageProvider {
         log.debugf("Imported new user from Rest to Keycloak DB. Username: [%s], Email: [%s] for Realm: [%s] ",
                 local.getUsername(), restUser.getEmail(), realm.getName());
         UserModel result = proxy(realm, local, restUser, true, uncheck);
-        if (resetActions != null && !resetActions.isEmpty()) {
-            resetActionExecute(realm, result);
+        if (!config.getResetActions().isEmpty()) {
+            if (config.getResetActionAsync()) {
+                ResetActionOutbox.enqueue(result, model.getId(), config.getResetActions());
+            } else {
+                resetActionExecute(realm, result);
+            }
         }
         return result;
     }
@@ -199,16 +378,16 @@ public class RestUserFederationProvider implements UserStorageProvider {
     }
 
     private void customAction(RealmModel realm, UserModel local, EmailTemplateProvider emailTemp, String resetAction, UriInfo uriInfo, String clientId, int lifespan, int expiration) throws EmailException {
-        Map<String, String> config = new HashMap<>();
+        Map<String, String> emailConfig = new HashMap<>();
         List<String> resetActionsTmp = new ArrayList<>();
         resetActionsTmp.add(resetAction);
         Map<String, String> data = extractAction(resetAction);
         if (data.get(ACTION) != null && data.get(TEMPLATE) != null) {
             resetActionsTmp.add(data.get(ACTION).trim());
-            config.put(TEMPLATE, data.get(TEMPLATE));
+            emailConfig.put(TEMPLATE, data.get(TEMPLATE));
 
         } else {
-            config.put(TEMPLATE, resetAction);
+            emailConfig.put(TEMPLATE, resetAction);
         }
 
         ExecuteActionsActionToken token = new ExecuteActionsActionToken(local.getId(), expiration, resetActionsTmp, null, clientId);
@@ -216,115 +395,257 @@ public class RestUserFederationProvider implements UserStorageProvider {
         builder.queryParam("key", token.serialize(session, realm, uriInfo));
 
         String link = builder.build(realm.getName()).toString();
-        config.put("link", link);
-        config.put("linkExpiration", String.valueOf(TimeUnit.SECONDS.toMinutes(lifespan)));
+        emailConfig.put("link", link);
+        emailConfig.put("linkExpiration", String.valueOf(TimeUnit.SECONDS.toMinutes(lifespan)));
 
 
         emailTemp
                 .setAttribute(Constants.TEMPLATE_ATTR_REQUIRED_ACTIONS, token.getRequiredActions())
-                .sendSmtpTestEmail(config, local);
+                .sendSmtpTestEmail(emailConfig, local);
     }
 
     protected void resetActionExecute(RealmModel realm, UserModel local) {
         if (local.getEmail() != null) {
+            ResetActionContext context = ResetActionContext.of(realm, config.getPublicUrl());
+            for (String resetAction : config.getResetActions()) {
+                sendResetAction(realm, local, resetAction, context);
+            }
+        }
+    }
 
-            UriInfo uriInfo = new ResteasyUriInfo(URI.create(this.publicUrl));
-            ((ResteasyUriInfo) uriInfo).setUri(URI.create(this.publicUrl), URI.create("/auth"));
-
-            String clientId = Constants.ACCOUNT_MANAGEMENT_CLIENT_ID;
-            int lifespan = realm.getActionTokenGeneratedByAdminLifespan();
-            int expiration = Time.currentTime() + lifespan;
-            session.getContext().setRealm(realm);
-
-
-            for (String resetAction : resetActions) {
-                EmailTemplateProvider emailTemp = session.getProvider(EmailTemplateProvider.class);
-                if (emailTemp != null) {
-                    emailTemp.setRealm(realm);
-                    emailTemp.setUser(local);
-                    try {
-                        if ("UPDATE_PASSWORD".equals(resetAction) || "VERIFY_EMAIL".equals(resetAction)) {
-                            knownAction(realm, local, emailTemp, resetAction, uriInfo, clientId, lifespan, expiration);
-                        } else {
-                            customAction(realm, local, emailTemp, resetAction, uriInfo, clientId, lifespan, expiration);
-                        }
-
-                    } catch (EmailException e) {
-                        ServicesLogger.LOGGER.failedToSendActionsEmail(e);
-                    }
+    /**
+     * Send one reset action email
+     *
+     * @param realm
+     * @param local
+     * @param resetAction action or template name
+     * @param context     link and token settings of the realm
+     * @return true if email has been sent
+     */
+    protected boolean sendResetAction(RealmModel realm, UserModel local, String resetAction, ResetActionContext context) {
+        boolean result = false;
+        int expiration = Time.currentTime() + context.getLifespan();
+        session.getContext().setRealm(realm);
+
+        EmailTemplateProvider emailTemp = session.getProvider(EmailTemplateProvider.class);
+        if (emailTemp != null) {
+            emailTemp.setRealm(realm);
+            emailTemp.setUser(local);
+            try {
+                if ("UPDATE_PASSWORD".equals(resetAction) || "VERIFY_EMAIL".equals(resetAction)) {
+                    knownAction(realm, local, emailTemp, resetAction, context.getUriInfo(), context.getClientId(), context.getLifespan(), expiration);
                 } else {
-                    log.errorf("Missing FreeMarkerEmailTemplateCustomProvider module");
+                    customAction(realm, local, emailTemp, resetAction, context.getUriInfo(), context.getClientId(), context.getLifespan(), expiration);
                 }
+                result = true;
+            } catch (EmailException e) {
+                ServicesLogger.LOGGER.failedToSendActionsEmail(e);
             }
-
+        } else {
+            log.errorf("Missing FreeMarkerEmailTemplateCustomProvider module");
         }
+        return result;
     }
 
     private void attributeSynchronization(UserModel local, final UserDto restUser) {
         if (restUser.getAttributes() != null) {
             //clean attributes in local
-            local.getAttributes().keySet().removeIf(item -> item.startsWith(this.prefix));
+            local.getAttributes().keySet().removeIf(item -> item.startsWith(config.getPrefix()) && !ResetActionOutbox.isOutboxAttribute(item));
 
             Map<String, List<String>> map = restUser.getAttributes();
             for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+                if (!config.getAttributesAllowList().isEmpty() && !config.getAttributesAllowList().contains(entry.getKey())) {
+                    // Upstream may ignore projection headers
+                    continue;
+                }
                 local.setAttribute(convertRemoteName(entry.getKey()), entry.getValue());
                 log.debugf("Remote attribute %s affected to %s", entry.getKey(), restUser.getUserName());
             }
         }
     }
 
-    private void roleSynchronization(RealmModel realm, UserModel local, final UserDto restUser) {
-        //Realm roles
-        boolean isClientRoles = false;
+    /**
+     * Client receiving synchronized roles
+     *
+     * @param realm
+     * @return client or null for realm roles
+     */
+    ClientModel roleClient(RealmModel realm) {
         ClientModel client = null;
-
-        if (this.roleClient != null && roleClient.length() > ROLE_MIN_LENGTH) {
+        if (config.getRoleClient() != null && config.getRoleClient().length() > ROLE_MIN_LENGTH) {
             //Client roles
-            client = realm.getClientByClientId(this.roleClient);
-            if (client != null) {
-                isClientRoles = true;
-            } else {
-                isClientRoles = false;
-                log.warnf("Client %s doesn't exist. Roles will be created as realm roles.", this.roleClient);
+            client = realm.getClientByClientId(config.getRoleClient());
+            if (client == null) {
+                log.warnf("Client %s doesn't exist. Roles will be created as realm roles.", config.getRoleClient());
             }
         }
+        return client;
+    }
+
+    private void roleSynchronization(RealmModel realm, UserModel local, final UserDto restUser) {
+        //Realm roles
+        ClientModel client = roleClient(realm);
+        boolean isClientRoles = client != null;
 
 
         if (restUser.getRoles() != null) {
             //clean roles in local
             if (isClientRoles) {
-                local.getClientRoleMappings(client).removeIf(item -> item.getName().startsWith(this.prefix));
+                local.getClientRoleMappings(client).removeIf(item -> item.getName().startsWith(config.getPrefix()));
             } else {
-                local.getRealmRoleMappings().removeIf(item -> item.getName().startsWith(this.prefix));
+                local.getRealmRoleMappings().removeIf(item -> item.getName().startsWith(config.getPrefix()));
             }
 
             for (String role : restUser.getRoles()) {
-                String roleNorm = convertRemoteName(role);
-                RoleModel roleModel;
-                if (isClientRoles) {
-                    roleModel = client.getRole(roleNorm);
-                    if (roleModel == null) {
-                        //Create role
-                        roleModel = client.addRole(roleNorm);
-                        log.infof("Remote role %s granted created", role);
-                    }
+                //Apply role
+                local.grantRole(remoteRole(realm, client, role));
+                log.debugf("Remote role %s granted to %s", role, restUser.getUserName());
+            }
+        }
 
-                } else {
-                    roleModel = realm.getRole(roleNorm);
-                    if (roleModel == null) {
-                        //Create role
-                        roleModel = realm.addRole(roleNorm);
-                        log.infof("Remote role %s granted created", role);
-                    }
+    }
+
+    /**
+     * Local role of a remote role, created if missing
+     *
+     * @param realm
+     * @param client client receiving roles, null for realm roles
+     * @param role   remote role name
+     * @return role
+     */
+    private RoleModel remoteRole(RealmModel realm, ClientModel client, String role) {
+        String roleNorm = convertRemoteName(role);
+        RoleModel roleModel = client != null ? client.getRole(roleNorm) : realm.getRole(roleNorm);
+        if (roleModel == null) {
+            //Create role
+            roleModel = client != null ? client.addRole(roleNorm) : realm.addRole(roleNorm);
+            log.infof("Remote role %s granted created", role);
+        }
+        return roleModel;
+    }
+
+    /**
+     * Group mode: roles are carried by groups and only memberships are maintained.
+     * The user joins his remote groups, or else the group of his set of roles.
+     * Synchronized groups (prefixed) not expected anymore are left. Remote groups don't carry the roles of the user:
+     * with remote groups, remote roles stay direct grants; with a group of roles, direct synchronized roles are removed.
+     *
+     * @param realm
+     * @param local
+     * @param restUser
+     */
+    private void groupSynchronization(RealmModel realm, UserModel local, final UserDto restUser) {
+        if (restUser.getGroups() == null && restUser.getRoles() == null) {
+            return;
+        }
+        ClientModel client = roleClient(realm);
+        Set<String> expected = new HashSet<>();
+        if (restUser.getGroups() != null) {
+            restUser.getGroups().forEach(g -> expected.add(convertRemoteName(g)));
+        } else if (!restUser.getRoles().isEmpty()) {
+            expected.add(roleSetGroupName(restUser.getRoles()));
+        }
+
+        //membership diff
+        Set<String> joined = new HashSet<>();
+        for (GroupModel group : new ArrayList<>(local.getGroups())) {
+            if (isSynchronized(group.getName()) && !expected.contains(group.getName())) {
+                local.leaveGroup(group);
+                log.debugf("%s left group %s", restUser.getUserName(), group.getName());
+            } else {
+                joined.add(group.getName());
+            }
+        }
+        for (String name : expected) {
+            if (!joined.contains(name)) {
+                local.joinGroup(remoteGroup(realm, client, name, restUser.getGroups() == null ? restUser.getRoles() : null));
+                log.debugf("%s joined group %s", restUser.getUserName(), name);
+            }
+        }
+
+        if (restUser.getGroups() != null) {
+            roleSynchronization(realm, local, restUser);
+        } else {
+            //roles granted before group mode
+            List<RoleModel> direct = new ArrayList<>(client != null ? local.getClientRoleMappings(client) : local.getRealmRoleMappings());
+            direct.stream().filter(r -> isSynchronized(r.getName())).forEach(local::deleteRoleMapping);
+        }
+    }
+
+    /**
+     * Local group of a synchronized group name, created if missing.
+     * Created groups have an id derived from realm and name: nodes creating the same group at once
+     * fail on the id instead of creating two top level groups with the same name.
+     *
+     * @param realm
+     * @param client client receiving roles, null for realm roles
+     * @param name   group name
+     * @param roles  remote roles granted to a new group, null for none
+     * @return group
+     */
+    private GroupModel remoteGroup(RealmModel realm, ClientModel client, String name, Set<String> roles) {
+        String id = cache.getGroupIds().get(name);
+        GroupModel group = id != null ? realm.getGroupById(id) : null;
+        if (group == null) {
+            group = realm.getGroupById(groupId(realm, name));
+        }
+        if (group == null) {
+            group = realm.getTopLevelGroups().stream().filter(g -> name.equals(g.getName())).findFirst().orElse(null);
+        }
+        if (group == null) {
+            group = realm.createGroup(groupId(realm, name), name);
+            realm.moveGroup(group, null);
+            if (roles != null) {
+                for (String role : roles) {
+                    group.grantRole(remoteRole(realm, client, role));
                 }
+            }
+            log.infof("Remote group %s created", name);
+        }
+        cache.getGroupIds().put(name, group.getId());
+        return group;
+    }
 
+    /**
+     * @param realm
+     * @param name  synchronized group name
+     * @return id of the group created by any node
+     */
+    static String groupId(RealmModel realm, String name) {
+        return UUID.nameUUIDFromBytes((realm.getId() + "/" + name).getBytes(StandardCharsets.UTF_8)).toString();
+    }
 
-                //Apply role
-                local.grantRole(roleModel);
-                log.debugf("Remote role %s granted to %s", role, restUser.getUserName());
+    /**
+     * Group name of a set of roles: prefix and digest of sorted role names
+     *
+     * @param roles remote roles
+     * @return group name
+     */
+    String roleSetGroupName(Set<String> roles) {
+        String joined = roles.stream().map(this::convertRemoteName).sorted().collect(Collectors.joining("\n"));
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(joined.getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder(config.getPrefix()).append("_roles_");
+            for (int i = 0; i < 8; i++) {
+                result.append(String.format("%02x", digest[i]));
             }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
+    }
+
+    private boolean isSynchronized(String name) {
+        return config.getPrefix() != null && !config.getPrefix().isEmpty()
+                && name.toUpperCase(Locale.US).startsWith(config.getPrefix().toUpperCase(Locale.US));
+    }
 
+    /**
+     * @param restUser upstream user
+     * @return email verified flag sent by upstream, else enabled flag
+     */
+    static boolean emailVerified(UserDto restUser) {
+        return restUser.getEmailVerified() != null ? restUser.getEmailVerified() : restUser.isEnabled();
     }
 
     private void mapper(UserModel local, final UserDto restUser) {
@@ -333,7 +654,7 @@ public class RestUserFederationProvider implements UserStorageProvider {
         local.setLastName(restUser.getLastName());
         local.setUsername(restUser.getUserName().toLowerCase(Locale.US));
         local.setEmail(restUser.getEmail().toLowerCase(Locale.US));
-        local.setEmailVerified(restUser.isEnabled());
+        local.setEmailVerified(emailVerified(restUser));
         local.setEnabled(restUser.isEnabled());
     }
 
@@ -344,6 +665,7 @@ public class RestUserFederationProvider implements UserStorageProvider {
      * @param local
      * @param restUser
      * @return UserModel
+     * @see #passwordSynchronization(RealmModel, UserModel, UserDto) password is synchronized apart, by batch
      */
     protected UserModel proxy(RealmModel realm, UserModel local, final UserDto restUser, final Boolean over,
                               final Boolean uncheck) {
@@ -361,51 +683,69 @@ public class RestUserFederationProvider implements UserStorageProvider {
             mapper(local, restUser);
 
             //pass roles along
-            if (this.roleIsSync) {
+            if (config.getRoleIsSync() && config.getGroupIsSync()) {
+                groupSynchronization(realm, local, restUser);
+            } else if (config.getRoleIsSync()) {
                 roleSynchronization(realm, local, restUser);
             }
 
             //pass attributes along
-            if (this.attributesIsSync) {
+            if (config.getAttributesIsSync()) {
                 attributeSynchronization(local, restUser);
             }
 
-            if (this.passwordIsSync) {
-                passwordSynchronization(realm, local, restUser);
-            }
-
             result = local;
         }
         return result;
     }
 
     private CredentialModel fillCredential(CredentialModel mo, UserDto restUser) {
-        mo.setHashIterations(this.passwordIteration);
-        mo.setAlgorithm(this.passwordAlgorithm);
+        mo.setHashIterations(config.getPasswordIteration());
+        mo.setAlgorithm(config.getPasswordAlgorithm());
         mo.setType(UserCredentialModel.PASSWORD);
         mo.setValue(restUser.getPassword());
         mo.setCreatedDate(Time.currentTimeMillis());
         return mo;
     }
 
-    private void passwordSynchronization(RealmModel realm, UserModel local, UserDto restUser) {
+    private boolean sameCredential(CredentialModel mo, UserDto restUser) {
+        return restUser.getPassword().equals(mo.getValue())
+                && config.getPasswordAlgorithm().equalsIgnoreCase(mo.getAlgorithm())
+                && config.getPasswordIteration() == mo.getHashIterations();
+    }
+
+    /**
+     * Synchronize hashed password, credential is written only if hash, algorithm or iterations changed
+     *
+     * @param realm
+     * @param local
+     * @param restUser
+     * @return synchronization status
+     */
+    protected PasswordStatus passwordSynchronization(RealmModel realm, UserModel local, UserDto restUser) {
+        PasswordStatus result;
         if (restUser.getPassword() != null) {
 
-            List<CredentialModel> cModels = getCredentialStore().getStoredCredentials(realm, local);
-            Optional<CredentialModel> moOpt = cModels.stream()
-                    .filter(f -> f.getType().equals(UserCredentialModel.PASSWORD))
-                    .findFirst();
+            List<CredentialModel> cModels = getCredentialStore().getStoredCredentialsByType(realm, local, UserCredentialModel.PASSWORD);
+            Optional<CredentialModel> moOpt = cModels.stream().findFirst();
 
-            if (moOpt.isPresent()) {
-                // Update credential
-                getCredentialStore().updateCredential(realm, local, fillCredential(moOpt.get(), restUser));
-            } else {
+            if (!moOpt.isPresent()) {
                 // Create Credential
                 getCredentialStore().createCredential(realm, local, fillCredential(new CredentialModel(), restUser));
+                result = PasswordStatus.CREATED;
+            } else if (sameCredential(moOpt.get(), restUser)) {
+                log.debugf("Password unchanged for: %s", restUser.getUserName());
+                result = PasswordStatus.UNCHANGED;
+            } else {
+                // Update credential
+                getCredentialStore().updateCredential(realm, local, fillCredential(moOpt.get(), restUser));
+                result = PasswordStatus.UPDATED;
             }
         } else {
             log.warnf("Missing password for: %s", restUser.getUserName());
+            result = PasswordStatus.MISSING;
         }
+        return result;
     }
 
     private UserCredentialStore getCredentialStore() {
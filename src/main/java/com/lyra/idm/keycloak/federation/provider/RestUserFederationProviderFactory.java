@@ -15,11 +15,31 @@
  */
 package com.lyra.idm.keycloak.federation.provider;
 
+import com.lyra.idm.keycloak.federation.api.user.ConflictPolicy;
+import com.lyra.idm.keycloak.federation.api.user.ShardedUserRepository;
+import com.lyra.idm.keycloak.federation.api.user.UserMapper;
+import com.lyra.idm.keycloak.federation.api.user.UserPage;
+import com.lyra.idm.keycloak.federation.api.user.UserProjection;
 import com.lyra.idm.keycloak.federation.api.user.UserRepository;
+import com.lyra.idm.keycloak.federation.api.user.UserSpool;
 import com.lyra.idm.keycloak.federation.api.user.UserService;
 import com.lyra.idm.keycloak.federation.model.UserDto;
+import com.lyra.idm.keycloak.federation.sync.ClusterPartitionTransport;
+import com.lyra.idm.keycloak.federation.sync.ChangeFeedConsumer;
+import com.lyra.idm.keycloak.federation.sync.PartitionPlan;
+import com.lyra.idm.keycloak.federation.sync.PartitionTransport;
+import com.lyra.idm.keycloak.federation.sync.PartitionedSync;
+import com.lyra.idm.keycloak.federation.sync.SingleFlightSync;
+import com.lyra.idm.keycloak.federation.sync.SyncCheckpoint;
+import com.lyra.idm.keycloak.federation.sync.SyncCheckpointStore;
+import com.lyra.idm.keycloak.federation.sync.SyncMode;
+import com.lyra.idm.keycloak.federation.sync.SyncScheduler;
+import com.lyra.idm.keycloak.federation.sync.UserSnapshot;
 import lombok.extern.jbosslog.JBossLog;
 import org.apache.commons.lang.StringUtils;
+import org.jboss.resteasy.spi.HttpRequest;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
@@ -39,12 +59,24 @@ import org.keycloak.storage.UserStorageProviderModel;
 import org.keycloak.storage.user.ImportSynchronization;
 import org.keycloak.storage.user.SynchronizationResult;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -60,11 +92,18 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
     public static final String PROVIDER_NAME = "Rest User Federation";
 
     public static final String PROPERTY_URL = "url";
+    public static final String SHARD_CONFLICT_POLICY = "shard_conflict_policy";
     public static final String ATTR_SYNC = "attr_sync";
+    public static final String ATTR_ALLOW_LIST = "attr_allow_list";
     public static final String ROLE_SYNC = "role_sync";
+    public static final String GROUP_SYNC = "group_sync";
     public static final String PASSWORD_SYNC = "password_sync";
     public static final String PASSWORD_HASH_ALGORITHM = "password_hash_algorithm";
     public static final String PASSWORD_HASH_ITERATION = "password_hash_iteration";
+    public static final String PASSWORD_BATCH_SIZE = "password_batch_size";
+    public static final String PASSWORD_VALIDATION = "password_validation";
+    public static final String PASSWORD_CACHE_TTL = "password_cache_ttl";
+    public static final String PASSWORD_CACHE_SIZE = "password_cache_size";
     protected static final String[] SUPPORTED_HASH_ALGORITHM = {"SHA256", "PBKDF2-SHA256"};
 
     public static final String ROLE_CLIENT_SYNC = "role_client_sync";
@@ -75,14 +114,68 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
     public static final String PROXY_PORT = "proxyPort";
     public static final String UNCHECK_FEDERATION = "uncheck_federation";
     public static final String RESET_ACTIONS = "reset_action";
+    public static final String RESET_ACTION_ASYNC = "reset_action_async";
+    public static final String RESET_ACTION_RATE = "reset_action_rate";
+    public static final String RESET_ACTION_RETRY = "reset_action_retry";
     public static final String NOT_CREATE_USERS = "not_create_users";
     public static final String BY_PASS = "by_pass";
+    public static final String DRY_RUN = "dry_run";
+    public static final String SPILL_THRESHOLD = "spill_threshold";
+    public static final String CHECKPOINT_ENABLED = "checkpoint_enabled";
+    public static final String CACHE_EVICT_BATCH = "cache_evict_batch";
+    public static final String CACHE_CLEAR_RATIO = "cache_clear_ratio";
+    public static final String THROTTLE_LATENCY = "throttle_latency";
+    public static final String THROTTLE_PROBE_LATENCY = "throttle_probe_latency";
+    public static final String THROTTLE_MAX_RATE = "throttle_max_rate";
+    public static final String HEDGE_PERCENTILE = "hedge_percentile";
+    public static final String HEDGE_BUDGET = "hedge_budget";
+    public static final String SNAPSHOT_DIR = "snapshot_dir";
+    public static final String BULK_IMPORT_SIZE = "bulk_import_size";
+    public static final String TOMBSTONE_ACTION = "tombstone_action";
+    public static final String SNAPSHOT_MAX_AGE = "snapshot_max_age";
+    public static final String CLUSTER_SYNC = "cluster_sync";
+    public static final String CLUSTER_SYNC_PAGES = "cluster_sync_pages";
+    public static final String CLUSTER_SYNC_TIMEOUT = "cluster_sync_timeout";
+    public static final String LOOKUP_ENABLED = "lookup_enabled";
+    public static final String LOOKUP_NEGATIVE_TTL = "lookup_negative_ttl";
+    public static final String LOOKUP_NEGATIVE_SIZE = "lookup_negative_size";
+    public static final String REMOTE_MODE = "remote_mode";
+    public static final String REMOTE_CACHE_TTL = "remote_cache_ttl";
+    public static final String REMOTE_CACHE_SIZE = "remote_cache_size";
+    public static final String CHANGE_FEED = "change_feed";
+    public static final String CHANGE_FEED_WAIT = "change_feed_wait";
     public static final String PUBLIC_URL = "public_url";
     public static final int URL_MIN_LENGHT = 10;
     public static final int PREFIX_MIN_LENGTH = 2;
     protected static final Set<String> OIDC_ATTRIBUTES;
     protected static final List<ProviderConfigProperty> configMetadata;
     private static final TimeZone TZ = TimeZone.getTimeZone("UTC");
+    private static final int PARTITION_CLAIM_TIMEOUT = 3600;
+    private static final int DEFAULT_SYNC_MAX_CONCURRENT = 4;
+    private static final int DEFAULT_SYNC_HOST_LIMIT = 2;
+    private static final int DEFAULT_SYNC_JITTER = 30;
+    private static final int DEFAULT_SYNC_MAX_WAIT = 3600;
+    private static final Comparator<UserDto> PRECEDENCE = Comparator
+            .comparing(UserDto::getUserName, Comparator.nullsLast(Comparator.<String>naturalOrder()))
+            .thenComparing(UserDto::getLastModified, Comparator.nullsLast(Comparator.<Long>reverseOrder()))
+            .thenComparing(UserDto::isDeleted)
+            .thenComparing(UserDto::getEmail, Comparator.nullsLast(Comparator.<String>naturalOrder()));
+
+    private final Map<String, RestUserFederationConfig> configs = new ConcurrentHashMap<>();
+    private final Map<String, ComponentCache> caches = new ConcurrentHashMap<>();
+    private final Map<String, OperationCosts> costs = new ConcurrentHashMap<>();
+    private final ResetActionOutbox resetActionOutbox = new ResetActionOutbox();
+    private final SingleFlightSync singleFlight = new SingleFlightSync();
+    private final Map<String, ChangeFeedConsumer> feeds = new ConcurrentHashMap<>();
+    // Replaced by init with SPI configuration
+    private SyncScheduler scheduler = new SyncScheduler(DEFAULT_SYNC_MAX_CONCURRENT, DEFAULT_SYNC_HOST_LIMIT, 0);
+    private final ExecutorService partitionExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "rest-federation-partition");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private PartitionTransport partitionTransport;
+    private PartitionedSync partitionedSync;
 
     static {
         // Get OIDC standard attributes
@@ -104,11 +197,36 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
                 .label("By-pass")
                 .helpText("Disabling federation based on context. ex: ${COLLECT_DISABLE_FEDERATION} or 'true'")
                 .add()
+                .property().name(DRY_RUN)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .label("Dry-run")
+                .helpText("Compute and log the synchronization plan (counts, conflicts, roles and attributes churn, projected duration) without writing")
+                .add()
                 .property().name(PROPERTY_URL)
                 .type(ProviderConfigProperty.STRING_TYPE)
                 .label("Remote User Information Url")
                 .defaultValue("https://")
-                .helpText("Remote repository url")
+                .helpText("Remote repository url, or comma separated shard urls by priority")
+                .add()
+                .property().name(SHARD_CONFLICT_POLICY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(ConflictPolicy.PRIORITY.name(), ConflictPolicy.MOST_RECENT.name())
+                .defaultValue(ConflictPolicy.PRIORITY.name())
+                .label("Shard conflict policy")
+                .helpText("User returned by several shards: PRIORITY (first url wins) or MOST_RECENT (greatest lastModified wins)")
+                .add()
+                .property().name(HEDGE_PERCENTILE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .label("Page hedging percentile")
+                .helpText("Page requests slower than this percentile of recent latencies are sent again, first answer wins (0: no hedging)")
+                .add()
+                .property().name(HEDGE_BUDGET)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("5")
+                .label("Page hedging budget (%)")
+                .helpText("Maximum hedged requests in percent of page requests")
                 .add()
                 .property().name(PREFIX)
                 .type(ProviderConfigProperty.STRING_TYPE)
@@ -127,6 +245,12 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
                 .label("Enable roles synchronization")
                 .helpText("Apply and create remote roles")
                 .add()
+                .property().name(GROUP_SYNC)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .label("Synchronize roles through groups")
+                .helpText("Users join groups (remote groups or one group by set of roles) carrying the roles, instead of being granted roles")
+                .add()
                 .property().name(ROLE_CLIENT_SYNC)
                 .type(ProviderConfigProperty.STRING_TYPE)
                 .label("Client name to affect roles")
@@ -138,6 +262,11 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
                 .label("Enable attributes synchronization")
                 .helpText("Apply remote attributes")
                 .add()
+                .property().name(ATTR_ALLOW_LIST)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Attributes allow list")
+                .helpText("Comma separated remote attributes to synchronize, all if empty. Others are neither requested nor decoded")
+                .add()
                 //Password synchronization
                 .property().name(PASSWORD_SYNC)
                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
@@ -157,6 +286,29 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
                 .defaultValue("500000")
                 .label("Number of iteration for hashing password")
                 .add()
+                .property().name(PASSWORD_BATCH_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("100")
+                .label("Password synchronization batch size")
+                .helpText("Number of password credentials written in one transaction")
+                .add()
+                .property().name(PASSWORD_VALIDATION)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .label("Enable remote password validation")
+                .helpText("Validate passwords of federated users with upstream (/verify)")
+                .add()
+                .property().name(PASSWORD_CACHE_TTL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("60")
+                .label("Verified password cache duration")
+                .helpText("Seconds during which a password verified by upstream is not verified again, 0 to disable")
+                .add()
+                .property().name(PASSWORD_CACHE_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("10000")
+                .label("Verified password cache size")
+                .add()
                 //
                 .property().name(UNCHECK_FEDERATION)
                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
@@ -176,11 +328,159 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
                 .helpText("ex: VERIFY_EMAIL,welcome.ftl(UPDATE_PASSWORD)")
                 .defaultValue("")
                 .add()
+                .property().name(RESET_ACTION_ASYNC)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .label("Send actions emails in background")
+                .helpText("Store actions emails at user creation and send them after synchronization")
+                .add()
+                .property().name(RESET_ACTION_RATE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("10")
+                .label("Actions emails by second")
+                .helpText("Rate limit of background actions emails, 0 for no limit")
+                .add()
+                .property().name(RESET_ACTION_RETRY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("3")
+                .label("Actions emails attempts")
+                .helpText("Number of attempts before abandoning a background actions email")
+                .add()
                 .property().name(PROXY_ENABLED)
                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
                 .label("Use Proxy")
                 .helpText("Add Java Properties: http(s).proxyHost,http(s).proxyPort")
                 .add()
+                .property().name(CLUSTER_SYNC)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .label("Cluster full synchronization")
+                .helpText("Split full synchronization in page ranges imported by every cluster node")
+                .add()
+                .property().name(CLUSTER_SYNC_PAGES)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("10")
+                .label("Pages by cluster partition")
+                .add()
+                .property().name(CLUSTER_SYNC_TIMEOUT)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("7200")
+                .label("Cluster synchronization timeout")
+                .helpText("Seconds to wait for every partition")
+                .add()
+                .property().name(LOOKUP_ENABLED)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .label("Import users on first login")
+                .helpText("Search unknown users by username or email on upstream (/user/{userName}, /email/{email}) and import them")
+                .add()
+                .property().name(LOOKUP_NEGATIVE_TTL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("300")
+                .label("Unknown users cache duration")
+                .helpText("Seconds during which a user unknown by upstream is not requested again")
+                .add()
+                .property().name(LOOKUP_NEGATIVE_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("10000")
+                .label("Unknown users cache size")
+                .add()
+                .property().name(REMOTE_MODE)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .label("Remote users (no import)")
+                .helpText("Serve read-only users from upstream without importing them. Synchronizations only clear the remote users cache")
+                .add()
+                .property().name(REMOTE_CACHE_TTL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("300")
+                .label("Remote users cache duration")
+                .helpText("Seconds before requesting again a remote user")
+                .add()
+                .property().name(REMOTE_CACHE_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("10000")
+                .label("Remote users cache size")
+                .helpText("Maximum number of remote users kept in cache")
+                .add()
+                .property().name(CHANGE_FEED)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .label("Consume upstream change feed")
+                .helpText("Apply changes as they arrive from upstream /changes (Server-Sent Events or long-polling), periodic changed users synchronization skipped while the feed is available")
+                .add()
+                .property().name(CHANGE_FEED_WAIT)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("30")
+                .label("Change feed wait (s)")
+                .helpText("Long-polling wait requested to upstream (1 to 60), a connection without data for twice as long is reopened")
+                .add()
+                .property().name(SPILL_THRESHOLD)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .label("Users in memory limit (MB)")
+                .helpText("Estimated size of fetched users kept in memory before spilling them to a temporary file (0: no limit)")
+                .add()
+                .property().name(CHECKPOINT_ENABLED)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .label("Resumable synchronization")
+                .helpText("Import page by page with a checkpoint, resume an interrupted synchronization and retry failed users (/user/{userName})")
+                .add()
+                .property().name(CACHE_EVICT_BATCH)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("100")
+                .label("User cache evictions batch size")
+                .helpText("Updated users evicted from user cache in one transaction")
+                .add()
+                .property().name(CACHE_CLEAR_RATIO)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("50")
+                .label("Realm user cache eviction ratio (%)")
+                .helpText("Percentage of the realm users updated above which every user of the realm is evicted once at the end (0: never)")
+                .add()
+                .property().name(THROTTLE_LATENCY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .label("Import latency ceiling (ms)")
+                .helpText("Import rate is halved when import transactions are slower on average, increased otherwise (0: no throttling)")
+                .add()
+                .property().name(THROTTLE_PROBE_LATENCY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .label("Login probe latency ceiling (ms)")
+                .helpText("Import rate is halved when a user lookup, as done by logins, is slower (0: no probe)")
+                .add()
+                .property().name(THROTTLE_MAX_RATE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("200")
+                .label("Import max rate (users/s)")
+                .helpText("Starting and maximum import rate with throttling")
+                .add()
+                .property().name(TOMBSTONE_ACTION)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(TombstoneAction.DISABLE.name(), TombstoneAction.REMOVE.name())
+                .defaultValue(TombstoneAction.DISABLE.name())
+                .label("Deleted users action")
+                .helpText("Action on local users received as deleted (\"deleted\": true): DISABLE or REMOVE")
+                .add()
+                .property().name(BULK_IMPORT_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .label("New users by transaction")
+                .helpText("Users unknown locally created in one transaction by chunks of this size (0: one transaction by user). Ignored with synchronous actions emails")
+                .add()
+                .property().name(SNAPSHOT_DIR)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Full synchronization snapshot directory")
+                .helpText("Directory of the last full export snapshots. Full synchronization imports only added and changed users. Disabled if empty")
+                .add()
+                .property().name(SNAPSHOT_MAX_AGE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("168")
+                .label("Snapshot max age (hours)")
+                .helpText("Hours after which a full synchronization imports every user again (0: never)")
+                .add()
                 .property().name(PUBLIC_URL)
                 .type(ProviderConfigProperty.STRING_TYPE)
                 .label("Public URL of IDM")
@@ -201,18 +501,6 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
         return DF.format(date);
     }
 
-    private static List<String> formatResetActions(String resetActions) {
-        final String SEP = ",";
-        List<String> result;
-
-        if (!StringUtils.isBlank(resetActions)) {
-            result = Arrays.asList(resetActions.split(SEP)).stream().map(String::trim).collect(Collectors.toList());
-        } else {
-            result = new ArrayList<>();
-        }
-        return result;
-    }
-
     public static <T> Predicate<T> distinctByKey(Function<? super T, ?> keyExtractor) {
         Map<Object, Boolean> seen = new ConcurrentHashMap<>();
         return t -> seen.putIfAbsent(keyExtractor.apply(t), Boolean.TRUE) == null;
@@ -234,7 +522,7 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
         final Boolean roleIsSync = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(config.getConfig().getFirst(ROLE_SYNC)));
         final Boolean attributeIsSync = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(config.getConfig().getFirst(ATTR_SYNC)));
         final Boolean proxyOn = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(config.getConfig().getFirst(PROXY_ENABLED)));
-        final List<String> resetActions = formatResetActions(config.getConfig().getFirst(RESET_ACTIONS));
+        final List<String> resetActions = RestUserFederationConfig.formatResetActions(config.getConfig().getFirst(RESET_ACTIONS));
         final String publicURL = EnvSubstitutor.envStrSubstitutor.replace(config.getConfig().getFirst(PUBLIC_URL));
 
         final Boolean passwordIsSync = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(config.getConfig().getFirst(PASSWORD_SYNC)));
@@ -322,6 +610,36 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
         if (!valid) {
             throw new ComponentValidationException("Invalid configuration. " + comment);
         }
+        remoteCachePolicy(config);
+    }
+
+    /**
+     * Remote mode: Keycloak user cache keeps adapters of remote users until evicted with the default policy.
+     * Their lifespan is bounded by the remote users cache duration, unless the component cache is disabled.
+     *
+     * @param config component saved after validation
+     */
+    static void remoteCachePolicy(ComponentModel config) {
+        RestUserFederationConfig restConfig = RestUserFederationConfig.of(config);
+        if (!restConfig.getRemoteMode()) {
+            return;
+        }
+        UserStorageProviderModel model = new UserStorageProviderModel(config);
+        long maxLifespan = TimeUnit.SECONDS.toMillis(restConfig.getRemoteCacheTtl());
+        if (model.getCachePolicy() == UserStorageProviderModel.CachePolicy.NO_CACHE) {
+            return;
+        }
+        if (maxLifespan <= 0) {
+            model.setCachePolicy(UserStorageProviderModel.CachePolicy.NO_CACHE);
+        } else if (model.getCachePolicy() != UserStorageProviderModel.CachePolicy.MAX_LIFESPAN || model.getMaxLifespan() <= 0
+                || model.getMaxLifespan() > maxLifespan) {
+            model.setCachePolicy(UserStorageProviderModel.CachePolicy.MAX_LIFESPAN);
+            model.setMaxLifespan(maxLifespan);
+        } else {
+            return;
+        }
+        config.setConfig(model.getConfig());
+        log.infof("[%s] Remote mode: user cache policy %s, max lifespan %s ms", config.getName(), model.getCachePolicy(), maxLifespan);
     }
 
     @Override
@@ -336,61 +654,376 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
 
     @Override
     public RestUserFederationProvider create(KeycloakSession session, ComponentModel model) {
-        final String url = EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(PROPERTY_URL));
-        final Boolean attributesIsSync = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(ATTR_SYNC)));
-        final String rolePrefix = EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(PREFIX));
-        final Boolean roleIsSync = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(ROLE_SYNC)));
-        final String roleClient = EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(ROLE_CLIENT_SYNC));
-        final Boolean upperCase = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(UPPERCASE)));
-        final Boolean proxyOn = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(PROXY_ENABLED)));
-        final Boolean uncheckFederation = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(UNCHECK_FEDERATION)));
-        final Boolean notCreateUsers = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(NOT_CREATE_USERS)));
-        final List<String> resetActions = formatResetActions(model.getConfig().getFirst(RESET_ACTIONS));
-        final String publicUrl = EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(PUBLIC_URL));
-
-        final Boolean passwordIsSync = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(PASSWORD_SYNC)));
-        String passwordAlgorithm = "";
-        Integer passwordIteration = 0;
-        String passwordIterationStr = EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(PASSWORD_HASH_ITERATION));
-        if (passwordIsSync == true && passwordAlgorithm != null && passwordIterationStr != null) {
-            passwordAlgorithm = EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(PASSWORD_HASH_ALGORITHM)).toLowerCase();
-            passwordIteration = Integer.parseInt(passwordIterationStr);
-        }
-
-
-        UserRepository repository = new UserRepository(url, proxyOn);
-        return new RestUserFederationProvider(session, model, repository,
-                roleIsSync, roleClient,
-                rolePrefix, upperCase, attributesIsSync,
-                passwordIsSync, passwordAlgorithm, passwordIteration,
-                proxyOn, uncheckFederation,
-                resetActions,
-                notCreateUsers,
-                publicUrl
-        );
+        final RestUserFederationConfig config = getConfig(model);
+        return new RestUserFederationProvider(session, model, repository(config), config, getCache(config));
+    }
+
+    /**
+     * Remote repository of a component: single upstream or shards
+     *
+     * @param config component configuration
+     * @return repository
+     */
+    protected UserMapper repository(RestUserFederationConfig config) {
+        UserMapper result;
+        if (config.getUrls().size() > 1) {
+            ComponentCache cache = getCache(config);
+            result = new ShardedUserRepository(config.getUrls(), config.getProxyOn(), config.getShardConflictPolicy(),
+                    cache.getShardHealth(), projection(config), cache::getPageHedger, cache.getClients());
+        } else {
+            result = singleRepository(config);
+        }
+        return result;
+    }
+
+    private UserRepository singleRepository(RestUserFederationConfig config) {
+        ComponentCache cache = getCache(config);
+        return new UserRepository(config.getUrl(), config.getProxyOn(), projection(config), cache.getPageHedger(config.getUrl()),
+                cache.getBulkUnsupported(), cache.getClients());
+    }
+
+    /**
+     * User fields needed by enabled synchronizations
+     *
+     * @param config component configuration
+     * @return projection
+     */
+    static UserProjection projection(RestUserFederationConfig config) {
+        return UserProjection.of(config.getRoleIsSync(), config.getRoleIsSync() && config.getGroupIsSync(),
+                config.getAttributesIsSync(), config.getPasswordIsSync(), config.getAttributesAllowList());
+    }
+
+    /**
+     * Configuration snapshot of a component, built once per component version
+     *
+     * @param model component
+     * @return configuration
+     */
+    protected RestUserFederationConfig getConfig(ComponentModel model) {
+        final int version = RestUserFederationConfig.version(model);
+        RestUserFederationConfig config = configs.get(model.getId());
+        if (config == null || config.getVersion() != version) {
+            config = RestUserFederationConfig.of(model);
+            configs.put(model.getId(), config);
+            dropCache(model.getId());
+            log.debugf("[%s] Configuration loaded (version %s)", model.getName(), version);
+        }
+        return config;
+    }
+
+    /**
+     * Runtime caches of a component, built with its configuration
+     *
+     * @param config component configuration
+     * @return caches
+     */
+    protected ComponentCache getCache(RestUserFederationConfig config) {
+        return caches.computeIfAbsent(config.getComponentId(), id -> new ComponentCache(config));
+    }
+
+    /**
+     * Drop runtime caches of a component and close its upstream clients
+     *
+     * @param componentId
+     * @return dropped caches, null if none
+     */
+    private ComponentCache dropCache(String componentId) {
+        ComponentCache result = caches.remove(componentId);
+        if (result != null) {
+            result.close();
+        }
+        return result;
+    }
+
+    /**
+     * Measured synchronization costs of a component, kept across configuration updates
+     *
+     * @param model component
+     * @return costs
+     */
+    protected OperationCosts getCosts(ComponentModel model) {
+        return costs.computeIfAbsent(model.getId(), id -> new OperationCosts());
     }
 
     @Override
     public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
-        return syncImpl(Optional.empty(), sessionFactory, realmId, model);
+        return trigger(Optional.empty(), sessionFactory, realmId, model);
     }
 
     @Override
     public SynchronizationResult syncSince(Date date, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
-        return syncImpl(Optional.of(date), sessionFactory, realmId, model);
+        if (isFedByChangeFeed(sessionFactory, realmId, model)) {
+            return SynchronizationResult.ignored();
+        }
+        return trigger(Optional.of(date), sessionFactory, realmId, model);
+    }
+
+    /**
+     * Run a synchronization now if requested by an administrator, or hand it to the scheduler threads otherwise:
+     * Keycloak runs periodic tasks of every realm on the single thread of its timer.
+     * Triggers of a component go through {@link SingleFlightSync} first, so that a trigger received while another
+     * synchronization runs on this node is queued or coalesced rather than refused by the cluster claim.
+     *
+     * @param date           empty for a full synchronization
+     * @param sessionFactory
+     * @param realmId
+     * @param model
+     * @return counters, ignored if handed over
+     */
+    private SynchronizationResult trigger(Optional<Date> date, KeycloakSessionFactory sessionFactory, final String realmId,
+                                          final UserStorageProviderModel model) {
+        if (isAdminRequest()) {
+            return singleFlight.execute(model.getId(), model.getName(), date, syncTask(sessionFactory, realmId, model, false));
+        }
+        scheduler.submit(model.getName(), () -> {
+            try {
+                SynchronizationResult result = singleFlight.execute(model.getId(), model.getName(), date,
+                        syncTask(sessionFactory, realmId, model, true));
+                log.infof("[%s] Periodic synchronization ended: '%s'", model.getName(), result);
+            } catch (Exception e) {
+                log.errorf(e, "[%s] Periodic synchronization failed", model.getName());
+            }
+        });
+        return SynchronizationResult.ignored();
+    }
+
+    /**
+     * Synchronization of a component run by {@link SingleFlightSync}: the last synchronization date of a changed
+     * users trigger skipped is restored, Keycloak having already moved it forward
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param model
+     * @param handedOver     claimed in the cluster
+     * @return task
+     */
+    private SingleFlightSync.SyncTask syncTask(KeycloakSessionFactory sessionFactory, final String realmId, final ComponentModel model,
+                                               boolean handedOver) {
+        return new SingleFlightSync.SyncTask() {
+            @Override
+            public SynchronizationResult run(Optional<Date> date) {
+                return handedOver ? claimedSync(date, sessionFactory, realmId, model) : scheduledSync(date, sessionFactory, realmId, model);
+            }
+
+            @Override
+            public void skipped(Date since) {
+                restoreLastSync(sessionFactory, realmId, model, since);
+            }
+        };
+    }
+
+    /**
+     * Handed over synchronization, run by one node at a time for each mode, as Keycloak's cluster lock only covers the
+     * hand-over. The claim key differs from the one of {@link #clusterSync}, claimed again inside.
+     * Changes since the date of an updated synchronization not run are requested by the next one.
+     *
+     * @param date           empty for a full synchronization
+     * @param sessionFactory
+     * @param realmId
+     * @param model
+     * @return counters, ignored if running on another node
+     */
+    private SynchronizationResult claimedSync(Optional<Date> date, KeycloakSessionFactory sessionFactory, final String realmId,
+                                              final ComponentModel model) {
+        if (partitionTransport == null) {
+            return scheduledSync(date, sessionFactory, realmId, model);
+        }
+        SyncMode mode = date.isPresent() ? SyncMode.UPDATED : SyncMode.FULL;
+        Optional<SynchronizationResult> result;
+        try {
+            result = partitionTransport.claim("rest-federation-periodic::" + mode + "::" + model.getId(), PARTITION_CLAIM_TIMEOUT,
+                    () -> scheduledSync(date, sessionFactory, realmId, model));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        if (result.isPresent()) {
+            return result.get();
+        }
+        log.infof("[%s] Periodic %s synchronization skipped: running on another node", model.getName(), mode);
+        date.ifPresent(d -> restoreLastSync(sessionFactory, realmId, model, d));
+        return SynchronizationResult.ignored();
+    }
+
+    /**
+     * Synchronizations requested by an administrator run in the admin request, others (periodic synchronizations of
+     * Keycloak's timer) are handed over
+     *
+     * @return true if called while serving an HTTP request
+     */
+    protected boolean isAdminRequest() {
+        return ResteasyProviderFactory.getContextData(HttpRequest.class) != null;
+    }
+
+    /**
+     * Start the change feed consumer of a component if enabled, periodic changed users synchronizations keep it running
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param model
+     * @return true if changes are applied by the feed, false to poll changed users
+     */
+    protected boolean isFedByChangeFeed(KeycloakSessionFactory sessionFactory, final String realmId, final UserStorageProviderModel model) {
+        final RestUserFederationConfig config = getConfig(model);
+        if (!config.getChangeFeed() || config.getByPass() || config.getRemoteMode() || config.getDryRun()) {
+            stopFeed(model.getId());
+            return false;
+        }
+        if (config.getUrls().size() > 1) {
+            log.warnf("[%s] Change feed not available with shards, polling changed users", model.getName());
+            return false;
+        }
+        final UserRepository repository = singleRepository(config);
+        final int version = config.feedVersion();
+        ChangeFeedConsumer consumer = feeds.compute(model.getId(), (id, current) -> {
+            if (current != null && current.getVersion() == version) {
+                return current;
+            }
+            if (current != null) {
+                // Built with previous settings
+                current.stop();
+                log.infof("[%s] Change feed settings changed, consumer restarted", model.getName());
+            }
+            return new ChangeFeedConsumer(id, model.getName(), version,
+                    (eventId, listener) -> repository.readChanges(eventId, config.getChangeFeedWait(), listener),
+                    users -> applyChanges(users, sessionFactory, realmId, model),
+                    () -> SyncCheckpointStore.loadEventId(sessionFactory, realmId, id),
+                    eventId -> SyncCheckpointStore.saveEventId(sessionFactory, realmId, id, eventId),
+                    partitionTransport);
+        });
+        consumer.start();
+        if (consumer.isHealthy()) {
+            log.debugf("[%s] Changes applied by change feed ('%s' so far), changed users synchronization skipped",
+                    model.getName(), consumer.getApplied());
+            return true;
+        }
+        log.warnf("[%s] Change feed failing (%s failures), polling changed users", model.getName(), consumer.getFailures());
+        return false;
+    }
+
+    /**
+     * Import users received from the change feed, one import at a time with synchronizations of the component,
+     * admitted by the node scheduler
+     *
+     * @param users          changed users, tombstones included
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @throws IllegalStateException changes not applied, read again from the last stored event id
+     */
+    void applyChanges(List<UserDto> users, KeycloakSessionFactory sessionFactory, final String realmId, final ComponentModel fedModel) {
+        // Settings loaded by the last synchronization, the consumer is restarted when feed settings change
+        RestUserFederationConfig loaded = configs.get(fedModel.getId());
+        final RestUserFederationConfig config = loaded != null ? loaded : getConfig(fedModel);
+        final SynchronizationResult syncResult = new SynchronizationResult();
+        final boolean applied;
+        try {
+            applied = singleFlight.executeChanges(fedModel.getId(), fedModel.getName(), () -> {
+                try {
+                    return scheduler.run(fedModel.getId(), fedModel.getName(), hosts(config), () -> {
+                        importUsers(protector(new HashSet<>(users), syncResult), sessionFactory, realmId, fedModel, config, syncResult);
+                        return true;
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (TimeoutException e) {
+                    log.warnf("[%s] Change feed import given up: %s", fedModel.getName(), e.getMessage());
+                    return false;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the running synchronization", e);
+        }
+        if (!applied) {
+            throw new IllegalStateException("Changes of '" + users.size() + "' users not applied");
+        }
+        log.debugf("[%s] Change feed: '%s'", fedModel.getName(), syncResult.toString());
+    }
+
+    ChangeFeedConsumer feed(String componentId) {
+        return feeds.get(componentId);
+    }
+
+    private void stopFeed(String componentId) {
+        ChangeFeedConsumer consumer = feeds.remove(componentId);
+        if (consumer != null) {
+            consumer.stop();
+        }
+    }
+
+    /**
+     * Synchronization admitted by the node scheduler, shared by every component
+     *
+     * @param date           empty for a full synchronization
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @return counters, ignored if interrupted or not admitted while waiting
+     */
+    protected SynchronizationResult scheduledSync(Optional<Date> date, KeycloakSessionFactory sessionFactory, final String realmId,
+                                                  final ComponentModel fedModel) {
+        try {
+            return scheduler.run(fedModel.getId(), fedModel.getName(), hosts(getConfig(fedModel)),
+                    () -> syncImpl(date, sessionFactory, realmId, fedModel));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warnf("[%s] Synchronization interrupted while waiting for a slot", fedModel.getName());
+            date.ifPresent(d -> restoreLastSync(sessionFactory, realmId, fedModel, d));
+            return SynchronizationResult.ignored();
+        } catch (TimeoutException e) {
+            log.warnf("[%s] Synchronization given up: %s", fedModel.getName(), e.getMessage());
+            // Changes since this date are requested by the next synchronization
+            date.ifPresent(d -> restoreLastSync(sessionFactory, realmId, fedModel, d));
+            return SynchronizationResult.ignored();
+        }
+    }
+
+    /**
+     * Upstream hosts of a component
+     *
+     * @param config component configuration
+     * @return host and port of each url
+     */
+    static Set<String> hosts(RestUserFederationConfig config) {
+        Set<String> result = new HashSet<>();
+        for (String url : config.getUrls()) {
+            try {
+                String authority = URI.create(url).getAuthority();
+                result.add(authority != null ? authority.toLowerCase(Locale.US) : url);
+            } catch (IllegalArgumentException e) {
+                result.add(url);
+            }
+        }
+        return result;
     }
 
-    private Set<UserDto> protector(Set<UserDto> list, final SynchronizationResult syncResult) {
+    /**
+     * Keep one record by user name and by email, in a deterministic order: for a user name, the most recently modified
+     * record wins, then a live record wins over a tombstone
+     *
+     * @param list       remote users
+     * @param syncResult counters, ignored records are failed
+     * @return users to synchronize, sorted by user name
+     */
+    static Set<UserDto> protector(Set<UserDto> list, final SynchronizationResult syncResult) {
+        // Tombstones may have no email
+        final Predicate<UserDto> distinctEmail = distinctByKey(u -> u.getEmail());
         Set<UserDto> result = list.stream()
                 .filter(Objects::nonNull)
-                .filter(distinctByKey(u -> u.getEmail()))
+                .sorted(PRECEDENCE)
+                .filter(u -> (u.isDeleted() && u.getUserName() != null) || distinctEmail.test(u))
                 .filter(distinctByKey(u -> u.getUserName()))
                 .collect(Collectors.toCollection(()
                         -> new TreeSet<>(Comparator.comparing(UserDto::getUserName))));
 
+        // Compared by value, the result compares user names only
+        final Set<UserDto> kept = new HashSet<>(result);
         list.stream()
                 .distinct()
-                .filter(not(result::contains))
+                .filter(not(kept::contains))
                 .collect(Collectors.toList())
                 .forEach(u -> {
                     log.warn("Ignored user: name->" + u.getUserName() + " email->" + u.getEmail());
@@ -402,136 +1035,61 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
     }
 
     protected SynchronizationResult syncImpl(Optional<Date> date, KeycloakSessionFactory sessionFactory, final String realmId, final ComponentModel fedModel) {
-        final String url = EnvSubstitutor.envStrSubstitutor.replace(fedModel.getConfig().getFirst(PROPERTY_URL));
-        final Boolean proxyOn = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(fedModel.getConfig().getFirst(PROXY_ENABLED)));
-        final Boolean uncheck = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(fedModel.getConfig().getFirst(UNCHECK_FEDERATION)));
-        final Boolean notCreateUsers = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(fedModel.getConfig().getFirst(NOT_CREATE_USERS)));
+        final RestUserFederationConfig config = getConfig(fedModel);
 
-        UserRepository repository = new UserRepository(url, proxyOn);
-        final SynchronizationResult syncResult = new SynchronizationResult();
+        UserMapper repository = repository(config);
+        final SynchronizationResult syncResult;
         Set<UserDto> users;
 
-        Boolean byPass = false;
-        try {
-            byPass = Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(fedModel.getConfig().getFirst(BY_PASS)));
-        } catch (IllegalArgumentException e) {
-            log.warn("By pass parameter '" + fedModel.getConfig().getFirst(BY_PASS).replaceAll("[${}]", "") + "' not exists.");
-        }
-
-        if (!byPass) {
+        if (config.getRemoteMode() && !config.getByPass()) {
+            //Nothing imported, cached users are loaded again from upstream
+            final TtlCache<String, RemoteUser> remoteUsers = getCache(config).getRemoteUsers();
+            final Set<RemoteUser> cached = new HashSet<>(remoteUsers.values());
+            remoteUsers.clear();
+            evictRemoteUsers(sessionFactory, realmId, fedModel, cached);
+            log.infof("[%s] Remote mode: users not imported, '%s' remote users evicted from caches", fedModel.getName(), cached.size());
+            return SynchronizationResult.empty();
+        } else if (!config.getByPass()) {
             //Federation enabled
-            if (date.isPresent()) {
-                users = repository.getUpdatedUsers(formatDate(date.get()));
+            if (!date.isPresent() && config.getClusterSync() && !config.getDryRun() && partitionedSync != null && config.getUrls().size() == 1) {
+                syncResult = clusterSync(sessionFactory, realmId, fedModel, config, singleRepository(config));
+            } else if (config.getCheckpointEnabled() && !config.getDryRun() && config.getUrls().size() == 1) {
+                syncResult = checkpointedSync(date, sessionFactory, realmId, fedModel, config, singleRepository(config));
+            } else if (config.getSpillThreshold() > 0 && !config.getDryRun() && config.getUrls().size() == 1) {
+                syncResult = spooledSync(date, sessionFactory, realmId, fedModel, config, singleRepository(config));
             } else {
-                //Every
-                users = repository.getUsers();
-            }
-
-            class BooleanHolder {
-                private boolean value = true;
-            }
-            final BooleanHolder exists = new BooleanHolder();
-
-            if (users != null) {
-                log.infof("[%s] Federation starting for '%s' users", fedModel.getName(), users.size());
-                Set<UserDto> usersClean = protector(users, syncResult);
-                for (final UserDto restUser : usersClean) {
-                    if (restUser.getUserName() != null && restUser.getEmail() != null) {
-                        try {
-                            // Process each user in it's own transaction to avoid global fail
-                            KeycloakModelUtils.runJobInTransaction(sessionFactory, new KeycloakSessionTask() {
-                                @Override
-                                public void run(KeycloakSession session) {
-                                    RestUserFederationProvider restFedProvider = (RestUserFederationProvider) session.getProvider(UserStorageProvider.class, fedModel);
-                                    RealmModel currentRealm = session.realms().getRealm(realmId);
-
-                                    String username = restUser.getUserName();
-                                    exists.value = true;
-                                    UserModel currentUser = session.userLocalStorage().getUserByUsername(username, currentRealm);
-
-                                    if (currentUser == null) {
-
-                                        if (!notCreateUsers) {
-
-                                            UserModel storageCurrentUser = session.userStorageManager().getUserByUsername(username, currentRealm);
-
-                                            if (storageCurrentUser != null) {
-                                                //He's in DB
-                                                UserCache userCache = session.userCache();
-                                                if (userCache != null) {
-                                                    userCache.evict(currentRealm, storageCurrentUser);
-                                                }
-                                                log.debugf("User %s exists. Evict him", username);
-
-                                            } else {
-
-                                                // Add new user to Keycloak
-                                                exists.value = false;
-
-                                                restFedProvider.importUserFromRest(session, currentRealm, restUser, uncheck);
-                                                syncResult.increaseAdded();
-                                            }
-
-                                        } else {
-                                            log.debugf("notCreateUsers mode: Skip this users " + username);
-                                        }
-                                    } else {
-                                        //Uncheck mode ignore federation origin
-                                        if ((fedModel.getId().equals(currentUser.getFederationLink()) || uncheck) && restUser.getUserName().equals(currentUser.getUsername())) {
-
-                                            // Update keycloak user
-                                            restFedProvider.updateUserFromRest(currentRealm, restUser, currentUser, uncheck);
-
-                                            session.userCache().evict(currentRealm, currentUser);
-                                            log.debugf("Updated user from REST: %s", currentUser.getUsername());
-                                            syncResult.increaseUpdated();
-                                        } else {
-                                            log.warnf("User '%s' is not updated during sync as he already exists in Keycloak database but is not linked to federation provider '%s'", username, fedModel.getName());
-                                            syncResult.increaseFailed();
-                                        }
-                                    }
-                                }
-
-                            });
-                        } catch (ModelException me) {
-                            log.warn("Failed during import user from REST", me);
-                            syncResult.increaseFailed();
-
-                            // Remove user if we already added him during this transaction
-                            if (!exists.value) {
-                                KeycloakModelUtils.runJobInTransaction(sessionFactory, new KeycloakSessionTask() {
-
-                                    @Override
-                                    public void run(KeycloakSession session) {
-                                        RealmModel currentRealm = session.realms().getRealm(realmId);
-
-                                        if (restUser.getUserName() != null) {
-                                            UserModel existing = session.userLocalStorage().getUserByUsername(restUser.getUserName(), currentRealm);
-                                            if (existing != null) {
-                                                UserCache userCache = session.userCache();
-                                                if (userCache != null) {
-                                                    userCache.evict(currentRealm, existing);
-                                                }
-                                                session.userLocalStorage().removeUser(currentRealm, existing);
-                                            }
-                                        }
-                                    }
-                                });
-                            }
-                        } catch (IllegalStateException ie) {
-                            log.error("Failed during import user from REST", ie);
-                            syncResult.increaseFailed();
-                        }
-                    } else {
-                        syncResult.increaseFailed();
-                        log.warnf("Missing attributes (user,email,password ?) for %s (%s)", restUser.getUserName() != null ? restUser.getUserName() : "", restUser.getEmail() != null ? restUser.getEmail() : "");
+                syncResult = new SynchronizationResult();
+                long fetchStart = System.currentTimeMillis();
+                if (date.isPresent()) {
+                    users = repository.getUpdatedUsers(formatDate(date.get()));
+                } else {
+                    //Every
+                    users = repository.getUsers();
+                }
+                repository.getLastReports().forEach(r -> log.infof("[%s] Shard %s", fedModel.getName(), r));
+
+                if (users != null && config.getDryRun()) {
+                    SyncPlan plan = new SyncPlanner().plan(protector(users, syncResult), sessionFactory, realmId, fedModel, config,
+                            getCosts(fedModel), System.currentTimeMillis() - fetchStart);
+                    log.infof("[%s] Dry-run plan for '%s' users: %s", fedModel.getName(), users.size(), plan.toString());
+                    if (date.isPresent()) {
+                        // Changes planned but not imported must be fetched again once dry-run is disabled
+                        restoreLastSync(sessionFactory, realmId, fedModel, date.get());
                     }
+                    return SynchronizationResult.empty();
+                } else if (users != null && !date.isPresent() && !StringUtils.isBlank(config.getSnapshotDir())) {
+                    snapshotSync(protector(users, syncResult), sessionFactory, realmId, fedModel, config, syncResult);
+                } else if (users != null) {
+                    log.infof("[%s] Federation starting for '%s' users", fedModel.getName(), users.size());
+                    importUsers(protector(users, syncResult), sessionFactory, realmId, fedModel, config, syncResult);
+                } else {
+                    log.errorf("Users is null. Check networking issue (see logs).");
                 }
-            } else {
-                log.errorf("Users is null. Check networking issue (see logs).");
             }
 
-
+            if (config.getResetActionAsync() && !config.getResetActions().isEmpty()) {
+                resetActionOutbox.dispatch(sessionFactory, realmId, fedModel, config);
+            }
         } else {
             //Federation by passed
             log.warnf("By Pass Federation '%s'", PROVIDER_NAME);
@@ -544,14 +1102,861 @@ public class RestUserFederationProviderFactory implements UserStorageProviderFac
         return syncResult;
     }
 
+    /**
+     * Full synchronization importing only users added or changed since the snapshot of the previous full synchronization.
+     * Every user is imported without usable snapshot. The snapshot is then replaced, users failing to import left out.
+     *
+     * @param users          every remote user
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     * @param syncResult     counters
+     */
+    private void snapshotSync(Set<UserDto> users, KeycloakSessionFactory sessionFactory, final String realmId,
+                              final ComponentModel fedModel, final RestUserFederationConfig config, final SynchronizationResult syncResult) {
+        final Path file = snapshotFile(config);
+        final UserSnapshot snapshot = UserSnapshot.of(users);
+        Optional<UserSnapshot.Diff> diff = snapshot.diff(file, config.importVersion(), TimeUnit.HOURS.toMillis(config.getSnapshotMaxAge()));
+        Collection<UserDto> imported = users;
+        if (diff.isPresent()) {
+            log.infof("[%s] Difference with previous export of '%s' users: %s", fedModel.getName(), users.size(), diff.get());
+            if (!diff.get().getRemoved().isEmpty()) {
+                log.debugf("[%s] Users removed from export: %s", fedModel.getName(), diff.get().getRemoved());
+            }
+            imported = users.stream().filter(u -> diff.get().contains(u.getUserName())).collect(Collectors.toList());
+        }
+        log.infof("[%s] Federation starting for '%s' users", fedModel.getName(), imported.size());
+        final Set<String> failed = new HashSet<>();
+        importUsers(imported, sessionFactory, realmId, fedModel, config, syncResult, u -> failed.add(u.getUserName()));
+        try {
+            snapshot.write(file, config.importVersion(), failed);
+        } catch (IOException e) {
+            log.warnf(e, "[%s] Snapshot %s not written, next full synchronization imports every user", fedModel.getName(), file);
+        }
+    }
+
+    /**
+     * Put back the last synchronization date of a component, moved by Keycloak before calling syncSince
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param date           date of the previous synchronization
+     */
+    private static void restoreLastSync(KeycloakSessionFactory sessionFactory, final String realmId, final ComponentModel fedModel, final Date date) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            ComponentModel current = realm.getComponent(fedModel.getId());
+            if (current != null) {
+                UserStorageProviderModel model = new UserStorageProviderModel(current);
+                model.setLastSync((int) TimeUnit.MILLISECONDS.toSeconds(date.getTime()));
+                realm.updateComponent(model);
+            }
+        });
+        log.infof("[%s] Last synchronization date kept at %s", fedModel.getName(), formatDate(date));
+    }
+
+    private static Path snapshotFile(RestUserFederationConfig config) {
+        return Paths.get(config.getSnapshotDir(), config.getComponentId() + ".snapshot");
+    }
+
+    /**
+     * Synchronization page by page with a checkpoint committed every {@link SyncCheckpointStore#SAVE_INTERVAL}.
+     * A checkpoint left by an interrupted or failing run of the same mode is resumed: its failed users are retried,
+     * then its next pages are imported. Updated users are requested with the date of the resumed run.
+     * A completed run only left its failed users: after their retry, a new run requests changes since the date
+     * given by Keycloak, already moved forward.
+     *
+     * @param date           last synchronization date for updated users
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     * @param repository
+     * @return counters of this run
+     */
+    SynchronizationResult checkpointedSync(Optional<Date> date, KeycloakSessionFactory sessionFactory, final String realmId,
+                                                   final ComponentModel fedModel, final RestUserFederationConfig config, UserRepository repository) {
+        final SynchronizationResult syncResult = new SynchronizationResult();
+        final SyncMode mode = date.isPresent() ? SyncMode.UPDATED : SyncMode.FULL;
+        final SyncCheckpoint checkpoint;
+        Optional<SyncCheckpoint> previous = SyncCheckpointStore.load(sessionFactory, realmId, fedModel.getId(), mode);
+
+        if (previous.isPresent() && !previous.get().isComplete()) {
+            checkpoint = previous.get();
+            log.infof("[%s] Resuming synchronization %s after page %s/%s, retrying %s failed users", fedModel.getName(),
+                    checkpoint.getRunId(), checkpoint.getLastPage(), checkpoint.getTotalPages(), checkpoint.getFailedUsers().size());
+            retryFailedUsers(checkpoint, sessionFactory, realmId, fedModel, config, repository, syncResult);
+        } else {
+            checkpoint = SyncCheckpoint.start(mode, date.map(RestUserFederationProviderFactory::formatDate).orElse(null));
+            if (previous.isPresent()) {
+                SyncCheckpoint completed = previous.get();
+                log.infof("[%s] Synchronization %s completed, retrying %s failed users", fedModel.getName(),
+                        completed.getRunId(), completed.getFailedUsers().size());
+                retryFailedUsers(completed, sessionFactory, realmId, fedModel, config, repository, syncResult);
+                // Still failing users are retried by the next run
+                completed.getFailedUsers().forEach(checkpoint::addFailedUser);
+            }
+        }
+
+        long lastSave = System.currentTimeMillis();
+        try {
+            for (int page = checkpoint.getLastPage() + 1; checkpoint.getTotalPages() == 0 || page <= checkpoint.getTotalPages(); page++) {
+                UserPage current = mode == SyncMode.UPDATED
+                        ? repository.getUpdatedUsersPage(checkpoint.getSince(), page)
+                        : repository.getUsersPage(page);
+                SynchronizationResult pageResult = new SynchronizationResult();
+                importUsers(protector(current.getUsers(), pageResult), sessionFactory, realmId, fedModel, config, pageResult,
+                        u -> checkpoint.addFailedUser(u.getUserName()));
+                syncResult.add(pageResult);
+                checkpoint.add(pageResult);
+                checkpoint.setLastPage(page);
+                checkpoint.setTotalPages(current.getTotalPages());
+                // Realm attributes: each save invalidates the realm in the cache of every node
+                if (System.currentTimeMillis() - lastSave >= SyncCheckpointStore.SAVE_INTERVAL) {
+                    SyncCheckpointStore.save(sessionFactory, realmId, fedModel.getId(), checkpoint);
+                    lastSave = System.currentTimeMillis();
+                }
+                log.debugf("[%s] Page %s/%s committed: '%s'", fedModel.getName(), page, checkpoint.getTotalPages(), pageResult.toString());
+            }
+        } catch (IOException e) {
+            log.warnf(e, "[%s] Synchronization %s stopped after page %s, next synchronization resumes from this page",
+                    fedModel.getName(), checkpoint.getRunId(), checkpoint.getLastPage());
+            SyncCheckpointStore.save(sessionFactory, realmId, fedModel.getId(), checkpoint);
+            return syncResult;
+        }
+
+        if (checkpoint.getFailedUsers().isEmpty()) {
+            SyncCheckpointStore.clear(sessionFactory, realmId, fedModel.getId(), mode);
+        } else {
+            SyncCheckpointStore.save(sessionFactory, realmId, fedModel.getId(), checkpoint);
+            log.warnf("[%s] Synchronization %s ended with %s failed users, retried by next synchronization",
+                    fedModel.getName(), checkpoint.getRunId(), checkpoint.getFailedUsers().size());
+        }
+        return syncResult;
+    }
+
+    private void retryFailedUsers(SyncCheckpoint checkpoint, KeycloakSessionFactory sessionFactory, final String realmId,
+                                  final ComponentModel fedModel, final RestUserFederationConfig config, UserRepository repository,
+                                  SynchronizationResult syncResult) {
+        List<UserDto> users = new ArrayList<>();
+        for (String userName : new ArrayList<>(checkpoint.getFailedUsers())) {
+            try {
+                repository.getUser(userName).ifPresent(users::add);
+                checkpoint.getFailedUsers().remove(userName);
+            } catch (IOException e) {
+                log.warn("Failed during retry of " + userName, e);
+            }
+        }
+        SynchronizationResult retryResult = new SynchronizationResult();
+        importUsers(users, sessionFactory, realmId, fedModel, config, retryResult, u -> checkpoint.addFailedUser(u.getUserName()));
+        syncResult.add(retryResult);
+        log.infof("[%s] Failed users retried: '%s'", fedModel.getName(), retryResult.toString());
+    }
+
+    /**
+     * Synchronization with bounded memory: fetched users are spooled, on disk past the configured threshold,
+     * and imported sequentially from the spool. The spool keeps records with the precedence of {@link #protector}.
+     *
+     * @param date           last synchronization date for updated users
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     * @param repository
+     * @return counters
+     */
+    private SynchronizationResult spooledSync(Optional<Date> date, KeycloakSessionFactory sessionFactory, final String realmId,
+                                              final ComponentModel fedModel, final RestUserFederationConfig config, UserRepository repository) {
+        final SynchronizationResult syncResult = new SynchronizationResult();
+        final long threshold = config.getSpillThreshold() * 1024L * 1024L;
+        try (UserSpool spool = new UserSpool(threshold, PRECEDENCE, u -> {
+            log.warn("Ignored user: name->" + u.getUserName() + " email->" + u.getEmail());
+            syncResult.increaseFailed();
+        })) {
+            int totalPages = 1;
+            try {
+                for (int page = 1; page <= totalPages; page++) {
+                    UserPage current = date.isPresent()
+                            ? repository.getUpdatedUsersPage(formatDate(date.get()), page)
+                            : repository.getUsersPage(page);
+                    spool.addAll(current.getUsers());
+                    totalPages = current.getTotalPages();
+                }
+            } catch (IOException e) {
+                log.warn("Received a non OK answer from upstream migration service", e);
+            }
+            log.infof("[%s] Federation starting for '%s' users (%s)", fedModel.getName(), spool.size(), spool.isSpilled() ? "spilled to disk" : "in memory");
+            importUsers(spool, sessionFactory, realmId, fedModel, config, syncResult);
+        } catch (IOException e) {
+            log.warn("Users spool not deleted", e);
+        }
+        return syncResult;
+    }
+
+    /**
+     * Full synchronization shared by cluster nodes, only one node coordinates a component synchronization
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     * @param repository
+     * @return aggregated counters
+     */
+    private SynchronizationResult clusterSync(KeycloakSessionFactory sessionFactory, final String realmId, final ComponentModel fedModel,
+                                              final RestUserFederationConfig config, UserRepository repository) {
+        SynchronizationResult result = new SynchronizationResult();
+        try {
+            final UserPage first = repository.getUsersPage(1);
+            final PartitionPlan plan = new PartitionPlan(KeycloakModelUtils.generateId(), realmId, fedModel.getId(),
+                    first.getTotalPages(), Math.max(1, config.getClusterSyncPages()));
+            Optional<SynchronizationResult> coordinated = partitionTransport.claim("rest-federation-sync::" + fedModel.getId(),
+                    config.getClusterSyncTimeout(), () -> partitionedSync.coordinate(plan, config.getClusterSyncTimeout(), TimeUnit.SECONDS));
+            if (coordinated.isPresent()) {
+                result = coordinated.get();
+            } else {
+                log.warnf("[%s] Synchronization already running on another node", fedModel.getName());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Cluster synchronization interrupted", e);
+        } catch (Exception e) {
+            log.error("Failed during cluster synchronization", e);
+        }
+        return result;
+    }
+
+    /**
+     * Import a page range of a partitioned synchronization on this node
+     *
+     * @param sessionFactory
+     * @param plan
+     * @param firstPage      included
+     * @param lastPage       included
+     * @return counters
+     */
+    protected SynchronizationResult importPages(KeycloakSessionFactory sessionFactory, PartitionPlan plan, int firstPage, int lastPage) {
+        final SynchronizationResult syncResult = new SynchronizationResult();
+        final List<ComponentModel> component = new ArrayList<>(1);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            ComponentModel model = session.realms().getRealm(plan.getRealmId()).getComponent(plan.getComponentId());
+            if (model != null) {
+                component.add(new UserStorageProviderModel(model));
+            }
+        });
+        if (component.isEmpty()) {
+            log.warnf("Component %s not found, partition ignored", plan.getComponentId());
+            return syncResult;
+        }
+
+        final ComponentModel fedModel = component.get(0);
+        final RestUserFederationConfig config = getConfig(fedModel);
+        UserRepository repository = singleRepository(config);
+        Set<UserDto> users = new HashSet<>();
+        for (int page = firstPage; page <= lastPage; page++) {
+            try {
+                users.addAll(repository.getUsersPage(page).getUsers());
+            } catch (IOException e) {
+                log.warn("Received a non OK answer from upstream migration service for page " + page, e);
+            }
+        }
+        log.infof("[%s] Partition pages %s-%s: '%s' users", fedModel.getName(), firstPage, lastPage, users.size());
+        importUsers(protector(users, syncResult), sessionFactory, plan.getRealmId(), fedModel, config, syncResult);
+        return syncResult;
+    }
+
+    /**
+     * Import or update users, and synchronize passwords of each batch of users imported or updated.
+     * Users are consumed sequentially, only the current password batch is kept.
+     *
+     * @param users          users to synchronize
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     * @param syncResult     counters
+     * @return password counters
+     */
+    protected PasswordSynchronizationResult importUsers(Collection<UserDto> users, KeycloakSessionFactory sessionFactory, final String realmId,
+                                                        final ComponentModel fedModel, final RestUserFederationConfig config, final SynchronizationResult syncResult) {
+        return importUsers(users, sessionFactory, realmId, fedModel, config, syncResult, u -> {
+        });
+    }
+
+    /**
+     * Import or update users, reporting users failing to import
+     *
+     * @param users          users to synchronize
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     * @param syncResult     counters
+     * @param failed         receives users failing to import
+     * @return password counters
+     */
+    protected PasswordSynchronizationResult importUsers(Collection<UserDto> users, KeycloakSessionFactory sessionFactory, final String realmId,
+                                                        final ComponentModel fedModel, final RestUserFederationConfig config, final SynchronizationResult syncResult,
+                                                        Consumer<UserDto> failed) {
+        final PasswordSynchronizationResult passwordResult = new PasswordSynchronizationResult();
+        final int batchSize = Math.max(1, config.getPasswordBatchSize());
+        final List<UserDto> syncedUsers = new ArrayList<>();
+        final OperationCosts operationCosts = getCosts(fedModel);
+        final UserCacheEvictions evictions = new UserCacheEvictions(sessionFactory, realmId, config.getCacheEvictBatch(),
+                config.getCacheClearRatio());
+        final BiConsumer<UserDto, SyncOutcome> imported = (restUser, outcome) -> {
+            if (outcome == SyncOutcome.UPDATED) {
+                evictions.add(restUser.getUserName());
+            } else if (outcome == SyncOutcome.FAILED) {
+                failed.accept(restUser);
+            }
+            // Tombstones have no password
+            if (config.getPasswordIsSync() && !restUser.isDeleted() && (outcome == SyncOutcome.ADDED || outcome == SyncOutcome.UPDATED)) {
+                syncedUsers.add(restUser);
+                if (syncedUsers.size() >= batchSize) {
+                    passwordResult.addAll(passwordSynchronization(sessionFactory, realmId, fedModel, config, syncedUsers));
+                    syncedUsers.clear();
+                }
+            }
+        };
+        final ImportThrottle throttle = getCache(config).getImportThrottle();
+        final LongSupplier probe = () -> probe(sessionFactory, realmId);
+        // Emails sent at creation can't be rolled back with a chunk
+        final boolean bulk = config.getBulkImportSize() > 1 && (config.getResetActions().isEmpty() || config.getResetActionAsync());
+        final List<UserDto> chunk = new ArrayList<>();
+        int created = 0;
+        for (final UserDto restUser : users) {
+            if (bulk) {
+                chunk.add(restUser);
+                if (chunk.size() >= config.getBulkImportSize()) {
+                    created += bulkImport(chunk, sessionFactory, realmId, fedModel, config, syncResult, imported, evictions);
+                    chunk.clear();
+                }
+            } else {
+                throttle.acquire(1);
+                long start = System.nanoTime();
+                SyncOutcome outcome = importUser(restUser, sessionFactory, realmId, fedModel, config, syncResult);
+                long nanos = System.nanoTime() - start;
+                operationCosts.record(outcome, nanos);
+                throttle.record(nanos, probe);
+                imported.accept(restUser, outcome);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            created += bulkImport(chunk, sessionFactory, realmId, fedModel, config, syncResult, imported, evictions);
+        }
+        if (throttle.isEnabled()) {
+            log.infof("[%s] Import rate: %s", fedModel.getName(), throttle);
+        }
+
+        evictions.flush();
+        if (evictions.isRealmWide()) {
+            log.infof("[%s] User cache evicted for the whole realm ('%s' users created by chunks)", fedModel.getName(), created);
+        }
+
+        if (config.getPasswordIsSync()) {
+            passwordResult.addAll(passwordSynchronization(sessionFactory, realmId, fedModel, config, syncedUsers));
+            log.infof("[%s] Password synchronization ended: '%s'", fedModel.getName(), passwordResult.toString());
+        }
+        return passwordResult;
+    }
+
+    /**
+     * Synchronize some users now, without waiting for a periodic synchronization.
+     * Users are requested by user name from upstream then imported or updated one by one.
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param userNames      users to synchronize
+     * @return outcome by user, in request order
+     * @throws IOException upstream not available
+     */
+    public List<ResyncResult> resync(KeycloakSessionFactory sessionFactory, final String realmId, final ComponentModel fedModel,
+                                     Collection<String> userNames) throws IOException {
+        final RestUserFederationConfig config = getConfig(fedModel);
+        final Set<String> names = userNames.stream()
+                .filter(Objects::nonNull)
+                .map(n -> n.trim().toLowerCase(Locale.US))
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        final List<ResyncResult> result = new ArrayList<>();
+        if (config.getRemoteMode()) {
+            // Nothing to import, users are requested again on next access by user name or email
+            final ComponentCache cache = getCache(config);
+            final Map<String, RemoteUser> cached = new HashMap<>();
+            cache.getRemoteUsers().values().forEach(u -> cached.put(u.getUserName(), u));
+            final List<RemoteUser> evicted = new ArrayList<>();
+            for (String name : names) {
+                RemoteUser user = cached.get(name);
+                if (user == null) {
+                    // Email unknown, Keycloak user cache entry by email expires with the cache policy
+                    user = new RemoteUser(name, null, null, null, false, false, Collections.emptyMap(), Collections.emptySet(),
+                            Collections.emptySet());
+                } else {
+                    cache.getRemoteUsers().remove("email:" + user.getEmail());
+                    cache.getUnknownUsers().remove("email:" + user.getEmail());
+                }
+                cache.getRemoteUsers().remove("username:" + name);
+                cache.getUnknownUsers().remove("username:" + name);
+                evicted.add(user);
+                result.add(new ResyncResult(name, SyncOutcome.SKIPPED.name(), 0));
+            }
+            evictRemoteUsers(sessionFactory, realmId, fedModel, evicted);
+            return result;
+        }
+        if (config.getByPass() || config.getDryRun()) {
+            log.warnf("[%s] Resynchronization ignored: by-pass or dry-run enabled", fedModel.getName());
+            names.forEach(n -> result.add(new ResyncResult(n, SyncOutcome.SKIPPED.name(), 0)));
+            return result;
+        }
+
+        final Map<String, UserDto> remoteUsers = new HashMap<>();
+        repository(config).getUsers(names).stream()
+                .filter(u -> u != null && u.getUserName() != null)
+                .forEach(u -> remoteUsers.put(u.getUserName(), u));
+
+        final SynchronizationResult syncResult = new SynchronizationResult();
+        final UserCacheEvictions evictions = new UserCacheEvictions(sessionFactory, realmId, config.getCacheEvictBatch(), 0);
+        for (String userName : names) {
+            UserDto restUser = remoteUsers.get(userName);
+            if (restUser == null) {
+                result.add(new ResyncResult(userName, ResyncResult.NOT_FOUND, 0));
+                continue;
+            }
+            long start = System.nanoTime();
+            SyncOutcome outcome = importUser(restUser, sessionFactory, realmId, fedModel, config, syncResult);
+            if (outcome == SyncOutcome.UPDATED) {
+                evictions.add(restUser.getUserName());
+            }
+            if (config.getPasswordIsSync() && !restUser.isDeleted() && (outcome == SyncOutcome.ADDED || outcome == SyncOutcome.UPDATED)) {
+                passwordSynchronization(sessionFactory, realmId, fedModel, config, Collections.singletonList(restUser));
+            }
+            result.add(new ResyncResult(userName, outcome.name(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+        evictions.flush();
+        log.infof("[%s] Resynchronization of '%s' users ended: '%s'", fedModel.getName(), names.size(), syncResult.toString());
+        return result;
+    }
+
+    /**
+     * Create users unknown locally by chunk, in one transaction, then import or update other users one by one.
+     * Every user of the chunk is imported one by one if the chunk transaction fails.
+     *
+     * @param chunk          users to synchronize
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     * @param syncResult     counters
+     * @param imported       receives the outcome of each user
+     * @param evictions      user cache evictions, counting created users
+     * @return users created by chunk
+     */
+    int bulkImport(List<UserDto> chunk, KeycloakSessionFactory sessionFactory, final String realmId, final ComponentModel fedModel,
+                   final RestUserFederationConfig config, final SynchronizationResult syncResult, BiConsumer<UserDto, SyncOutcome> imported,
+                   UserCacheEvictions evictions) {
+        final List<UserDto> created = new ArrayList<>();
+        final List<UserDto> others = new ArrayList<>();
+        final OperationCosts operationCosts = getCosts(fedModel);
+        final ImportThrottle throttle = getCache(config).getImportThrottle();
+        throttle.acquire(chunk.size());
+        long start = System.nanoTime();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                created.clear();
+                others.clear();
+                session.setAttribute(RestUserFederationProvider.SYNC_SESSION, Boolean.TRUE);
+                RestUserFederationProvider restFedProvider = (RestUserFederationProvider) session.getProvider(UserStorageProvider.class, fedModel);
+                RealmModel currentRealm = session.realms().getRealm(realmId);
+                for (UserDto restUser : chunk) {
+                    if (!config.getNotCreateUsers() && !restUser.isDeleted() && restUser.getUserName() != null && restUser.getEmail() != null
+                            && session.userLocalStorage().getUserByUsername(restUser.getUserName(), currentRealm) == null
+                            && session.userStorageManager().getUserByUsername(restUser.getUserName(), currentRealm) == null) {
+                        restFedProvider.importUserFromRest(session, currentRealm, restUser, config.getUncheckFederation());
+                        created.add(restUser);
+                    } else {
+                        others.add(restUser);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warnf(e, "[%s] Bulk creation of '%s' users failed, users imported one by one", fedModel.getName(), chunk.size());
+            created.clear();
+            others.clear();
+            others.addAll(chunk);
+        }
+        final long nanos = System.nanoTime() - start;
+        // Throttle samples are user imports
+        throttle.record(nanos, chunk.size(), () -> probe(sessionFactory, realmId));
+        if (!created.isEmpty()) {
+            evictions.created(created.size());
+            long cost = nanos / created.size();
+            for (UserDto restUser : created) {
+                syncResult.increaseAdded();
+                operationCosts.record(SyncOutcome.ADDED, cost);
+                imported.accept(restUser, SyncOutcome.ADDED);
+            }
+        }
+        for (UserDto restUser : others) {
+            throttle.acquire(1);
+            long userStart = System.nanoTime();
+            SyncOutcome outcome = importUser(restUser, sessionFactory, realmId, fedModel, config, syncResult);
+            long userNanos = System.nanoTime() - userStart;
+            operationCosts.record(outcome, userNanos);
+            throttle.record(userNanos, () -> probe(sessionFactory, realmId));
+            imported.accept(restUser, outcome);
+        }
+        return created.size();
+    }
+
+    /**
+     * Remote mode: evict remote users from Keycloak user cache, by id, user name and email
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param users          remote users
+     */
+    private static void evictRemoteUsers(KeycloakSessionFactory sessionFactory, final String realmId, final ComponentModel fedModel,
+                                         final Collection<RemoteUser> users) {
+        if (users.isEmpty()) {
+            return;
+        }
+        KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                session -> evictRemoteUsers(session, session.realms().getRealm(realmId), fedModel, users));
+    }
+
+    private static void evictRemoteUsers(KeycloakSession session, RealmModel realm, ComponentModel fedModel, Collection<RemoteUser> users) {
+        UserCache userCache = session.userCache();
+        if (userCache != null) {
+            users.forEach(u -> userCache.evict(realm, new RemoteUserAdapter(session, realm, fedModel, u, null)));
+        }
+    }
+
+    /**
+     * Disable or remove the local user of a tombstone, if linked to the component
+     *
+     * @param restUser       tombstone
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     * @param syncResult     counters
+     * @return outcome: UPDATED if disabled, REMOVED, or SKIPPED if no linked local user
+     */
+    protected SyncOutcome removeUser(final UserDto restUser, KeycloakSessionFactory sessionFactory, final String realmId,
+                                     final ComponentModel fedModel, final RestUserFederationConfig config, final SynchronizationResult syncResult) {
+        final SyncOutcome[] outcome = {SyncOutcome.SKIPPED};
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                session.setAttribute(RestUserFederationProvider.SYNC_SESSION, Boolean.TRUE);
+                RealmModel currentRealm = session.realms().getRealm(realmId);
+                UserModel currentUser = session.userLocalStorage().getUserByUsername(restUser.getUserName(), currentRealm);
+                if (currentUser == null) {
+                    log.debugf("Deleted user %s unknown locally. Skip him", restUser.getUserName());
+                } else if (!fedModel.getId().equals(currentUser.getFederationLink()) && !config.getUncheckFederation()) {
+                    log.warnf("User '%s' is not removed as he is not linked to federation provider '%s'", restUser.getUserName(), fedModel.getName());
+                } else if (config.getTombstoneAction() == TombstoneAction.REMOVE) {
+                    // Removal evicts user cache
+                    session.users().removeUser(currentRealm, currentUser);
+                    log.debugf("Removed user deleted upstream: %s", restUser.getUserName());
+                    outcome[0] = SyncOutcome.REMOVED;
+                } else if (currentUser.isEnabled()) {
+                    // User cache evicted by batch, see importUsers
+                    currentUser.setEnabled(false);
+                    log.debugf("Disabled user deleted upstream: %s", restUser.getUserName());
+                    outcome[0] = SyncOutcome.UPDATED;
+                }
+            });
+        } catch (ModelException e) {
+            log.warn("Failed during removal of user " + restUser.getUserName(), e);
+            outcome[0] = SyncOutcome.FAILED;
+        }
+        if (outcome[0] == SyncOutcome.REMOVED) {
+            syncResult.increaseRemoved();
+        } else if (outcome[0] == SyncOutcome.UPDATED) {
+            syncResult.increaseUpdated();
+        } else if (outcome[0] == SyncOutcome.FAILED) {
+            syncResult.increaseFailed();
+        }
+        return outcome[0];
+    }
+
+    /**
+     * Login probe: duration of a user lookup by user name in local storage, in its own transaction
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @return duration in nanoseconds
+     */
+    private static long probe(KeycloakSessionFactory sessionFactory, final String realmId) {
+        long start = System.nanoTime();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session ->
+                    session.userLocalStorage().getUserByUsername("rest-federation-probe", session.realms().getRealm(realmId)));
+        } catch (ModelException e) {
+            log.debug("Login probe failed", e);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Import or update one user in its own transaction to avoid global fail
+     *
+     * @param restUser       remote user
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     * @param syncResult     counters
+     * @return outcome
+     */
+    protected SyncOutcome importUser(final UserDto restUser, KeycloakSessionFactory sessionFactory, final String realmId,
+                                     final ComponentModel fedModel, final RestUserFederationConfig config, final SynchronizationResult syncResult) {
+        final Boolean uncheck = config.getUncheckFederation();
+        final Boolean notCreateUsers = config.getNotCreateUsers();
+
+        class BooleanHolder {
+            private boolean value = true;
+            private SyncOutcome outcome = SyncOutcome.SKIPPED;
+        }
+        final BooleanHolder exists = new BooleanHolder();
+
+        if (restUser.getUserName() != null && restUser.isDeleted()) {
+            return removeUser(restUser, sessionFactory, realmId, fedModel, config, syncResult);
+        } else if (restUser.getUserName() != null && restUser.getEmail() != null) {
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, new KeycloakSessionTask() {
+                    @Override
+                    public void run(KeycloakSession session) {
+                        session.setAttribute(RestUserFederationProvider.SYNC_SESSION, Boolean.TRUE);
+                        RestUserFederationProvider restFedProvider = (RestUserFederationProvider) session.getProvider(UserStorageProvider.class, fedModel);
+                        RealmModel currentRealm = session.realms().getRealm(realmId);
+
+                        String username = restUser.getUserName();
+                        exists.value = true;
+                        UserModel currentUser = session.userLocalStorage().getUserByUsername(username, currentRealm);
+
+                        if (currentUser == null) {
+
+                            if (!notCreateUsers) {
+
+                                UserModel storageCurrentUser = session.userStorageManager().getUserByUsername(username, currentRealm);
+
+                                if (storageCurrentUser != null) {
+                                    //He's in DB
+                                    log.debugf("User %s exists. Skip him", username);
+
+                                } else {
+
+                                    // Add new user to Keycloak
+                                    exists.value = false;
+
+                                    restFedProvider.importUserFromRest(session, currentRealm, restUser, uncheck);
+                                    exists.outcome = SyncOutcome.ADDED;
+                                    syncResult.increaseAdded();
+                                }
+
+                            } else {
+                                log.debugf("notCreateUsers mode: Skip this users " + username);
+                            }
+                        } else {
+                            //Uncheck mode ignore federation origin
+                            if ((fedModel.getId().equals(currentUser.getFederationLink()) || uncheck) && restUser.getUserName().equals(currentUser.getUsername())) {
+
+                                // Update keycloak user
+                                // User cache evicted by batch, see importUsers
+                                restFedProvider.updateUserFromRest(currentRealm, restUser, currentUser, uncheck);
+                                log.debugf("Updated user from REST: %s", currentUser.getUsername());
+                                exists.outcome = SyncOutcome.UPDATED;
+                                syncResult.increaseUpdated();
+                            } else {
+                                log.warnf("User '%s' is not updated during sync as he already exists in Keycloak database but is not linked to federation provider '%s'", username, fedModel.getName());
+                                exists.outcome = SyncOutcome.FAILED;
+                                syncResult.increaseFailed();
+                            }
+                        }
+                    }
+
+                });
+            } catch (ModelException me) {
+                log.warn("Failed during import user from REST", me);
+                exists.outcome = SyncOutcome.FAILED;
+                syncResult.increaseFailed();
+
+                // Remove user if we already added him during this transaction
+                if (!exists.value) {
+                    KeycloakModelUtils.runJobInTransaction(sessionFactory, new KeycloakSessionTask() {
+
+                        @Override
+                        public void run(KeycloakSession session) {
+                            RealmModel currentRealm = session.realms().getRealm(realmId);
+
+                            if (restUser.getUserName() != null) {
+                                UserModel existing = session.userLocalStorage().getUserByUsername(restUser.getUserName(), currentRealm);
+                                if (existing != null) {
+                                    UserCache userCache = session.userCache();
+                                    if (userCache != null) {
+                                        userCache.evict(currentRealm, existing);
+                                    }
+                                    session.userLocalStorage().removeUser(currentRealm, existing);
+                                }
+                            }
+                        }
+                    });
+                }
+            } catch (IllegalStateException ie) {
+                log.error("Failed during import user from REST", ie);
+                exists.outcome = SyncOutcome.FAILED;
+                syncResult.increaseFailed();
+            }
+        } else {
+            exists.outcome = SyncOutcome.FAILED;
+            syncResult.increaseFailed();
+            log.warnf("Missing attributes (user,email,password ?) for %s (%s)", restUser.getUserName() != null ? restUser.getUserName() : "", restUser.getEmail() != null ? restUser.getEmail() : "");
+        }
+        return exists.outcome;
+    }
+
+    /**
+     * Synchronize passwords of imported or updated users, by batch of credentials in one transaction.
+     * A failing batch is replayed user by user. A user imported by a previous transaction has no credential until the
+     * batch of its password commits: a login in between fails, or is validated by upstream with password validation.
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     * @param users users synchronized
+     * @return password counters
+     */
+    PasswordSynchronizationResult passwordSynchronization(KeycloakSessionFactory sessionFactory, final String realmId, final ComponentModel fedModel,
+                                                          final RestUserFederationConfig config, final List<UserDto> users) {
+        final PasswordSynchronizationResult result = new PasswordSynchronizationResult();
+        final int batchSize = Math.max(1, config.getPasswordBatchSize());
+
+        for (int from = 0; from < users.size(); from += batchSize) {
+            final List<UserDto> batch = users.subList(from, Math.min(from + batchSize, users.size()));
+            final PasswordSynchronizationResult batchResult = new PasswordSynchronizationResult();
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> passwordBatch(session, realmId, fedModel, batch, batchResult));
+                result.addAll(batchResult);
+            } catch (ModelException me) {
+                log.warnf("Password batch failed (%s users), retry user by user: %s", batch.size(), me.getMessage());
+                for (final UserDto restUser : batch) {
+                    final PasswordSynchronizationResult userResult = new PasswordSynchronizationResult();
+                    try {
+                        KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                                session -> passwordBatch(session, realmId, fedModel, Collections.singletonList(restUser), userResult));
+                        result.addAll(userResult);
+                    } catch (ModelException e) {
+                        log.warn("Failed during password synchronization of " + restUser.getUserName(), e);
+                        result.increase(PasswordStatus.FAILED);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private void passwordBatch(KeycloakSession session, String realmId, ComponentModel fedModel, List<UserDto> batch, PasswordSynchronizationResult result) {
+        RestUserFederationProvider restFedProvider = (RestUserFederationProvider) session.getProvider(UserStorageProvider.class, fedModel);
+        RealmModel currentRealm = session.realms().getRealm(realmId);
+        for (UserDto restUser : batch) {
+            UserModel local = session.userLocalStorage().getUserByUsername(restUser.getUserName(), currentRealm);
+            if (local != null) {
+                result.increase(restFedProvider.passwordSynchronization(currentRealm, local, restUser));
+            }
+        }
+    }
+
     public void onCreate(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        stopFeed(model.getId());
+        configs.remove(model.getId());
+        dropCache(model.getId());
         byPass(session, model);
     }
 
     public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        // Change feed consumers are restarted by the next changed users synchronization when their settings change.
+        // Synchronizations only update the last synchronization date: caches kept
+        if (RestUserFederationConfig.version(oldModel) != RestUserFederationConfig.version(newModel)) {
+            configs.remove(newModel.getId());
+            ComponentCache cache = dropCache(newModel.getId());
+            if (cache != null) {
+                evictRemoteUsers(session, realm, newModel, cache.getRemoteUsers().values());
+            }
+        }
         byPass(session, newModel);
     }
 
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        RestUserFederationConfig config = getConfig(model);
+        if (!StringUtils.isBlank(config.getSnapshotDir())) {
+            try {
+                Files.deleteIfExists(snapshotFile(config));
+            } catch (IOException e) {
+                log.warnf(e, "Snapshot of %s not deleted", model.getName());
+            }
+        }
+        stopFeed(model.getId());
+        realm.removeAttribute(SyncCheckpointStore.EVENT_ID_PREFIX + model.getId());
+        for (SyncMode mode : SyncMode.values()) {
+            SyncCheckpointStore.clear(realm, model.getId(), mode);
+        }
+        configs.remove(model.getId());
+        costs.remove(model.getId());
+        dropCache(model.getId());
+    }
+
+    /**
+     * Node scheduler of synchronizations, configured for the whole server:
+     * syncMaxConcurrent, syncHostLimit, syncJitter and syncMaxWait (seconds) properties of the user-storage SPI provider
+     *
+     * @param config SPI provider configuration
+     */
+    @Override
+    public void init(Config.Scope config) {
+        scheduler = new SyncScheduler(config.getInt("syncMaxConcurrent", DEFAULT_SYNC_MAX_CONCURRENT),
+                config.getInt("syncHostLimit", DEFAULT_SYNC_HOST_LIMIT),
+                TimeUnit.SECONDS.toMillis(config.getInt("syncJitter", DEFAULT_SYNC_JITTER)),
+                TimeUnit.SECONDS.toMillis(config.getInt("syncMaxWait", DEFAULT_SYNC_MAX_WAIT)));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        try {
+            partitionTransport = partitionTransport(factory);
+            partitionedSync = new PartitionedSync(System.getProperty("jboss.node.name", KeycloakModelUtils.generateId()), partitionTransport,
+                    (plan, firstPage, lastPage) -> importPages(factory, plan, firstPage, lastPage), partitionExecutor, PARTITION_CLAIM_TIMEOUT);
+        } catch (RuntimeException e) {
+            partitionedSync = null;
+            log.warn("Cluster synchronization not available", e);
+        }
+    }
+
+    /**
+     * Messaging and locking between the nodes of the cluster
+     *
+     * @param factory
+     * @return Keycloak cluster transport
+     */
+    protected PartitionTransport partitionTransport(KeycloakSessionFactory factory) {
+        return new ClusterPartitionTransport(factory);
+    }
+
+    @Override
+    public void close() {
+        new ArrayList<>(feeds.keySet()).forEach(this::stopFeed);
+        resetActionOutbox.close();
+        scheduler.shutdown();
+        partitionExecutor.shutdownNow();
+        new ArrayList<>(caches.keySet()).forEach(this::dropCache);
+    }
+
     private void byPass(KeycloakSession session, ComponentModel model) {
         if (Boolean.valueOf(EnvSubstitutor.envStrSubstitutor.replace(model.getConfig().getFirst(BY_PASS)))) {
             ((UserStorageProviderModel) model).setEnabled(false);
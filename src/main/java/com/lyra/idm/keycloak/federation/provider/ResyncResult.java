@@ -0,0 +1,26 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Outcome of the targeted synchronization of one user
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class ResyncResult {
+
+    public static final String NOT_FOUND = "NOT_FOUND";
+
+    private final String userName;
+    /**
+     * SyncOutcome name, or NOT_FOUND if unknown by upstream
+     */
+    private final String status;
+    /**
+     * Import duration in milliseconds
+     */
+    private final long duration;
+}
@@ -0,0 +1,12 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+/**
+ * Outcome of the synchronization of one user
+ */
+public enum SyncOutcome {
+    ADDED,
+    UPDATED,
+    SKIPPED,
+    REMOVED,
+    FAILED
+}
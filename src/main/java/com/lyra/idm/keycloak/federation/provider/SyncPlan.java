@@ -0,0 +1,83 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Change set computed by a dry-run synchronization
+ */
+@Getter
+public class SyncPlan {
+
+    public static final int MAX_SAMPLES = 20;
+
+    private final Map<SyncOutcome, Integer> counts = new EnumMap<>(SyncOutcome.class);
+    private int unchanged;
+    private int conflicts;
+    private final List<String> sampleConflicts = new ArrayList<>();
+    private int rolesGranted;
+    private int rolesRevoked;
+    private int attributesChanged;
+    private long fetchMillis;
+    private long projectedMillis;
+
+    void increase(SyncOutcome outcome) {
+        counts.merge(outcome, 1, Integer::sum);
+    }
+
+    void unchanged() {
+        unchanged++;
+    }
+
+    void conflict(String sample) {
+        conflicts++;
+        if (sampleConflicts.size() < MAX_SAMPLES) {
+            sampleConflicts.add(sample);
+        }
+    }
+
+    void roles(int granted, int revoked) {
+        rolesGranted += granted;
+        rolesRevoked += revoked;
+    }
+
+    void attributes(int changed) {
+        attributesChanged += changed;
+    }
+
+    void fetched(long millis) {
+        fetchMillis = millis;
+    }
+
+    /**
+     * Project duration from measured costs by outcome
+     *
+     * @param costs
+     */
+    void project(OperationCosts costs) {
+        long nanos = 0;
+        for (Map.Entry<SyncOutcome, Integer> entry : counts.entrySet()) {
+            nanos += costs.nanos(entry.getKey()) * entry.getValue();
+        }
+        nanos += costs.nanos(SyncOutcome.FAILED) * conflicts;
+        projectedMillis = fetchMillis + TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    public int get(SyncOutcome outcome) {
+        return counts.getOrDefault(outcome, 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d to add, %d to update (%d unchanged), %d to remove, %d skipped, %d failed, %d conflicts %s; "
+                        + "roles: %d grants, %d revokes; attributes: %d changes; fetch %d ms, projected duration %d s",
+                get(SyncOutcome.ADDED), get(SyncOutcome.UPDATED), unchanged, get(SyncOutcome.REMOVED), get(SyncOutcome.SKIPPED), get(SyncOutcome.FAILED),
+                conflicts, sampleConflicts, rolesGranted, rolesRevoked, attributesChanged, fetchMillis,
+                TimeUnit.MILLISECONDS.toSeconds(projectedMillis));
+    }
+}
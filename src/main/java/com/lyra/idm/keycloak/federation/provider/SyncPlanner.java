@@ -0,0 +1,163 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageProvider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Dry-run synchronization: compare remote users with local users without writing anything.
+ * Every read transaction is marked rollback only.
+ */
+@JBossLog
+public class SyncPlanner {
+
+    private static final int CHUNK_SIZE = 500;
+
+    /**
+     * Compute change set
+     *
+     * @param users          remote users, already deduplicated
+     * @param sessionFactory
+     * @param realmId
+     * @param fedModel
+     * @param config
+     * @param costs          measured costs by outcome
+     * @param fetchMillis    upstream fetch duration
+     * @return plan
+     */
+    public SyncPlan plan(Collection<UserDto> users, KeycloakSessionFactory sessionFactory, final String realmId, final ComponentModel fedModel,
+                         final RestUserFederationConfig config, OperationCosts costs, long fetchMillis) {
+        final SyncPlan plan = new SyncPlan();
+        plan.fetched(fetchMillis);
+        final List<UserDto> list = new ArrayList<>(users);
+        for (int from = 0; from < list.size(); from += CHUNK_SIZE) {
+            final List<UserDto> chunk = list.subList(from, Math.min(from + CHUNK_SIZE, list.size()));
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                session.getTransactionManager().setRollbackOnly();
+                session.setAttribute(RestUserFederationProvider.SYNC_SESSION, Boolean.TRUE);
+                RestUserFederationProvider restFedProvider = (RestUserFederationProvider) session.getProvider(UserStorageProvider.class, fedModel);
+                RealmModel realm = session.realms().getRealm(realmId);
+                ClientModel client = config.getRoleIsSync() ? restFedProvider.roleClient(realm) : null;
+                for (UserDto restUser : chunk) {
+                    plan(session, realm, client, restFedProvider, fedModel, config, restUser, plan);
+                }
+            });
+        }
+        plan.project(costs);
+        return plan;
+    }
+
+    private void plan(KeycloakSession session, RealmModel realm, ClientModel client, RestUserFederationProvider restFedProvider,
+                      ComponentModel fedModel, RestUserFederationConfig config, UserDto restUser, SyncPlan plan) {
+        if (restUser.getUserName() != null && restUser.isDeleted()) {
+            UserModel currentUser = session.userLocalStorage().getUserByUsername(restUser.getUserName(), realm);
+            boolean linked = currentUser != null && (fedModel.getId().equals(currentUser.getFederationLink()) || config.getUncheckFederation());
+            // Same outcomes as removeUser
+            if (!linked) {
+                plan.increase(SyncOutcome.SKIPPED);
+            } else if (config.getTombstoneAction() == TombstoneAction.REMOVE) {
+                plan.increase(SyncOutcome.REMOVED);
+            } else {
+                plan.increase(currentUser.isEnabled() ? SyncOutcome.UPDATED : SyncOutcome.SKIPPED);
+            }
+            return;
+        }
+        if (restUser.getUserName() == null || restUser.getEmail() == null) {
+            plan.increase(SyncOutcome.FAILED);
+            return;
+        }
+        String username = restUser.getUserName();
+        UserModel currentUser = session.userLocalStorage().getUserByUsername(username, realm);
+        if (currentUser == null) {
+            if (config.getNotCreateUsers() || session.userStorageManager().getUserByUsername(username, realm) != null) {
+                plan.increase(SyncOutcome.SKIPPED);
+            } else {
+                plan.increase(SyncOutcome.ADDED);
+                if (config.getRoleIsSync()) {
+                    plan.roles(remoteRoles(restFedProvider, restUser).size(), 0);
+                }
+                if (config.getAttributesIsSync()) {
+                    plan.attributes(remoteAttributes(restFedProvider, restUser).size());
+                }
+            }
+        } else if ((fedModel.getId().equals(currentUser.getFederationLink()) || config.getUncheckFederation())
+                && username.equals(currentUser.getUsername())) {
+            plan.increase(SyncOutcome.UPDATED);
+            int changes = fieldChanges(currentUser, restUser);
+            if (config.getRoleIsSync() && restUser.getRoles() != null) {
+                Set<String> remote = remoteRoles(restFedProvider, restUser);
+                Set<String> local = (client != null ? currentUser.getClientRoleMappings(client) : currentUser.getRealmRoleMappings()).stream()
+                        .map(RoleModel::getName)
+                        .filter(n -> n.startsWith(prefix(config)))
+                        .collect(Collectors.toSet());
+                int granted = (int) remote.stream().filter(r -> !local.contains(r)).count();
+                int revoked = (int) local.stream().filter(r -> !remote.contains(r)).count();
+                plan.roles(granted, revoked);
+                changes += granted + revoked;
+            }
+            if (config.getAttributesIsSync() && restUser.getAttributes() != null) {
+                Map<String, List<String>> remote = remoteAttributes(restFedProvider, restUser);
+                Map<String, List<String>> local = currentUser.getAttributes().entrySet().stream()
+                        .filter(e -> e.getKey().startsWith(prefix(config)) && !ResetActionOutbox.isOutboxAttribute(e.getKey()))
+                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+                Set<String> keys = new HashSet<>(remote.keySet());
+                keys.addAll(local.keySet());
+                int changed = (int) keys.stream().filter(k -> !Objects.equals(remote.get(k), local.get(k))).count();
+                plan.attributes(changed);
+                changes += changed;
+            }
+            if (changes == 0) {
+                plan.unchanged();
+            }
+        } else {
+            plan.conflict(username + " (federation link: " + currentUser.getFederationLink() + ")");
+        }
+    }
+
+    private static String prefix(RestUserFederationConfig config) {
+        return config.getPrefix() != null ? config.getPrefix() : "";
+    }
+
+    private static int fieldChanges(UserModel local, UserDto restUser) {
+        int result = 0;
+        result += Objects.equals(local.getFirstName(), restUser.getFirstName()) ? 0 : 1;
+        result += Objects.equals(local.getLastName(), restUser.getLastName()) ? 0 : 1;
+        result += restUser.getEmail().toLowerCase(Locale.US).equals(local.getEmail()) ? 0 : 1;
+        result += local.isEnabled() == restUser.isEnabled() ? 0 : 1;
+        return result;
+    }
+
+    private static Set<String> remoteRoles(RestUserFederationProvider restFedProvider, UserDto restUser) {
+        return restUser.getRoles() != null
+                ? restUser.getRoles().stream().map(restFedProvider::convertRemoteName).collect(Collectors.toSet())
+                : Collections.emptySet();
+    }
+
+    private static Map<String, List<String>> remoteAttributes(RestUserFederationProvider restFedProvider, UserDto restUser) {
+        Map<String, List<String>> result = new HashMap<>();
+        if (restUser.getAttributes() != null) {
+            restUser.getAttributes().forEach((k, v) -> result.put(restFedProvider.convertRemoteName(k), v));
+        }
+        return result;
+    }
+}
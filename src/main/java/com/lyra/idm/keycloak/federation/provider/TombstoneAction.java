@@ -0,0 +1,15 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+/**
+ * Action on the local user of a tombstone (user deleted upstream)
+ */
+public enum TombstoneAction {
+    /**
+     * Local user disabled, kept with his data
+     */
+    DISABLE,
+    /**
+     * Local user removed
+     */
+    REMOVE
+}
@@ -0,0 +1,87 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Size bounded cache with time to live.
+ * Least recently used entries are evicted when size is reached, expired entries are removed on access.
+ *
+ * @param <K> key
+ * @param <V> value
+ */
+public class TtlCache<K, V> {
+
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    private final Map<K, Entry<V>> entries;
+
+    public TtlCache(long ttl, TimeUnit unit, final int maxSize) {
+        this(ttl, unit, maxSize, System::nanoTime);
+    }
+
+    TtlCache(long ttl, TimeUnit unit, final int maxSize, LongSupplier clock) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.clock = clock;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param key
+     * @return value or null if absent or expired
+     */
+    public synchronized V get(K key) {
+        V result = null;
+        Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            if (clock.getAsLong() - entry.created < ttlNanos) {
+                result = entry.value;
+            } else {
+                entries.remove(key);
+            }
+        }
+        return result;
+    }
+
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value, clock.getAsLong()));
+    }
+
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * @return every value, expired ones included
+     */
+    public synchronized List<V> values() {
+        return entries.values().stream().map(e -> e.value).collect(Collectors.toList());
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long created;
+
+        Entry(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * User cache evictions of a synchronization, sent by batch in one transaction.
+ * <p>
+ * When the changed users reach a ratio of the users of the realm, users are no more evicted one by one:
+ * every user of the realm is evicted at once by {@link #flush()}, one cluster invalidation for the synchronization.
+ */
+@JBossLog
+public class UserCacheEvictions {
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final int batchSize;
+    private final int clearPercent;
+    private long clearThreshold = -1;
+    private final List<String> userNames = new ArrayList<>();
+    private int changed;
+    private boolean realmWide;
+    private boolean realmEvicted;
+
+    /**
+     * @param sessionFactory
+     * @param realmId
+     * @param batchSize    changed users by eviction transaction
+     * @param clearPercent percentage of the realm users changed above which the realm is evicted, 0 to always evict users
+     */
+    public UserCacheEvictions(KeycloakSessionFactory sessionFactory, String realmId, int batchSize, int clearPercent) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.batchSize = Math.max(1, batchSize);
+        this.clearPercent = clearPercent;
+    }
+
+    /**
+     * Evict a changed user, with next batch
+     *
+     * @param userName local user name
+     */
+    public void add(String userName) {
+        changed++;
+        if (realmWide || checkRealmWide()) {
+            return;
+        }
+        userNames.add(userName);
+        if (userNames.size() >= batchSize) {
+            evictUsers();
+        }
+    }
+
+    /**
+     * Count users created by bulk import: not cached yet, they only count towards the realm eviction ratio
+     *
+     * @param count created users
+     */
+    public void created(int count) {
+        if (count > 0 && !realmWide) {
+            changed += count;
+            checkRealmWide();
+        }
+    }
+
+    private boolean checkRealmWide() {
+        if (changed >= clearThreshold()) {
+            realmWide = true;
+            userNames.clear();
+            log.debugf("%s changed users: user cache evicted for every user of the realm", changed);
+        }
+        return realmWide;
+    }
+
+    /**
+     * Send pending evictions, the realm is evicted once if too many users changed
+     */
+    public void flush() {
+        if (realmWide) {
+            if (!realmEvicted) {
+                realmEvicted = true;
+                evictRealm();
+            }
+        } else {
+            evictUsers();
+        }
+    }
+
+    /**
+     * Threshold computed on first change, counting users of the realm only when some users changed
+     *
+     * @return number of changed users above which the realm is evicted
+     */
+    private long clearThreshold() {
+        if (clearThreshold < 0) {
+            clearThreshold = clearPercent > 0 ? Math.max(1, (long) Math.ceil(countUsers() * clearPercent / 100.0)) : Long.MAX_VALUE;
+        }
+        return clearThreshold;
+    }
+
+    private int countUsers() {
+        final int[] result = {0};
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm != null) {
+                    result[0] = session.userLocalStorage().getUsersCount(realm);
+                }
+            });
+        } catch (ModelException e) {
+            log.warn("Failed to count users of realm " + realmId, e);
+        }
+        return result[0];
+    }
+
+    private void evictUsers() {
+        if (userNames.isEmpty()) {
+            return;
+        }
+        final List<String> batch = new ArrayList<>(userNames);
+        userNames.clear();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                UserCache userCache = session.userCache();
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (userCache == null || realm == null) {
+                    return;
+                }
+                for (String userName : batch) {
+                    UserModel user = session.userLocalStorage().getUserByUsername(userName, realm);
+                    if (user != null) {
+                        userCache.evict(realm, user);
+                    }
+                }
+            });
+        } catch (ModelException e) {
+            log.warn("Failed during user cache eviction of " + batch.size() + " users", e);
+        }
+    }
+
+    private void evictRealm() {
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                UserCache userCache = session.userCache();
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (userCache != null && realm != null) {
+                    userCache.evict(realm);
+                }
+            });
+        } catch (ModelException e) {
+            log.warn("Failed during user cache eviction of realm " + realmId, e);
+        }
+    }
+
+    public boolean isRealmWide() {
+        return realmWide;
+    }
+}
@@ -0,0 +1,57 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of passwords successfully verified by upstream.
+ * <p>
+ * Only a salted digest is kept in memory, salt is random and never leaves the JVM.
+ */
+public class VerifiedPasswordCache {
+
+    private static final String DIGEST = "SHA-256";
+    private static final int SALT_LENGTH = 16;
+
+    private final TtlCache<String, byte[]> verified;
+    private final byte[] salt = new byte[SALT_LENGTH];
+
+    public VerifiedPasswordCache(long ttl, TimeUnit unit, int maxSize) {
+        this.verified = new TtlCache<>(ttl, unit, maxSize);
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * @param userName
+     * @param password
+     * @return true if same password has been verified recently
+     */
+    public boolean isVerified(String userName, String password) {
+        byte[] expected = verified.get(userName);
+        return expected != null && MessageDigest.isEqual(expected, digest(userName, password));
+    }
+
+    public void verified(String userName, String password) {
+        verified.put(userName, digest(userName, password));
+    }
+
+    public void invalidate(String userName) {
+        verified.remove(userName);
+    }
+
+    private byte[] digest(String userName, String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance(DIGEST);
+            md.update(salt);
+            md.update(userName.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(password.getBytes(StandardCharsets.UTF_8));
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST + " not supported", e);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import com.lyra.idm.keycloak.federation.api.user.ChangeListener;
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Long-lived consumer of the upstream change feed of one component.
+ * <p>
+ * A daemon thread reads the feed from the last processed event id, applies changes as they arrive and stores the
+ * event id at most every minute and at the end of each session, as each store invalidates the realm cache. Failures are followed by an increasing reconnection delay. With a transport,
+ * the feed is read by one node at a time through sessions of {@link #SESSION} claimed by the component,
+ * other nodes stand by and take over when a session is not renewed.
+ */
+@JBossLog
+public class ChangeFeedConsumer {
+
+    /**
+     * Read the feed once, until the connection ends
+     */
+    @FunctionalInterface
+    public interface Feed {
+        void read(String lastEventId, ChangeListener listener) throws IOException;
+    }
+
+    static final long SESSION = TimeUnit.MINUTES.toMillis(5);
+    static final int CLAIM_TIMEOUT = (int) TimeUnit.MINUTES.toSeconds(10);
+    static final int FALLBACK_FAILURES = 3;
+    private static final long SAVE_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final long BASE_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_DELAY = TimeUnit.MINUTES.toMillis(5);
+    private static final long STANDBY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private final String componentId;
+    private final String name;
+    private final int version;
+    private final Feed feed;
+    private final Consumer<List<UserDto>> applier;
+    private final Supplier<Optional<String>> loader;
+    private final Consumer<String> saver;
+    private final PartitionTransport transport;
+    private volatile boolean running;
+    private volatile int failures;
+    private volatile long applied;
+    private Thread thread;
+
+    /**
+     * @param componentId
+     * @param name        component name for logs
+     * @param version     version of the settings the consumer is built with
+     * @param feed        upstream change feed
+     * @param applier     applies changed users
+     * @param loader      last processed event id
+     * @param saver       stores the last processed event id
+     * @param transport   claims of the cluster, feed read by every node if null
+     */
+    public ChangeFeedConsumer(String componentId, String name, int version, Feed feed, Consumer<List<UserDto>> applier,
+                              Supplier<Optional<String>> loader, Consumer<String> saver, PartitionTransport transport) {
+        this.componentId = componentId;
+        this.name = name;
+        this.version = version;
+        this.feed = feed;
+        this.applier = applier;
+        this.loader = loader;
+        this.saver = saver;
+        this.transport = transport;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::loop, "rest-federation-feed-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        log.infof("[%s] Change feed consumer started", name);
+    }
+
+    /**
+     * Stop reading, the current connection ends at the next line or read timeout
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        log.infof("[%s] Change feed consumer stopped after '%s' changes", name, applied);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true while the feed is reachable (or read by another node), false after repeated failures
+     */
+    public boolean isHealthy() {
+        return running && failures < FALLBACK_FAILURES;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    public long getApplied() {
+        return applied;
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                boolean read;
+                if (transport == null) {
+                    session();
+                    read = true;
+                } else {
+                    read = transport.claim("rest-federation-feed::" + componentId, CLAIM_TIMEOUT, () -> {
+                        session();
+                        return true;
+                    }).isPresent();
+                }
+                if (!read) {
+                    log.debugf("[%s] Change feed read by another node, standing by", name);
+                    failures = 0;
+                    TimeUnit.MILLISECONDS.sleep(STANDBY_DELAY);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                failures++;
+                long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(failures - 1, 16));
+                log.warnf(e, "[%s] Change feed failure %s, reconnecting in %s ms", name, failures, delay);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the feed during a session, reconnecting after each answer or end of stream
+     *
+     * @throws IOException feed failure
+     */
+    private void session() throws IOException {
+        final long end = System.currentTimeMillis() + SESSION;
+        final String[] eventId = {loader.get().orElse(null)};
+        final String[] saved = {eventId[0]};
+        final long[] lastSave = {System.currentTimeMillis()};
+        ChangeListener listener = new ChangeListener() {
+            @Override
+            public void onChanges(String id, List<UserDto> users) {
+                if (!users.isEmpty()) {
+                    applier.accept(users);
+                    applied += users.size();
+                }
+                if (id != null) {
+                    eventId[0] = id;
+                    if (System.currentTimeMillis() - lastSave[0] >= SAVE_INTERVAL) {
+                        saver.accept(id);
+                        saved[0] = id;
+                        lastSave[0] = System.currentTimeMillis();
+                    }
+                }
+            }
+
+            @Override
+            public boolean isActive() {
+                return running && System.currentTimeMillis() < end;
+            }
+        };
+        try {
+            while (listener.isActive()) {
+                long start = System.currentTimeMillis();
+                feed.read(eventId[0], listener);
+                failures = 0;
+                // Upstream answering at once, as without long-polling wait
+                long elapsed = System.currentTimeMillis() - start;
+                if (elapsed < BASE_DELAY && listener.isActive()) {
+                    TimeUnit.MILLISECONDS.sleep(BASE_DELAY - elapsed);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (eventId[0] != null && !eventId[0].equals(saved[0])) {
+                saver.accept(eventId[0]);
+            }
+        }
+    }
+}
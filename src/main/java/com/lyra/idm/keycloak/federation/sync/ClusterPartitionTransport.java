@@ -0,0 +1,81 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.Optional;
+import java.util.concurrent.Callable;
+
+/**
+ * Partition transport based on Keycloak ClusterProvider: events are cluster notifications, claims are cluster locks
+ */
+public class ClusterPartitionTransport implements PartitionTransport {
+
+    public static final String PLAN_EVENT = "rest-federation-partition-plan";
+    public static final String RESULT_EVENT = "rest-federation-partition-result";
+
+    private final KeycloakSessionFactory sessionFactory;
+
+    public ClusterPartitionTransport(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    @FunctionalInterface
+    private interface ClusterTask<T> {
+        T run(ClusterProvider cluster) throws Exception;
+    }
+
+    private <T> T withCluster(ClusterTask<T> task) throws Exception {
+        KeycloakSession session = sessionFactory.create();
+        try {
+            return task.run(session.getProvider(ClusterProvider.class));
+        } finally {
+            session.close();
+        }
+    }
+
+    @Override
+    public void register(PartitionedSync node) {
+        try {
+            withCluster(cluster -> {
+                cluster.registerListener(PLAN_EVENT, event -> node.onPlan((PartitionPlan) event));
+                cluster.registerListener(RESULT_EVENT, event -> node.onResult((PartitionResult) event));
+                return null;
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException("Cluster listeners not registered", e);
+        }
+    }
+
+    @Override
+    public void publish(PartitionPlan plan) {
+        send(PLAN_EVENT, plan);
+    }
+
+    @Override
+    public void report(PartitionResult result) {
+        send(RESULT_EVENT, result);
+    }
+
+    private void send(String taskKey, ClusterEvent event) {
+        try {
+            withCluster(cluster -> {
+                cluster.notify(taskKey, event, false);
+                return null;
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException("Cluster notification " + taskKey + " failed", e);
+        }
+    }
+
+    @Override
+    public <T> Optional<T> claim(String key, int timeoutSeconds, Callable<T> work) throws Exception {
+        return withCluster(cluster -> {
+            ExecutionResult<T> result = cluster.executeIfNotExecuted(key, timeoutSeconds, work);
+            return result.isExecuted() ? Optional.ofNullable(result.getResult()) : Optional.empty();
+        });
+    }
+}
@@ -0,0 +1,45 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import org.keycloak.cluster.ClusterEvent;
+
+import java.io.Serializable;
+
+/**
+ * Page ranges of a full synchronization shared between cluster nodes
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class PartitionPlan implements ClusterEvent, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String runId;
+    private final String realmId;
+    private final String componentId;
+    private final int totalPages;
+    private final int pagesPerPartition;
+
+    public int getPartitions() {
+        return (totalPages + pagesPerPartition - 1) / pagesPerPartition;
+    }
+
+    /**
+     * @param partition index starting at 0
+     * @return first page of partition (pages start at 1)
+     */
+    public int firstPage(int partition) {
+        return partition * pagesPerPartition + 1;
+    }
+
+    /**
+     * @param partition index starting at 0
+     * @return last page of partition, included
+     */
+    public int lastPage(int partition) {
+        return Math.min(totalPages, (partition + 1) * pagesPerPartition);
+    }
+}
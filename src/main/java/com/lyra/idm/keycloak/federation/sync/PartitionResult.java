@@ -0,0 +1,41 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.io.Serializable;
+
+/**
+ * Counters of one imported partition, sent back to the coordinating node
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class PartitionResult implements ClusterEvent, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String runId;
+    private final int partition;
+    private final String node;
+    private final int added;
+    private final int updated;
+    private final int removed;
+    private final int failed;
+
+    public static PartitionResult of(String runId, int partition, String node, SynchronizationResult result) {
+        return new PartitionResult(runId, partition, node, result.getAdded(), result.getUpdated(), result.getRemoved(), result.getFailed());
+    }
+
+    public SynchronizationResult toSynchronizationResult() {
+        SynchronizationResult result = new SynchronizationResult();
+        result.setAdded(added);
+        result.setUpdated(updated);
+        result.setRemoved(removed);
+        result.setFailed(failed);
+        return result;
+    }
+}
@@ -0,0 +1,43 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import java.util.Optional;
+import java.util.concurrent.Callable;
+
+/**
+ * Messaging and locking between the nodes of a partitioned synchronization
+ */
+public interface PartitionTransport {
+
+    /**
+     * Deliver events of every node (including this one) to a node
+     *
+     * @param node local node
+     */
+    void register(PartitionedSync node);
+
+    /**
+     * Send plan to every node, including this one
+     *
+     * @param plan
+     */
+    void publish(PartitionPlan plan);
+
+    /**
+     * Send partition counters to every node, including this one
+     *
+     * @param result
+     */
+    void report(PartitionResult result);
+
+    /**
+     * Run work if no other node is running it
+     *
+     * @param key            work key
+     * @param timeoutSeconds claim expiration
+     * @param work
+     * @param <T>            result type
+     * @return work result, empty if claimed by another node
+     * @throws Exception work failure
+     */
+    <T> Optional<T> claim(String key, int timeoutSeconds, Callable<T> work) throws Exception;
+}
@@ -0,0 +1,149 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full synchronization split in page ranges imported by every node of the cluster.
+ * <p>
+ * The coordinating node publishes a plan, each node claims free partitions through the transport,
+ * imports them and reports its counters. The coordinating node aggregates the counters.
+ * A partition finished before a late node claims it may be imported twice, import is idempotent.
+ */
+@JBossLog
+public class PartitionedSync {
+
+    /**
+     * Import of a page range on this node
+     */
+    @FunctionalInterface
+    public interface PartitionImporter {
+        /**
+         * @param plan      plan
+         * @param firstPage first page, included
+         * @param lastPage  last page, included
+         * @return counters
+         */
+        SynchronizationResult importPages(PartitionPlan plan, int firstPage, int lastPage);
+    }
+
+    private final String node;
+    private final PartitionTransport transport;
+    private final PartitionImporter importer;
+    private final ExecutorService executor;
+    private final int claimTimeoutSeconds;
+    private final Map<String, Aggregation> aggregations = new ConcurrentHashMap<>();
+    private final Map<String, Set<Integer>> completed = new ConcurrentHashMap<>();
+
+    public PartitionedSync(String node, PartitionTransport transport, PartitionImporter importer, ExecutorService executor,
+                           int claimTimeoutSeconds) {
+        this.node = node;
+        this.transport = transport;
+        this.importer = importer;
+        this.executor = executor;
+        this.claimTimeoutSeconds = claimTimeoutSeconds;
+        transport.register(this);
+    }
+
+    /**
+     * Publish plan and wait for every partition counters
+     *
+     * @param plan
+     * @param timeout
+     * @param unit
+     * @return aggregated counters, partial on timeout
+     * @throws InterruptedException
+     */
+    public SynchronizationResult coordinate(PartitionPlan plan, long timeout, TimeUnit unit) throws InterruptedException {
+        Aggregation aggregation = new Aggregation(plan.getPartitions());
+        aggregations.put(plan.getRunId(), aggregation);
+        try {
+            log.infof("Partitioned synchronization %s: %s pages in %s partitions", plan.getRunId(), plan.getTotalPages(), plan.getPartitions());
+            transport.publish(plan);
+            if (!aggregation.latch.await(timeout, unit)) {
+                log.warnf("Partitioned synchronization %s timeout: %s/%s partitions done", plan.getRunId(),
+                        aggregation.results.size(), plan.getPartitions());
+            }
+            SynchronizationResult result = new SynchronizationResult();
+            aggregation.results.values().forEach(r -> result.add(r.toSynchronizationResult()));
+            return result;
+        } finally {
+            aggregations.remove(plan.getRunId());
+        }
+    }
+
+    /**
+     * Plan received: claim and import free partitions in background
+     *
+     * @param plan
+     */
+    public void onPlan(PartitionPlan plan) {
+        completed.putIfAbsent(plan.getRunId(), ConcurrentHashMap.newKeySet());
+        executor.submit(() -> work(plan));
+    }
+
+    /**
+     * Partition counters received
+     *
+     * @param result
+     */
+    public void onResult(PartitionResult result) {
+        Set<Integer> done = completed.get(result.getRunId());
+        if (done != null) {
+            done.add(result.getPartition());
+        }
+        Aggregation aggregation = aggregations.get(result.getRunId());
+        if (aggregation != null && aggregation.results.putIfAbsent(result.getPartition(), result) == null) {
+            aggregation.latch.countDown();
+        }
+    }
+
+    private void work(PartitionPlan plan) {
+        int partitions = plan.getPartitions();
+        // Start at a node dependent offset to limit claim contention
+        int offset = Math.floorMod(node.hashCode(), Math.max(1, partitions));
+        for (int i = 0; i < partitions; i++) {
+            final int partition = (offset + i) % partitions;
+            if (isCompleted(plan.getRunId(), partition)) {
+                continue;
+            }
+            try {
+                Optional<PartitionResult> result = transport.claim(key(plan, partition), claimTimeoutSeconds, () -> PartitionResult.of(plan.getRunId(), partition, node,
+                        importer.importPages(plan, plan.firstPage(partition), plan.lastPage(partition))));
+                if (result.isPresent()) {
+                    log.debugf("Partition %s of %s imported by %s: %s", partition, plan.getRunId(), node, result.get());
+                    transport.report(result.get());
+                }
+            } catch (Exception e) {
+                log.error("Failed during import of partition " + partition + " of " + plan.getRunId(), e);
+            }
+        }
+        completed.remove(plan.getRunId());
+    }
+
+    private boolean isCompleted(String runId, int partition) {
+        Set<Integer> done = completed.get(runId);
+        return done != null && done.contains(partition);
+    }
+
+    private static String key(PartitionPlan plan, int partition) {
+        return "rest-federation-partition::" + plan.getRunId() + "::" + partition;
+    }
+
+    private static class Aggregation {
+        private final Map<Integer, PartitionResult> results = new ConcurrentHashMap<>();
+        private final CountDownLatch latch;
+
+        Aggregation(int partitions) {
+            this.latch = new CountDownLatch(partitions);
+        }
+    }
+}
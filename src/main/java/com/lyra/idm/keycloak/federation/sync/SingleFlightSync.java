@@ -0,0 +1,205 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * One synchronization at a time by component, on this node.
+ * <p>
+ * Triggers received while a synchronization is running:
+ * <ul>
+ * <li>running full: updated and full triggers are skipped</li>
+ * <li>running updated: a full trigger is queued and supersedes a queued updated one,
+ * updated triggers coalesce in one queued run since the oldest date</li>
+ * </ul>
+ * The queued run is started by the thread ending the running one. Skipped and queued triggers return an ignored result.
+ * Keycloak moves the last synchronization date forward before each trigger: the date of a skipped updated trigger is
+ * handed back to the task, so that the next updated synchronization requests the same changes.
+ * <p>
+ * Changes received from the change feed can't be skipped or coalesced: they wait for the running synchronization,
+ * and triggers received while they are applied wait for them.
+ */
+@JBossLog
+public class SingleFlightSync {
+
+    @FunctionalInterface
+    public interface SyncTask {
+        /**
+         * @param date empty for a full synchronization, last synchronization date for updated users
+         * @return counters
+         */
+        SynchronizationResult run(Optional<Date> date);
+
+        /**
+         * Updated synchronization not run, nor coalesced in a queued one
+         *
+         * @param since last synchronization date of the skipped trigger
+         */
+        default void skipped(Date since) {
+        }
+    }
+
+    private static class State {
+        private SyncMode running;
+        private SyncMode pending;
+        private Date pendingSince;
+        private boolean changes;
+
+        State(SyncMode running) {
+            this.running = running;
+        }
+    }
+
+    private final Map<String, State> states = new HashMap<>();
+
+    /**
+     * Run a synchronization unless one is running for the component
+     *
+     * @param componentId
+     * @param name        component name for logs
+     * @param date        empty for a full synchronization
+     * @param task        synchronization
+     * @return counters, ignored if skipped or queued
+     */
+    public SynchronizationResult execute(String componentId, String name, Optional<Date> date, SyncTask task) {
+        SyncMode mode = date.isPresent() ? SyncMode.UPDATED : SyncMode.FULL;
+        boolean run = false;
+        synchronized (states) {
+            State state = states.get(componentId);
+            try {
+                while (state != null && state.changes) {
+                    states.wait();
+                    state = states.get(componentId);
+                }
+                if (state == null) {
+                    states.put(componentId, new State(mode));
+                    run = true;
+                } else if (trigger(state, name, mode, date)) {
+                    return SynchronizationResult.ignored();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warnf("[%s] %s synchronization interrupted while changes were applied", name, mode);
+            }
+        }
+        if (!run) {
+            // Outside the lock: the task may update the component
+            date.ifPresent(task::skipped);
+            return SynchronizationResult.ignored();
+        }
+
+        SynchronizationResult result;
+        try {
+            result = task.run(date);
+        } finally {
+            drain(componentId, name, task);
+        }
+        return result;
+    }
+
+    /**
+     * Apply changes once the running synchronization of the component ends
+     *
+     * @param componentId
+     * @param name        component name for logs
+     * @param task        changes import
+     * @param <T>         result type
+     * @return task result
+     * @throws InterruptedException interrupted while waiting for the running synchronization
+     */
+    public <T> T executeChanges(String componentId, String name, Supplier<T> task) throws InterruptedException {
+        synchronized (states) {
+            if (states.containsKey(componentId)) {
+                log.debugf("[%s] Changes waiting for the running synchronization", name);
+            }
+            while (states.containsKey(componentId)) {
+                states.wait();
+            }
+            State state = new State(SyncMode.UPDATED);
+            state.changes = true;
+            states.put(componentId, state);
+        }
+        try {
+            return task.get();
+        } finally {
+            synchronized (states) {
+                states.remove(componentId);
+                states.notifyAll();
+            }
+        }
+    }
+
+    public boolean isRunning(String componentId) {
+        synchronized (states) {
+            return states.containsKey(componentId);
+        }
+    }
+
+    /**
+     * Queue a trigger received while a synchronization is running
+     *
+     * @param state
+     * @param name  component name for logs
+     * @param mode
+     * @param date  empty for a full synchronization
+     * @return false if skipped
+     */
+    private static boolean trigger(State state, String name, SyncMode mode, Optional<Date> date) {
+        if (state.running == SyncMode.FULL) {
+            log.infof("[%s] %s synchronization skipped: full synchronization running", name, mode);
+            return false;
+        } else if (mode == SyncMode.FULL) {
+            if (state.pending == SyncMode.UPDATED) {
+                log.infof("[%s] Queued updated synchronization superseded by full synchronization", name);
+            } else {
+                log.infof("[%s] Full synchronization queued: updated synchronization running", name);
+            }
+            state.pending = SyncMode.FULL;
+            state.pendingSince = null;
+        } else if (state.pending == SyncMode.FULL) {
+            log.infof("[%s] Updated synchronization skipped: full synchronization queued", name);
+            return false;
+        } else if (state.pending == SyncMode.UPDATED) {
+            if (date.get().before(state.pendingSince)) {
+                state.pendingSince = date.get();
+            }
+            log.infof("[%s] Updated synchronization coalesced with queued one since %s", name, state.pendingSince);
+        } else {
+            state.pending = SyncMode.UPDATED;
+            state.pendingSince = date.get();
+            log.infof("[%s] Updated synchronization queued: updated synchronization running", name);
+        }
+        return true;
+    }
+
+    private void drain(String componentId, String name, SyncTask task) {
+        while (true) {
+            Optional<Date> date;
+            synchronized (states) {
+                State state = states.get(componentId);
+                if (state.pending == null) {
+                    states.remove(componentId);
+                    states.notifyAll();
+                    return;
+                }
+                state.running = state.pending;
+                date = Optional.ofNullable(state.pendingSince);
+                state.pending = null;
+                state.pendingSince = null;
+            }
+            log.infof("[%s] Starting queued %s synchronization", name, date.isPresent() ? SyncMode.UPDATED : SyncMode.FULL);
+            try {
+                SynchronizationResult result = task.run(date);
+                log.infof("[%s] Queued synchronization ended: '%s'", name, result);
+            } catch (RuntimeException e) {
+                log.error("Queued synchronization failed", e);
+            }
+        }
+    }
+}
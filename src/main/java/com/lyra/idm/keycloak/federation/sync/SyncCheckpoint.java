@@ -0,0 +1,85 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Progress of a component synchronization: last page committed, counters and users failing to import
+ */
+@Data
+@NoArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class SyncCheckpoint {
+
+    /**
+     * Failed users kept for retry, others are only counted
+     */
+    public static final int MAX_FAILED_USERS = 1000;
+
+    private String runId;
+    private SyncMode mode;
+    /**
+     * Date of updated users requested, kept to resume with the same date
+     */
+    private String since;
+    private int lastPage;
+    private int totalPages;
+    private int added;
+    private int updated;
+    private int failed;
+    private long startedAt;
+    @JsonIgnore
+    private Set<String> failedUsers = new LinkedHashSet<>();
+
+    /**
+     * New run starting at first page
+     *
+     * @param mode  full or updated users
+     * @param since date of updated users, null for full
+     * @return checkpoint
+     */
+    public static SyncCheckpoint start(SyncMode mode, String since) {
+        SyncCheckpoint result = new SyncCheckpoint();
+        result.setRunId(KeycloakModelUtils.generateId());
+        result.setMode(mode);
+        result.setSince(since);
+        result.setStartedAt(System.currentTimeMillis());
+        return result;
+    }
+
+    /**
+     * @return true if every page is committed
+     */
+    @JsonIgnore
+    public boolean isComplete() {
+        return totalPages > 0 && lastPage >= totalPages;
+    }
+
+    /**
+     * Keep a user for retry
+     *
+     * @param userName
+     * @return false if unknown name or too many failed users
+     */
+    public boolean addFailedUser(String userName) {
+        return userName != null && failedUsers.size() < MAX_FAILED_USERS && failedUsers.add(userName);
+    }
+
+    /**
+     * Accumulate counters of a page
+     *
+     * @param result page counters
+     */
+    public void add(SynchronizationResult result) {
+        added += result.getAdded();
+        updated += result.getUpdated();
+        failed += result.getFailed();
+    }
+}
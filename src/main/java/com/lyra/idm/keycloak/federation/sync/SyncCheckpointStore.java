@@ -0,0 +1,215 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import lombok.extern.jbosslog.JBossLog;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synchronization checkpoints persisted as realm attributes, one set of attributes by component and mode: a changed
+ * users synchronization does not overwrite the checkpoint of an interrupted full synchronization.
+ * <p>
+ * Realm attribute values are limited to 255 characters: the checkpoint is a compact JSON value and failed users
+ * are split in several attributes. Checkpoints older than {@link #MAX_AGE} are ignored.
+ * Every change of a realm attribute invalidates the realm in the cache of every node: checkpoints are saved at most
+ * every {@link #SAVE_INTERVAL} and only changed attributes are written.
+ */
+@JBossLog
+public class SyncCheckpointStore {
+
+    public static final String PREFIX = "rest_federation_checkpoint_";
+    public static final String EVENT_ID_PREFIX = "rest_federation_event_id_";
+    public static final long MAX_AGE = TimeUnit.DAYS.toMillis(1);
+    public static final long SAVE_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    private static final int VALUE_LENGTH = 255;
+    private static final String SEP = ",";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private SyncCheckpointStore() {
+    }
+
+    /**
+     * Checkpoint of a component
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param componentId
+     * @param mode
+     * @return checkpoint or empty if none, malformed or too old
+     */
+    public static Optional<SyncCheckpoint> load(KeycloakSessionFactory sessionFactory, String realmId, String componentId, SyncMode mode) {
+        final List<SyncCheckpoint> result = new ArrayList<>(1);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            String value = realm.getAttribute(key(componentId, mode));
+            if (value != null) {
+                try {
+                    SyncCheckpoint checkpoint = MAPPER.readValue(value, SyncCheckpoint.class);
+                    for (int i = 0; realm.getAttribute(failedKey(componentId, mode, i)) != null; i++) {
+                        checkpoint.getFailedUsers().addAll(Arrays.asList(realm.getAttribute(failedKey(componentId, mode, i)).split(SEP)));
+                    }
+                    if (System.currentTimeMillis() - checkpoint.getStartedAt() <= MAX_AGE) {
+                        result.add(checkpoint);
+                    } else {
+                        log.infof("Checkpoint of synchronization %s ignored, started at %tc", checkpoint.getRunId(), checkpoint.getStartedAt());
+                    }
+                } catch (IOException e) {
+                    log.warn("Malformed synchronization checkpoint " + value, e);
+                }
+            }
+        });
+        return result.stream().findFirst();
+    }
+
+    /**
+     * Store checkpoint of a component, under its mode
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param componentId
+     * @param checkpoint
+     */
+    public static void save(KeycloakSessionFactory sessionFactory, String realmId, String componentId, SyncCheckpoint checkpoint) {
+        final String value;
+        try {
+            value = MAPPER.writeValueAsString(checkpoint);
+        } catch (IOException e) {
+            throw new IllegalStateException("Synchronization checkpoint not serializable", e);
+        }
+        final List<String> failed = chunks(checkpoint.getFailedUsers(), VALUE_LENGTH);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            setChanged(realm, key(componentId, checkpoint.getMode()), value);
+            for (int i = 0; i < failed.size(); i++) {
+                setChanged(realm, failedKey(componentId, checkpoint.getMode(), i), failed.get(i));
+            }
+            removeFailed(realm, componentId, checkpoint.getMode(), failed.size());
+        });
+    }
+
+    /**
+     * Remove checkpoint of a component
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param componentId
+     * @param mode
+     */
+    public static void clear(KeycloakSessionFactory sessionFactory, String realmId, String componentId, SyncMode mode) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm != null) {
+                clear(realm, componentId, mode);
+            }
+        });
+    }
+
+    /**
+     * Remove checkpoint of a component in the current transaction
+     *
+     * @param realm
+     * @param componentId
+     * @param mode
+     */
+    public static void clear(RealmModel realm, String componentId, SyncMode mode) {
+        if (realm.getAttribute(key(componentId, mode)) != null) {
+            realm.removeAttribute(key(componentId, mode));
+            removeFailed(realm, componentId, mode, 0);
+        }
+    }
+
+    /**
+     * Last change feed event processed by a component
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param componentId
+     * @return event id or empty to start from now
+     */
+    public static Optional<String> loadEventId(KeycloakSessionFactory sessionFactory, String realmId, String componentId) {
+        final List<String> result = new ArrayList<>(1);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm != null && realm.getAttribute(EVENT_ID_PREFIX + componentId) != null) {
+                result.add(realm.getAttribute(EVENT_ID_PREFIX + componentId));
+            }
+        });
+        return result.stream().findFirst();
+    }
+
+    /**
+     * Store the last change feed event processed by a component
+     *
+     * @param sessionFactory
+     * @param realmId
+     * @param componentId
+     * @param eventId        not longer than a realm attribute value
+     */
+    public static void saveEventId(KeycloakSessionFactory sessionFactory, String realmId, String componentId, String eventId) {
+        if (eventId == null || eventId.length() > VALUE_LENGTH) {
+            log.warnf("Change feed event id of %s not stored: %s", componentId, eventId);
+            return;
+        }
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session ->
+                session.realms().getRealm(realmId).setAttribute(EVENT_ID_PREFIX + componentId, eventId));
+    }
+
+    private static void setChanged(RealmModel realm, String name, String value) {
+        if (!value.equals(realm.getAttribute(name))) {
+            realm.setAttribute(name, value);
+        }
+    }
+
+    private static void removeFailed(RealmModel realm, String componentId, SyncMode mode, int from) {
+        for (int i = from; realm.getAttribute(failedKey(componentId, mode, i)) != null; i++) {
+            realm.removeAttribute(failedKey(componentId, mode, i));
+        }
+    }
+
+    private static String key(String componentId, SyncMode mode) {
+        return PREFIX + componentId + "_" + mode;
+    }
+
+    private static String failedKey(String componentId, SyncMode mode, int index) {
+        return key(componentId, mode) + "_failed_" + index;
+    }
+
+    /**
+     * Join names in values not longer than a length, names too long or containing the separator are dropped
+     *
+     * @param names
+     * @param length max value length
+     * @return values
+     */
+    static List<String> chunks(Collection<String> names, int length) {
+        List<String> result = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (String name : names) {
+            if (name.length() > length || name.contains(SEP)) {
+                log.debugf("Failed user %s not kept in checkpoint", name);
+            } else {
+                if (current.length() > 0 && current.length() + SEP.length() + name.length() > length) {
+                    result.add(current.toString());
+                    current.setLength(0);
+                }
+                if (current.length() > 0) {
+                    current.append(SEP);
+                }
+                current.append(name);
+            }
+        }
+        if (current.length() > 0) {
+            result.add(current.toString());
+        }
+        return result;
+    }
+}
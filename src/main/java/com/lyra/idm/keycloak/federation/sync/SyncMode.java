@@ -0,0 +1,15 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+/**
+ * Kind of synchronization
+ */
+public enum SyncMode {
+    /**
+     * Every user
+     */
+    FULL,
+    /**
+     * Users updated since a date
+     */
+    UPDATED
+}
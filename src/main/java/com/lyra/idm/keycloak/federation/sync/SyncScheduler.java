@@ -0,0 +1,216 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Admission of synchronizations of every component of this node.
+ * <p>
+ * A synchronization waits for a slot: at most maxConcurrent synchronizations run at once, and at most hostLimit on
+ * the same upstream host. Among waiting synchronizations allowed to start, the component started least recently goes
+ * first, so frequent triggers of a component don't starve the others. A synchronization not admitted within maxWait
+ * is given up. Submitted synchronizations run on the scheduler threads after a random delay (jitter), the submitting
+ * thread is not blocked.
+ */
+@JBossLog
+public class SyncScheduler {
+
+    private static class Ticket {
+        private final String componentId;
+        private final Set<String> hosts;
+        private final long arrival;
+        private boolean granted;
+
+        Ticket(String componentId, Set<String> hosts, long arrival) {
+            this.componentId = componentId;
+            this.hosts = hosts;
+            this.arrival = arrival;
+        }
+    }
+
+    public static final long DEFAULT_MAX_WAIT = TimeUnit.HOURS.toMillis(1);
+
+    private final int maxConcurrent;
+    private final int hostLimit;
+    private final long maxJitter;
+    private final long maxWait;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rest-federation-sync-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "rest-federation-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Ticket> waiting = new ArrayList<>();
+    private final Map<String, Integer> runningByHost = new HashMap<>();
+    private final Map<String, Long> lastStarts = new HashMap<>();
+    private int running;
+    private long sequence;
+
+    /**
+     * @param maxConcurrent synchronizations running at once, no limit if <= 0
+     * @param hostLimit     synchronizations running at once on an upstream host, no limit if <= 0
+     * @param maxJitter     maximum random delay before a submitted synchronization in milliseconds, none if <= 0
+     */
+    public SyncScheduler(int maxConcurrent, int hostLimit, long maxJitter) {
+        this(maxConcurrent, hostLimit, maxJitter, DEFAULT_MAX_WAIT);
+    }
+
+    /**
+     * @param maxConcurrent synchronizations running at once, no limit if <= 0
+     * @param hostLimit     synchronizations running at once on an upstream host, no limit if <= 0
+     * @param maxJitter     maximum random delay before a submitted synchronization in milliseconds, none if <= 0
+     * @param maxWait       maximum wait for a slot in milliseconds
+     */
+    public SyncScheduler(int maxConcurrent, int hostLimit, long maxJitter, long maxWait) {
+        this.maxConcurrent = maxConcurrent > 0 ? maxConcurrent : Integer.MAX_VALUE;
+        this.hostLimit = hostLimit > 0 ? hostLimit : Integer.MAX_VALUE;
+        this.maxJitter = maxJitter;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Run a synchronization when admitted, in the calling thread, without jitter
+     *
+     * @param componentId
+     * @param name        component name for logs
+     * @param hosts       upstream hosts requested by the synchronization
+     * @param task        synchronization
+     * @param <T>         result type
+     * @return task result
+     * @throws InterruptedException interrupted before start
+     * @throws TimeoutException     not admitted within maxWait
+     */
+    public <T> T run(String componentId, String name, Set<String> hosts, Supplier<T> task) throws InterruptedException, TimeoutException {
+        long start = System.currentTimeMillis();
+        Ticket ticket = acquire(componentId, hosts, start + maxWait);
+        long waited = System.currentTimeMillis() - start;
+        if (waited > 0) {
+            log.infof("[%s] Synchronization started after waiting %s ms for a slot", name, waited);
+        }
+        try {
+            return task.get();
+        } finally {
+            release(ticket);
+        }
+    }
+
+    /**
+     * Run a synchronization on the scheduler threads, after a random delay
+     *
+     * @param name component name for logs
+     * @param task synchronization, admitted with {@link #run(String, String, Set, Supplier)}
+     */
+    public void submit(String name, Runnable task) {
+        long delay = maxJitter > 0 ? ThreadLocalRandom.current().nextLong(maxJitter) : 0;
+        log.debugf("[%s] Synchronization submitted, starting in %s ms", name, delay);
+        timer.schedule(() -> executor.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.errorf(e, "[%s] Synchronization failed", name);
+            }
+        }), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop scheduler threads, running synchronizations are interrupted
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private synchronized Ticket acquire(String componentId, Set<String> hosts, long deadline) throws InterruptedException, TimeoutException {
+        Ticket ticket = new Ticket(componentId, hosts, ++sequence);
+        waiting.add(ticket);
+        grant();
+        if (!ticket.granted) {
+            log.debugf("Synchronization waiting: %s running, %s waiting", running, waiting.size());
+        }
+        while (!ticket.granted) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                waiting.remove(ticket);
+                throw new TimeoutException("No synchronization slot within " + maxWait + " ms");
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                if (ticket.granted) {
+                    release(ticket);
+                } else {
+                    waiting.remove(ticket);
+                }
+                throw e;
+            }
+        }
+        return ticket;
+    }
+
+    private synchronized void release(Ticket ticket) {
+        running--;
+        ticket.hosts.forEach(h -> runningByHost.computeIfPresent(h, (k, v) -> v > 1 ? v - 1 : null));
+        grant();
+    }
+
+    /**
+     * Start waiting synchronizations while slots are free, least recently started component first
+     */
+    private void grant() {
+        boolean granted = false;
+        while (running < maxConcurrent) {
+            Ticket next = null;
+            for (Ticket ticket : waiting) {
+                if (isHostAvailable(ticket) && (next == null || isBefore(ticket, next))) {
+                    next = ticket;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            waiting.remove(next);
+            next.granted = true;
+            granted = true;
+            running++;
+            next.hosts.forEach(h -> runningByHost.merge(h, 1, Integer::sum));
+            lastStarts.put(next.componentId, ++sequence);
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    private boolean isHostAvailable(Ticket ticket) {
+        return ticket.hosts.stream().allMatch(h -> runningByHost.getOrDefault(h, 0) < hostLimit);
+    }
+
+    private boolean isBefore(Ticket ticket, Ticket other) {
+        long lastStart = lastStarts.getOrDefault(ticket.componentId, 0L);
+        long otherLastStart = lastStarts.getOrDefault(other.componentId, 0L);
+        return lastStart != otherLastStart ? lastStart < otherLastStart : ticket.arrival < other.arrival;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+}
@@ -0,0 +1,248 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import lombok.Getter;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Compact snapshot of a full upstream export: user name and content digest, sorted by user name.
+ * <p>
+ * File layout: magic, configuration version, creation date, count, then records (name length, UTF-8 name, digest).
+ * The previous snapshot is memory-mapped and merged with the current export to find added, changed and removed users.
+ */
+@JBossLog
+public class UserSnapshot {
+
+    private static final int MAGIC = 0x52534e50;
+    private static final int HEADER = 4 + 4 + 8 + 4;
+
+    private final String[] names;
+    private final long[] digests;
+
+    private UserSnapshot(String[] names, long[] digests) {
+        this.names = names;
+        this.digests = digests;
+    }
+
+    /**
+     * Snapshot of exported users
+     *
+     * @param users users with distinct user names
+     * @return snapshot
+     */
+    public static UserSnapshot of(Collection<UserDto> users) {
+        UserDto[] sorted = users.stream().filter(u -> u.getUserName() != null).toArray(UserDto[]::new);
+        Arrays.sort(sorted, (a, b) -> a.getUserName().compareTo(b.getUserName()));
+        String[] names = new String[sorted.length];
+        long[] digests = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            names[i] = sorted[i].getUserName();
+            digests[i] = digest(sorted[i]);
+        }
+        return new UserSnapshot(names, digests);
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Difference with the snapshot stored in a file
+     *
+     * @param file    previous snapshot
+     * @param version expected configuration version
+     * @param maxAge  maximum age in milliseconds, no limit if <= 0
+     * @return difference, empty if no usable previous snapshot
+     */
+    public Optional<Diff> diff(Path file, int version, long maxAge) {
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER || buffer.getInt() != MAGIC) {
+                log.warnf("Snapshot %s is malformed, ignored", file);
+                return Optional.empty();
+            }
+            int fileVersion = buffer.getInt();
+            long createdAt = buffer.getLong();
+            if (fileVersion != version) {
+                log.infof("Snapshot %s was taken with another configuration, ignored", file);
+                return Optional.empty();
+            }
+            if (maxAge > 0 && System.currentTimeMillis() - createdAt > maxAge) {
+                log.infof("Snapshot %s is expired, ignored", file);
+                return Optional.empty();
+            }
+            return Optional.of(merge(buffer, buffer.getInt()));
+        } catch (IOException | RuntimeException e) {
+            log.warnf(e, "Snapshot %s not readable, ignored", file);
+            return Optional.empty();
+        }
+    }
+
+    private Diff merge(ByteBuffer buffer, int count) {
+        Diff result = new Diff();
+        int i = 0;
+        String previousName = null;
+        long previousDigest = 0;
+        int read = 0;
+        while (i < names.length || previousName != null || read < count) {
+            if (previousName == null && read < count) {
+                byte[] name = new byte[buffer.getShort() & 0xffff];
+                buffer.get(name);
+                previousName = new String(name, StandardCharsets.UTF_8);
+                previousDigest = buffer.getLong();
+                read++;
+            }
+            int cmp = previousName == null ? -1 : i >= names.length ? 1 : names[i].compareTo(previousName);
+            if (cmp < 0) {
+                result.added.add(names[i++]);
+            } else if (cmp > 0) {
+                result.removed.add(previousName);
+                previousName = null;
+            } else {
+                if (digests[i] != previousDigest) {
+                    result.changed.add(names[i]);
+                }
+                i++;
+                previousName = null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Atomically replace the snapshot file
+     *
+     * @param file     snapshot file
+     * @param version  configuration version
+     * @param excluded user names left out, imported again by next synchronization
+     * @throws IOException file not written
+     */
+    public void write(Path file, int version, Set<String> excluded) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            int count = 0;
+            for (String name : names) {
+                count += excluded.contains(name) ? 0 : 1;
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(version);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(count);
+                for (int i = 0; i < names.length; i++) {
+                    if (!excluded.contains(names[i])) {
+                        byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+                        out.writeShort(name.length);
+                        out.write(name);
+                        out.writeLong(digests[i]);
+                    }
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Content digest of a user, independent of roles, groups and attributes order
+     *
+     * @param user remote user
+     * @return first 64 bits of SHA-256
+     */
+    static long digest(UserDto user) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(md, user.getUserName());
+        update(md, user.getEmail());
+        update(md, user.getFirstName());
+        update(md, user.getLastName());
+        update(md, String.valueOf(user.isEnabled()));
+        update(md, user.getPassword());
+        update(md, user.getRoles());
+        update(md, user.getGroups());
+        if (user.isDeleted()) {
+            update(md, "deleted");
+        }
+        // Digests of users without the field unchanged
+        if (user.getEmailVerified() != null) {
+            update(md, "emailVerified:" + user.getEmailVerified());
+        }
+        if (user.getAttributes() != null) {
+            for (Map.Entry<String, List<String>> entry : new TreeMap<>(user.getAttributes()).entrySet()) {
+                update(md, entry.getKey());
+                update(md, entry.getValue());
+            }
+        }
+        byte[] hash = md.digest();
+        return ByteBuffer.wrap(hash).getLong();
+    }
+
+    private static void update(MessageDigest md, Collection<String> values) {
+        if (values == null) {
+            md.update((byte) 1);
+        } else {
+            String[] sorted = values.stream().map(v -> v == null ? "" : v).sorted().toArray(String[]::new);
+            md.update((byte) 2);
+            for (String value : sorted) {
+                update(md, value);
+            }
+        }
+        md.update((byte) 3);
+    }
+
+    private static void update(MessageDigest md, String value) {
+        if (value != null) {
+            md.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        md.update((byte) 0);
+    }
+
+    /**
+     * User names differing from the previous snapshot
+     */
+    @Getter
+    public static class Diff {
+        private final Set<String> added = new HashSet<>();
+        private final Set<String> changed = new HashSet<>();
+        private final Set<String> removed = new HashSet<>();
+
+        public boolean contains(String userName) {
+            return added.contains(userName) || changed.contains(userName);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d added, %d changed, %d removed", added.size(), changed.size(), removed.size());
+        }
+    }
+}
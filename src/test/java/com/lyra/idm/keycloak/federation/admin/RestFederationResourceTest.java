@@ -0,0 +1,54 @@
+package com.lyra.idm.keycloak.federation.admin;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import java.util.Collections;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Resynchronization endpoint: callers are authenticated before anything else.
+ */
+public class RestFederationResourceTest {
+
+    private final KeycloakSession session = mock(KeycloakSession.class);
+    private final RealmModel realm = mock(RealmModel.class);
+    private RestFederationResource resource;
+
+    @Before
+    public void setUp() {
+        KeycloakContext context = mock(KeycloakContext.class);
+        HttpHeaders headers = mock(HttpHeaders.class);
+        when(headers.getRequestHeaders()).thenReturn(new MultivaluedHashMap<>());
+        when(context.getRequestHeaders()).thenReturn(headers);
+        when(context.getRealm()).thenReturn(realm);
+        when(session.getContext()).thenReturn(context);
+        resource = new RestFederationResource(session);
+    }
+
+    @Test(expected = NotAuthorizedException.class)
+    public void testMissingBody() {
+        resource.resync("component1", null);
+    }
+
+    @Test(expected = NotAuthorizedException.class)
+    public void testTooManyUsers() {
+        resource.resync("component1", Collections.nCopies(RestFederationResource.MAX_USERS + 1, "user1"));
+    }
+
+    @Test(expected = NotAuthorizedException.class)
+    public void testUnknownComponent() {
+        try {
+            resource.resync("unknown", Collections.singletonList("user1"));
+        } finally {
+            verify(realm, never()).getComponent(anyString());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import com.xebialabs.restito.server.StubServer;
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.util.HttpStatus;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.xebialabs.restito.builder.stub.StubHttp.whenHttp;
+import static com.xebialabs.restito.builder.verify.VerifyHttp.verifyHttp;
+import static com.xebialabs.restito.semantics.Action.*;
+import static com.xebialabs.restito.semantics.Condition.*;
+import static java.lang.String.format;
+
+/**
+ * Users requested one by one when upstream has no bulk endpoint, remembered between repositories.
+ */
+public class BulkUsersFallbackTest {
+
+    private static StubServer server;
+
+    @BeforeClass
+    public static void setUp() {
+        server = new StubServer().run();
+        for (int status : new int[]{404, 405, 501, 500}) {
+            whenHttp(server).match(post("/s" + status + "/users")).then(status(HttpStatus.getHttpStatus(status)));
+            for (String userName : Arrays.asList("user1", "user2")) {
+                whenHttp(server).match(get("/s" + status + "/user/" + userName)).then(status(HttpStatus.OK_200), contentType("application/json"),
+                        stringContent(format("{\"userName\":\"%s\",\"email\":\"%s@test.com\",\"enabled\":true}", userName, userName)));
+            }
+        }
+    }
+
+    @AfterClass
+    public static void stop() {
+        server.stop();
+    }
+
+    private Set<UserDto> getUsers(int status, Set<String> bulkUnsupported) throws IOException {
+        // Repositories are built for each request
+        UserRepository repository = new UserRepository(format("http://localhost:%d/s%d", server.getPort(), status), false,
+                UserProjection.ALL, PageHedger.NONE, bulkUnsupported);
+        return repository.getUsers(Arrays.asList("user1", "user2"));
+    }
+
+    private void checkFallback(int status) throws IOException {
+        Set<String> bulkUnsupported = ConcurrentHashMap.newKeySet();
+
+        Assert.assertEquals(2, getUsers(status, bulkUnsupported).size());
+        Assert.assertEquals(2, getUsers(status, bulkUnsupported).size());
+
+        verifyHttp(server).once(method(Method.POST), uri("/s" + status + "/users"));
+        Assert.assertEquals(1, bulkUnsupported.size());
+    }
+
+    @Test
+    public void testNotFound() throws IOException {
+        checkFallback(404);
+    }
+
+    @Test
+    public void testMethodNotAllowed() throws IOException {
+        checkFallback(405);
+    }
+
+    @Test
+    public void testNotImplemented() throws IOException {
+        checkFallback(501);
+    }
+
+    @Test
+    public void testFailure() {
+        Set<String> bulkUnsupported = ConcurrentHashMap.newKeySet();
+        try {
+            getUsers(500, bulkUnsupported);
+            Assert.fail("Upstream failure expected");
+        } catch (IOException e) {
+            Assert.assertTrue(bulkUnsupported.isEmpty());
+        }
+    }
+}
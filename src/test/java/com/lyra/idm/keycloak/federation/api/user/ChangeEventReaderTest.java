@@ -0,0 +1,68 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Server-Sent Events change feed reader tests.
+ */
+public class ChangeEventReaderTest {
+
+    private static final String STREAM = ": heartbeat\n\n"
+            + "id: 1\nevent: user\ndata: {\"userName\":\"user1\",\"email\":\"user1@test.com\"}\n\n"
+            + "id: 2\ndata: {\"userName\":\"user2\",\n"
+            + "data: \"deleted\":true}\n\n"
+            + "id: 3\n\n"
+            + "retry: 1000\n\n"
+            + "id: 4\ndata: {\"userName\":\"user4\"}\n";
+
+    private final List<String> ids = new ArrayList<>();
+    private final List<UserDto> users = new ArrayList<>();
+
+    private void read(String stream, ChangeListener listener) throws IOException {
+        new ChangeEventReader(new UserDecoder(UserProjection.ALL)).read(new BufferedReader(new StringReader(stream)), listener);
+    }
+
+    @Test
+    public void testEvents() throws IOException {
+        read(STREAM, (eventId, changed) -> {
+            ids.add(eventId);
+            users.addAll(changed);
+        });
+        // Event 4 not terminated by a blank line
+        Assert.assertEquals(Arrays.asList("1", "2", "3"), ids);
+        Assert.assertEquals(2, users.size());
+        Assert.assertEquals("user1@test.com", users.get(0).getEmail());
+        Assert.assertEquals("user2", users.get(1).getUserName());
+        Assert.assertTrue(users.get(1).isDeleted());
+    }
+
+    @Test
+    public void testInactiveListener() throws IOException {
+        read(STREAM, new ChangeListener() {
+            @Override
+            public void onChanges(String eventId, List<UserDto> changed) {
+                ids.add(eventId);
+            }
+
+            @Override
+            public boolean isActive() {
+                return ids.isEmpty();
+            }
+        });
+        Assert.assertEquals(Arrays.asList("1"), ids);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformed() throws IOException {
+        read("id: 1\ndata: {\"userName\":\n\n", (eventId, changed) -> users.addAll(changed));
+    }
+}
@@ -0,0 +1,101 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hedged page requests.
+ */
+public class PageHedgerTest {
+
+    private static void warmUp(PageHedger hedger) throws IOException {
+        for (int i = 0; i < PageHedger.MIN_SAMPLES; i++) {
+            hedger.call(() -> "page");
+        }
+    }
+
+    /**
+     * First call slow, next calls fast
+     */
+    private static String slowFirst(AtomicInteger calls) throws InterruptedException {
+        if (calls.incrementAndGet() == 1) {
+            TimeUnit.SECONDS.sleep(5);
+            return "slow";
+        }
+        return "fast";
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        AtomicInteger calls = new AtomicInteger();
+        Assert.assertEquals("page", PageHedger.NONE.call(() -> {
+            calls.incrementAndGet();
+            return "page";
+        }));
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(0, PageHedger.NONE.getRequests());
+    }
+
+    @Test
+    public void testHedgeWins() throws IOException {
+        PageHedger hedger = new PageHedger(95, 100);
+        warmUp(hedger);
+        AtomicInteger calls = new AtomicInteger();
+        long start = System.nanoTime();
+        Assert.assertEquals("fast", hedger.call(() -> slowFirst(calls)));
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals(1, hedger.getHedged());
+        Assert.assertEquals(1, hedger.getWins());
+    }
+
+    @Test
+    public void testNoBudget() throws IOException {
+        PageHedger hedger = new PageHedger(50, 0);
+        warmUp(hedger);
+        AtomicInteger calls = new AtomicInteger();
+        Assert.assertEquals("page", hedger.call(() -> {
+            calls.incrementAndGet();
+            TimeUnit.MILLISECONDS.sleep(100);
+            return "page";
+        }));
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(0, hedger.getHedged());
+    }
+
+    @Test
+    public void testFailedRequestWaitsForOther() throws IOException {
+        PageHedger hedger = new PageHedger(95, 100);
+        warmUp(hedger);
+        AtomicInteger calls = new AtomicInteger();
+        Assert.assertEquals("slow", hedger.call(() -> {
+            if (calls.incrementAndGet() == 1) {
+                TimeUnit.MILLISECONDS.sleep(300);
+                return "slow";
+            }
+            throw new IOException("hedge failed");
+        }));
+        Assert.assertEquals(0, hedger.getWins());
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailure() throws IOException {
+        PageHedger hedger = new PageHedger(95, 100);
+        warmUp(hedger);
+        hedger.call(() -> {
+            throw new IOException("upstream down");
+        });
+    }
+
+    @Test
+    public void testPercentile() {
+        PageHedger hedger = new PageHedger(90, 5);
+        for (int i = 1; i <= 10; i++) {
+            hedger.record(i);
+        }
+        Assert.assertEquals(9, hedger.delay());
+    }
+}
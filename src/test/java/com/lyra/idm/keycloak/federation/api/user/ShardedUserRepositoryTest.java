@@ -0,0 +1,56 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shards merge tests.
+ */
+public class ShardedUserRepositoryTest {
+
+    private static UserDto user(String name, String firstName, Long lastModified) {
+        UserDto result = new UserDto();
+        result.setUserName(name);
+        result.setEmail(name + "@test.com");
+        result.setFirstName(firstName);
+        result.setLastModified(lastModified);
+        return result;
+    }
+
+    private static ShardedUserRepository repository(ConflictPolicy policy) {
+        return new ShardedUserRepository(Arrays.asList("http://shard1", "http://shard2"), false, policy, new ConcurrentHashMap<>());
+    }
+
+    private static String firstName(Set<UserDto> users, String name) {
+        return users.stream().filter(u -> name.equals(u.getUserName())).findFirst().map(UserDto::getFirstName).orElse(null);
+    }
+
+    @Test
+    public void testPriority() {
+        Set<UserDto> merged = repository(ConflictPolicy.PRIORITY).merge(Arrays.asList(
+                new HashSet<>(Arrays.asList(user("user1", "shard1", 1L), user("user2", "shard1", null))),
+                new HashSet<>(Arrays.asList(user("USER1", "shard2", 2L), user("user3", "shard2", null)))));
+
+        Assert.assertEquals(3, merged.size());
+        Assert.assertEquals("shard1", firstName(merged, "user1"));
+    }
+
+    @Test
+    public void testMostRecent() {
+        Set<UserDto> merged = repository(ConflictPolicy.MOST_RECENT).merge(Arrays.asList(
+                new HashSet<>(Arrays.asList(user("user1", "shard1", 1L), user("user2", "shard1", 5L))),
+                new HashSet<>(Arrays.asList(user("user1", "shard2", 2L), user("user2", "shard2", null))),
+                Collections.emptySet()));
+
+        Assert.assertEquals(2, merged.size());
+        Assert.assertEquals("shard2", firstName(merged, "user1"));
+        Assert.assertEquals("shard1", firstName(merged, "user2"));
+    }
+}
@@ -0,0 +1,65 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.xebialabs.restito.server.StubServer;
+import org.glassfish.grizzly.http.util.HttpStatus;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.xebialabs.restito.builder.stub.StubHttp.whenHttp;
+import static com.xebialabs.restito.semantics.Action.status;
+import static com.xebialabs.restito.semantics.Condition.startsWithUri;
+import static java.lang.String.format;
+
+/**
+ * Clients shared by the repositories of a component: pooled connections released after each request.
+ */
+public class UserClientsTest {
+
+    private static StubServer server;
+
+    @BeforeClass
+    public static void setUp() {
+        server = new StubServer().run();
+        whenHttp(server).match(startsWithUri("/user/")).then(status(HttpStatus.NOT_FOUND_404));
+    }
+
+    @AfterClass
+    public static void stop() {
+        server.stop();
+    }
+
+    @Test
+    public void testShared() {
+        UserClients clients = new UserClients(false);
+
+        Assert.assertSame(clients.get(0, false), clients.get(0, false));
+        Assert.assertNotSame(clients.get(0, false), clients.get(0, true));
+        Assert.assertNotSame(clients.get(0, false), clients.get(10, false));
+        clients.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosed() {
+        UserClients clients = new UserClients(false);
+        clients.close();
+
+        clients.get(0, false);
+    }
+
+    @Test(timeout = 30000)
+    public void testConnectionsReleased() throws IOException {
+        UserClients clients = new UserClients(false);
+        // Lookups of unknown users, more than pooled connections
+        for (int i = 0; i < UserClients.POOL_SIZE * 3; i++) {
+            UserRepository repository = new UserRepository(format("http://localhost:%d", server.getPort()), false, UserProjection.ALL,
+                    PageHedger.NONE, ConcurrentHashMap.newKeySet(), clients);
+            Assert.assertFalse(repository.getUser("user" + i).isPresent());
+        }
+        clients.close();
+    }
+}
@@ -0,0 +1,65 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Streaming user decoder tests.
+ */
+public class UserDecoderTest {
+
+    private static final String BODY = "[{\"userName\":\"user1\",\"email\":\"user1@test.com\",\"enabled\":true,\"emailVerified\":false,"
+            + "\"roles\":[\"role1\",\"role2\"],\"groups\":[\"group1\"],\"password\":\"hash\",\"unknown\":{\"nested\":[1,2]},"
+            + "\"attributes\":{\"phone\":[\"0102\"],\"locale\":\"fr\",\"secret\":[\"s\"]},\"lastModified\":1500000000000}]";
+
+    @Test
+    public void testAll() throws IOException {
+        Set<UserDto> users = new UserDecoder(UserProjection.ALL).readUsers(BODY);
+        Assert.assertEquals(1, users.size());
+        UserDto user = users.iterator().next();
+        Assert.assertEquals("user1", user.getUserName());
+        Assert.assertTrue(user.isEnabled());
+        Assert.assertEquals(Boolean.FALSE, user.getEmailVerified());
+        Assert.assertEquals(2, user.getRoles().size());
+        Assert.assertEquals(Collections.singleton("group1"), user.getGroups());
+        Assert.assertEquals("hash", user.getPassword());
+        Assert.assertEquals(3, user.getAttributes().size());
+        Assert.assertEquals("fr", user.getAttributes().get("locale").get(0));
+        Assert.assertEquals(Long.valueOf(1500000000000L), user.getLastModified());
+    }
+
+    @Test
+    public void testProjection() throws IOException {
+        UserProjection projection = UserProjection.of(false, false, true, false, Collections.singletonList("phone"));
+        UserDto user = new UserDecoder(projection).readUsers(BODY).iterator().next();
+        Assert.assertEquals("user1@test.com", user.getEmail());
+        Assert.assertNull(user.getRoles());
+        Assert.assertNull(user.getGroups());
+        Assert.assertNull(user.getPassword());
+        Assert.assertEquals(Collections.singleton("phone"), user.getAttributes().keySet());
+        Assert.assertEquals(Long.valueOf(1500000000000L), user.getLastModified());
+    }
+
+    @Test
+    public void testTombstone() throws IOException {
+        UserProjection projection = UserProjection.of(false, false, false, false, Collections.emptyList());
+        UserDto user = new UserDecoder(projection).readUser("{\"userName\":\"user1\",\"deleted\":true}");
+        Assert.assertEquals("user1", user.getUserName());
+        Assert.assertNull(user.getEmail());
+        Assert.assertNull(user.getEmailVerified());
+        Assert.assertTrue(user.isDeleted());
+    }
+
+    @Test
+    public void testSingleUser() throws IOException {
+        UserDecoder decoder = new UserDecoder(UserProjection.ALL);
+        Assert.assertEquals("user1", decoder.readUser(BODY.substring(1, BODY.length() - 1)).getUserName());
+        Assert.assertNull(decoder.readUser("null"));
+        Assert.assertTrue(decoder.readUsers("[]").isEmpty());
+    }
+}
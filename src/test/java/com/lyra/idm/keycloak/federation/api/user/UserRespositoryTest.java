@@ -29,8 +29,6 @@ import static com.xebialabs.restito.semantics.Action.*;
 import static com.xebialabs.restito.semantics.Condition.*;
 import static java.lang.String.format;
 
-//TODO not executed with maven
-
 /**
  * Remote user federation provider factory tests.
  */
@@ -0,0 +1,126 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Users spool tests.
+ */
+public class UserSpoolTest {
+
+    /**
+     * Precedence of the synchronization: user name, then newest record, then live record
+     */
+    private static final Comparator<UserDto> PRECEDENCE = Comparator
+            .comparing(UserDto::getUserName, Comparator.nullsLast(Comparator.<String>naturalOrder()))
+            .thenComparing(UserDto::getLastModified, Comparator.nullsLast(Comparator.<Long>reverseOrder()))
+            .thenComparing(UserDto::isDeleted);
+
+    private static UserDto user(String userName, String email) {
+        List<String> values = new ArrayList<>(Collections.singletonList("value of " + userName));
+        return new UserDto("first", "last", userName, email, true, new HashSet<>(Arrays.asList("role1", "role2")),
+                Collections.singletonMap("attribute", values), null, null, null, false, null);
+    }
+
+    @Test
+    public void testInMemory() throws IOException {
+        List<UserDto> rejected = new ArrayList<>();
+        try (UserSpool spool = new UserSpool(Long.MAX_VALUE, PRECEDENCE, rejected::add)) {
+            spool.add(user("user1", "user1@test.com"));
+            spool.add(user("user2", "user2@test.com"));
+
+            Assert.assertFalse(spool.isSpilled());
+            Assert.assertEquals(2, spool.size());
+            Assert.assertTrue(rejected.isEmpty());
+        }
+    }
+
+    @Test
+    public void testSpillAndDedup() throws IOException {
+        List<UserDto> rejected = new ArrayList<>();
+        UserSpool spool = new UserSpool(1000, PRECEDENCE, rejected::add);
+        for (int i = 0; i < 1000; i++) {
+            spool.add(user("user" + i, "user" + i + "@test.com"));
+        }
+        spool.add(user("user1", "other@test.com"));
+        // Email kept by the first user name in precedence order
+        spool.add(user("zother", "user2@test.com"));
+        spool.add(null);
+
+        Assert.assertTrue(spool.isSpilled());
+        Assert.assertEquals(1000, spool.size());
+        Assert.assertEquals(2, rejected.size());
+
+        // Read twice, in insertion order
+        for (int pass = 0; pass < 2; pass++) {
+            int i = 0;
+            for (UserDto user : spool) {
+                Assert.assertEquals("user" + i, user.getUserName());
+                Assert.assertEquals("value of user" + i, user.getAttributes().get("attribute").get(0));
+                i++;
+            }
+            Assert.assertEquals(1000, i);
+        }
+        spool.close();
+    }
+
+    private static UserDto user(String userName, String email, Long lastModified, boolean deleted) {
+        UserDto result = user(userName, email);
+        result.setLastModified(lastModified);
+        result.setDeleted(deleted);
+        return result;
+    }
+
+    private static void checkPrecedence(long threshold) throws IOException {
+        List<UserDto> rejected = new ArrayList<>();
+        try (UserSpool spool = new UserSpool(threshold, PRECEDENCE, rejected::add)) {
+            for (int i = 0; i < 100; i++) {
+                spool.add(user("user" + i, "user" + i + "@test.com", 1000L, false));
+            }
+            // Newer tombstone supersedes the live record already spooled
+            spool.add(user("user1", null, 2000L, true));
+            // Older record of user2 skipped
+            spool.add(user("user2", "user2@test.com", 500L, false));
+            // Live record wins over a tombstone of the same date
+            spool.add(user("user3", null, 1000L, true));
+            // Email of user4 kept by the first user name
+            spool.add(user("user40", "user4@test.com", 3000L, false));
+
+            Assert.assertEquals(threshold < Long.MAX_VALUE, spool.isSpilled());
+            Assert.assertEquals(100, spool.size());
+            Assert.assertEquals(4, rejected.size());
+            int count = 0;
+            for (UserDto user : spool) {
+                if ("user1".equals(user.getUserName())) {
+                    Assert.assertTrue(user.isDeleted());
+                } else if ("user40".equals(user.getUserName())) {
+                    Assert.assertEquals("user40@test.com", user.getEmail());
+                } else {
+                    Assert.assertFalse(user.getUserName(), user.isDeleted());
+                    Assert.assertEquals(Long.valueOf(1000L), user.getLastModified());
+                }
+                count++;
+            }
+            Assert.assertEquals(100, count);
+        }
+    }
+
+    @Test
+    public void testPrecedenceInMemory() throws IOException {
+        checkPrecedence(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testPrecedenceSpilled() throws IOException {
+        checkPrecedence(1000);
+    }
+}
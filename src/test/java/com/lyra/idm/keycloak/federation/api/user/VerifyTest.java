@@ -0,0 +1,71 @@
+package com.lyra.idm.keycloak.federation.api.user;
+
+import com.xebialabs.restito.server.StubServer;
+import org.glassfish.grizzly.http.util.HttpStatus;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.xebialabs.restito.builder.stub.StubHttp.whenHttp;
+import static com.xebialabs.restito.builder.verify.VerifyHttp.verifyHttp;
+import static com.xebialabs.restito.semantics.Action.status;
+import static com.xebialabs.restito.semantics.Condition.*;
+import static java.lang.String.format;
+
+/**
+ * Password verification answers mapped to valid, invalid or upstream failure.
+ */
+public class VerifyTest {
+
+    private static StubServer server;
+
+    @BeforeClass
+    public static void setUp() {
+        server = new StubServer().run();
+        for (int status : new int[]{200, 204, 401, 403, 500, 503}) {
+            whenHttp(server).match(post("/s" + status + "/verify")).then(status(HttpStatus.getHttpStatus(status)));
+        }
+    }
+
+    @AfterClass
+    public static void stop() {
+        server.stop();
+    }
+
+    private boolean verify(int status) throws IOException {
+        return new UserRepository(format("http://localhost:%d/s%d", server.getPort(), status), false).verify("user1", "secret");
+    }
+
+    @Test
+    public void testValid() throws IOException {
+        Assert.assertTrue(verify(200));
+        Assert.assertTrue(verify(204));
+        verifyHttp(server).once(post("/s200/verify"), withPostBodyContaining("\"password\":\"secret\""));
+    }
+
+    @Test
+    public void testInvalid() throws IOException {
+        Assert.assertFalse(verify(401));
+        Assert.assertFalse(verify(403));
+    }
+
+    @Test
+    public void testFailure() {
+        for (int status : new int[]{500, 503}) {
+            try {
+                verify(status);
+                Assert.fail("Upstream failure taken as an answer: " + status);
+            } catch (IOException e) {
+                // Neither valid nor invalid
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAvailable() throws IOException {
+        new UserRepository("http://localhost:1", false).verify("user1", "secret");
+    }
+}
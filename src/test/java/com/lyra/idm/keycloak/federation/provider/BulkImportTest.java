@@ -0,0 +1,132 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Creation of new users by chunk, with one by one fallback.
+ */
+public class BulkImportTest {
+
+    private final List<String> importedOneByOne = new ArrayList<>();
+    private final RestUserFederationProviderFactory factory = new RestUserFederationProviderFactory() {
+        @Override
+        protected SyncOutcome importUser(UserDto restUser, KeycloakSessionFactory sessionFactory, String realmId, ComponentModel fedModel,
+                                         RestUserFederationConfig config, SynchronizationResult syncResult) {
+            importedOneByOne.add(restUser.getUserName());
+            syncResult.increaseAdded();
+            return SyncOutcome.ADDED;
+        }
+    };
+    private final RealmModel realm = TestModels.realm();
+    private final UserProvider users = mock(UserProvider.class);
+    private final UserCache userCache = mock(UserCache.class);
+    private final RestUserFederationProvider provider = mock(RestUserFederationProvider.class);
+    private KeycloakSessionFactory sessionFactory;
+
+    private static List<UserDto> remote(String... userNames) {
+        List<UserDto> result = new ArrayList<>();
+        for (String userName : userNames) {
+            UserDto user = new UserDto();
+            user.setUserName(userName);
+            user.setEmail(userName + "@test.com");
+            result.add(user);
+        }
+        return result;
+    }
+
+    @Before
+    public void setUp() {
+        KeycloakSession session = TestModels.session(realm, users);
+        when(session.getProvider(eq(UserStorageProvider.class), any(ComponentModel.class))).thenReturn(provider);
+        when(session.userCache()).thenReturn(userCache);
+        when(users.getUsersCount(realm)).thenReturn(1000);
+        sessionFactory = TestModels.sessionFactory(session);
+    }
+
+    private SynchronizationResult importUsers(List<UserDto> remoteUsers, String... properties) {
+        ComponentModel component = TestModels.component(properties);
+        SynchronizationResult result = new SynchronizationResult();
+        factory.importUsers(remoteUsers, sessionFactory, TestModels.REALM_ID, component, RestUserFederationConfig.of(component), result);
+        return result;
+    }
+
+    @Test
+    public void testChunks() {
+        SynchronizationResult result = importUsers(remote("user1", "user2", "user3"), RestUserFederationProviderFactory.BULK_IMPORT_SIZE, "2");
+
+        verify(provider, times(3)).importUserFromRest(any(KeycloakSession.class), eq(realm), any(UserDto.class), anyBoolean());
+        Assert.assertEquals(3, result.getAdded());
+        Assert.assertTrue(importedOneByOne.isEmpty());
+        // Few users created: realm kept in cache
+        verify(userCache, never()).evict(realm);
+    }
+
+    @Test
+    public void testManyCreated() {
+        when(users.getUsersCount(realm)).thenReturn(4);
+
+        importUsers(remote("user1", "user2", "user3", "user4"), RestUserFederationProviderFactory.BULK_IMPORT_SIZE, "2");
+
+        verify(userCache, times(1)).evict(realm);
+    }
+
+    @Test
+    public void testFallback() {
+        when(provider.importUserFromRest(any(KeycloakSession.class), eq(realm), any(UserDto.class), anyBoolean())).thenAnswer(i -> {
+            if ("user2".equals(((UserDto) i.getArguments()[2]).getUserName())) {
+                throw new IllegalStateException("constraint");
+            }
+            return null;
+        });
+
+        SynchronizationResult result = importUsers(remote("user1", "user2", "user3"), RestUserFederationProviderFactory.BULK_IMPORT_SIZE, "2");
+
+        // Failed chunk imported one by one, next chunk created
+        Assert.assertEquals(Arrays.asList("user1", "user2"), importedOneByOne);
+        Assert.assertEquals(3, result.getAdded());
+    }
+
+    @Test
+    public void testExistingUsersOneByOne() {
+        when(users.getUserByUsername("user1", realm)).thenReturn(TestModels.user("id1", "user1", "user1@test.com"));
+
+        importUsers(remote("user1", "user2"), RestUserFederationProviderFactory.BULK_IMPORT_SIZE, "2");
+
+        Assert.assertEquals(Arrays.asList("user1"), importedOneByOne);
+        verify(provider, times(1)).importUserFromRest(any(KeycloakSession.class), eq(realm), any(UserDto.class), anyBoolean());
+    }
+
+    @Test
+    public void testSynchronousResetEmails() {
+        importUsers(remote("user1", "user2"), RestUserFederationProviderFactory.BULK_IMPORT_SIZE, "2",
+                RestUserFederationProviderFactory.RESET_ACTIONS, "VERIFY_EMAIL");
+
+        Assert.assertEquals(Arrays.asList("user1", "user2"), importedOneByOne);
+        verifyZeroInteractions(provider);
+    }
+
+    @Test
+    public void testAsynchronousResetEmails() {
+        importUsers(remote("user1", "user2"), RestUserFederationProviderFactory.BULK_IMPORT_SIZE, "2",
+                RestUserFederationProviderFactory.RESET_ACTIONS, "VERIFY_EMAIL", RestUserFederationProviderFactory.RESET_ACTION_ASYNC, "true");
+
+        Assert.assertTrue(importedOneByOne.isEmpty());
+    }
+}
@@ -0,0 +1,76 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import com.lyra.idm.keycloak.federation.sync.ChangeFeedConsumer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Change feed consumer of a component: restarted on feed settings change, changes imported as synchronizations.
+ */
+public class ChangeFeedTest {
+
+    private final List<String> imported = new ArrayList<>();
+    private final RestUserFederationProviderFactory factory = new RestUserFederationProviderFactory() {
+        @Override
+        protected PasswordSynchronizationResult importUsers(Collection<UserDto> users, KeycloakSessionFactory sessionFactory, String realmId,
+                                                            ComponentModel fedModel, RestUserFederationConfig config, SynchronizationResult syncResult) {
+            users.forEach(u -> imported.add(u.getUserName()));
+            return new PasswordSynchronizationResult();
+        }
+    };
+    private final KeycloakSessionFactory sessionFactory = TestModels.sessionFactory(TestModels.session(TestModels.realm(), mock(UserProvider.class)));
+
+    private static UserStorageProviderModel component(String wait) {
+        return new UserStorageProviderModel(TestModels.component(RestUserFederationProviderFactory.PROPERTY_URL, "http://localhost:1",
+                RestUserFederationProviderFactory.CHANGE_FEED, "true", RestUserFederationProviderFactory.CHANGE_FEED_WAIT, wait));
+    }
+
+    @After
+    public void tearDown() {
+        factory.close();
+    }
+
+    @Test
+    public void testRestartOnFeedSettingsChange() {
+        UserStorageProviderModel model = component("30");
+        factory.isFedByChangeFeed(sessionFactory, TestModels.REALM_ID, model);
+        ChangeFeedConsumer consumer = factory.feed(model.getId());
+        UserStorageProviderModel synced = component("30");
+        synced.setLastSync(1500000000);
+
+        // Last synchronization date updated by every synchronization
+        factory.isFedByChangeFeed(sessionFactory, TestModels.REALM_ID, synced);
+        Assert.assertSame(consumer, factory.feed(model.getId()));
+        Assert.assertTrue(consumer.isRunning());
+
+        factory.isFedByChangeFeed(sessionFactory, TestModels.REALM_ID, component("10"));
+        Assert.assertNotSame(consumer, factory.feed(model.getId()));
+        Assert.assertFalse(consumer.isRunning());
+        Assert.assertTrue(factory.feed(model.getId()).isRunning());
+    }
+
+    @Test
+    public void testApplyChanges() {
+        UserDto user = new UserDto();
+        user.setUserName("user1");
+        user.setEmail("user1@test.com");
+
+        factory.applyChanges(Collections.singletonList(user), sessionFactory, TestModels.REALM_ID, component("30"));
+
+        Assert.assertEquals(Collections.singletonList("user1"), imported);
+    }
+}
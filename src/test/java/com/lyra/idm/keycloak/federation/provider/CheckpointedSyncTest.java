@@ -0,0 +1,190 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.api.user.UserPage;
+import com.lyra.idm.keycloak.federation.api.user.UserRepository;
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import com.lyra.idm.keycloak.federation.sync.SyncCheckpoint;
+import com.lyra.idm.keycloak.federation.sync.SyncCheckpointStore;
+import com.lyra.idm.keycloak.federation.sync.SyncMode;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Resumed synchronization: checkpoint resume, failed users retry and clearing.
+ */
+public class CheckpointedSyncTest {
+
+    private final List<String> imported = new ArrayList<>();
+    private final Set<String> failing = new HashSet<>();
+    private final RestUserFederationProviderFactory factory = new RestUserFederationProviderFactory() {
+        @Override
+        protected PasswordSynchronizationResult importUsers(Collection<UserDto> users, KeycloakSessionFactory sessionFactory, String realmId,
+                                                            ComponentModel fedModel, RestUserFederationConfig config, SynchronizationResult syncResult,
+                                                            Consumer<UserDto> failed) {
+            for (UserDto user : users) {
+                imported.add(user.getUserName());
+                if (failing.contains(user.getUserName())) {
+                    syncResult.increaseFailed();
+                    failed.accept(user);
+                } else {
+                    syncResult.increaseAdded();
+                }
+            }
+            return new PasswordSynchronizationResult();
+        }
+    };
+    private final UserRepository repository = mock(UserRepository.class);
+    private RealmModel realm;
+    private KeycloakSessionFactory sessionFactory;
+    private ComponentModel component;
+
+    private static UserDto user(String userName) {
+        UserDto result = new UserDto();
+        result.setUserName(userName);
+        result.setEmail(userName + "@test.com");
+        return result;
+    }
+
+    private static UserPage page(int page, int totalPages, String... userNames) {
+        Set<UserDto> users = new HashSet<>();
+        for (String userName : userNames) {
+            users.add(user(userName));
+        }
+        return new UserPage(users, page, totalPages);
+    }
+
+    @Before
+    public void setUp() {
+        realm = TestModels.realm();
+        sessionFactory = TestModels.sessionFactory(TestModels.session(realm, mock(UserProvider.class)));
+        component = TestModels.component();
+    }
+
+    private SynchronizationResult sync(Optional<Date> date) {
+        return factory.checkpointedSync(date, sessionFactory, TestModels.REALM_ID, component, TestModels.config(), repository);
+    }
+
+    private Optional<SyncCheckpoint> checkpoint(SyncMode mode) {
+        return SyncCheckpointStore.load(sessionFactory, TestModels.REALM_ID, TestModels.COMPONENT_ID, mode);
+    }
+
+    @Test
+    public void testCompleted() throws IOException {
+        when(repository.getUsersPage(1)).thenReturn(page(1, 2, "user1"));
+        when(repository.getUsersPage(2)).thenReturn(page(2, 2, "user2"));
+
+        SynchronizationResult result = sync(Optional.empty());
+
+        Assert.assertEquals(2, result.getAdded());
+        Assert.assertFalse(checkpoint(SyncMode.FULL).isPresent());
+        Assert.assertTrue(realm.getAttributes().isEmpty());
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        when(repository.getUsersPage(1)).thenReturn(page(1, 3, "user1"));
+        when(repository.getUsersPage(2)).thenThrow(new IOException("unavailable"));
+
+        sync(Optional.empty());
+
+        SyncCheckpoint checkpoint = checkpoint(SyncMode.FULL).get();
+        Assert.assertEquals(1, checkpoint.getLastPage());
+        Assert.assertEquals(3, checkpoint.getTotalPages());
+
+        reset(repository);
+        when(repository.getUsersPage(2)).thenReturn(page(2, 3, "user2"));
+        when(repository.getUsersPage(3)).thenReturn(page(3, 3, "user3"));
+        imported.clear();
+
+        sync(Optional.empty());
+
+        verify(repository, never()).getUsersPage(1);
+        Assert.assertEquals(2, imported.size());
+        Assert.assertFalse(checkpoint(SyncMode.FULL).isPresent());
+    }
+
+    @Test
+    public void testFailedUsersRetriedThenNewRun() throws IOException {
+        failing.add("bad");
+        Date since = new Date(0);
+        when(repository.getUpdatedUsersPage(RestUserFederationProviderFactory.formatDate(since), 1)).thenReturn(page(1, 1, "user1", "bad"));
+
+        sync(Optional.of(since));
+
+        SyncCheckpoint checkpoint = checkpoint(SyncMode.UPDATED).get();
+        Assert.assertTrue(checkpoint.isComplete());
+        Assert.assertEquals(Collections.singleton("bad"), checkpoint.getFailedUsers());
+
+        failing.clear();
+        imported.clear();
+        Date next = new Date();
+        when(repository.getUser("bad")).thenReturn(Optional.of(user("bad")));
+        when(repository.getUpdatedUsersPage(RestUserFederationProviderFactory.formatDate(next), 1)).thenReturn(page(1, 1, "user2"));
+
+        SynchronizationResult result = sync(Optional.of(next));
+
+        // Changes since the new date are not lost after the retry
+        Assert.assertEquals(2, result.getAdded());
+        Assert.assertTrue(imported.contains("bad"));
+        Assert.assertTrue(imported.contains("user2"));
+        Assert.assertFalse(checkpoint(SyncMode.UPDATED).isPresent());
+    }
+
+    @Test
+    public void testStillFailingUsersKept() throws IOException {
+        failing.add("bad");
+        when(repository.getUsersPage(1)).thenReturn(page(1, 1, "bad"));
+        sync(Optional.empty());
+        when(repository.getUser("bad")).thenReturn(Optional.of(user("bad")));
+
+        sync(Optional.empty());
+
+        SyncCheckpoint checkpoint = checkpoint(SyncMode.FULL).get();
+        Assert.assertEquals(Collections.singleton("bad"), checkpoint.getFailedUsers());
+        Assert.assertEquals(1, checkpoint.getFailed());
+    }
+
+    @Test
+    public void testFullResumedAfterUpdated() throws IOException {
+        when(repository.getUsersPage(1)).thenReturn(page(1, 2, "user1"));
+        when(repository.getUsersPage(2)).thenThrow(new IOException("unavailable"));
+        sync(Optional.empty());
+
+        Date since = new Date(0);
+        when(repository.getUpdatedUsersPage(RestUserFederationProviderFactory.formatDate(since), 1)).thenReturn(page(1, 1, "user3"));
+        sync(Optional.of(since));
+
+        // Completed changed users synchronization does not clear the interrupted full synchronization
+        Assert.assertFalse(checkpoint(SyncMode.UPDATED).isPresent());
+        Assert.assertEquals(1, checkpoint(SyncMode.FULL).get().getLastPage());
+
+        reset(repository);
+        when(repository.getUsersPage(2)).thenReturn(page(2, 2, "user2"));
+        imported.clear();
+
+        sync(Optional.empty());
+
+        verify(repository, never()).getUsersPage(1);
+        Assert.assertEquals(Collections.singletonList("user2"), imported);
+        Assert.assertFalse(checkpoint(SyncMode.FULL).isPresent());
+    }
+}
@@ -0,0 +1,125 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Group mode: group of a set of roles and membership diff.
+ */
+public class GroupSynchronizationTest {
+
+    private final RealmModel realm = TestModels.realm();
+    private final Set<GroupModel> groups = new HashSet<>();
+    private final Set<RoleModel> roles = new HashSet<>();
+    private UserModel local;
+    private RestUserFederationProvider provider;
+
+    private static GroupModel group(String name) {
+        GroupModel group = mock(GroupModel.class);
+        when(group.getId()).thenReturn("id-" + name);
+        when(group.getName()).thenReturn(name);
+        return group;
+    }
+
+    private static RoleModel role(String name) {
+        RoleModel role = mock(RoleModel.class);
+        when(role.getName()).thenReturn(name);
+        return role;
+    }
+
+    private static UserDto remote(Set<String> roles, Set<String> groups) {
+        UserDto result = new UserDto();
+        result.setUserName("user1");
+        result.setEmail("user1@test.com");
+        result.setRoles(roles);
+        result.setGroups(groups);
+        return result;
+    }
+
+    @Before
+    public void setUp() {
+        local = TestModels.user("id1", "user1", "user1@test.com");
+        when(local.getGroups()).thenReturn(groups);
+        when(local.getRealmRoleMappings()).thenReturn(roles);
+        when(realm.getRole(anyString())).thenAnswer(i -> role((String) i.getArguments()[0]));
+        when(realm.createGroup(anyString(), anyString())).thenAnswer(i -> group((String) i.getArguments()[1]));
+        RestUserFederationConfig config = TestModels.config(RestUserFederationProviderFactory.PREFIX, "EXT",
+                RestUserFederationProviderFactory.ROLE_SYNC, "true", RestUserFederationProviderFactory.GROUP_SYNC, "true");
+        provider = new RestUserFederationProvider(TestModels.session(realm, mock(UserProvider.class)), TestModels.component(),
+                null, config, new ComponentCache(config));
+    }
+
+    @Test
+    public void testRoleSetGroupName() {
+        String name = provider.roleSetGroupName(new HashSet<>(Arrays.asList("admin", "user")));
+
+        Assert.assertTrue(name.startsWith("EXT_roles_"));
+        Assert.assertEquals(name, provider.roleSetGroupName(new HashSet<>(Arrays.asList("user", "EXT_admin"))));
+        Assert.assertNotEquals(name, provider.roleSetGroupName(Collections.singleton("admin")));
+    }
+
+    @Test
+    public void testMembershipDiff() {
+        GroupModel old = group("EXT_old");
+        GroupModel kept = group("EXT_kept");
+        GroupModel manual = group("manual");
+        groups.addAll(Arrays.asList(old, kept, manual));
+
+        provider.proxy(realm, local, remote(null, new HashSet<>(Arrays.asList("kept", "new"))), false, false);
+
+        verify(local).leaveGroup(old);
+        verify(local, never()).leaveGroup(kept);
+        verify(local, never()).leaveGroup(manual);
+        verify(realm).createGroup(RestUserFederationProvider.groupId(realm, "EXT_new"), "EXT_new");
+        verify(local, times(1)).joinGroup(any(GroupModel.class));
+    }
+
+    @Test
+    public void testRemoteGroupsKeepRoles() {
+        RoleModel admin = role("EXT_admin");
+        when(realm.getRole("EXT_admin")).thenReturn(admin);
+
+        provider.proxy(realm, local, remote(Collections.singleton("admin"), Collections.singleton("team")), false, false);
+
+        verify(local).grantRole(admin);
+        verify(local, never()).deleteRoleMapping(any(RoleModel.class));
+    }
+
+    @Test
+    public void testRoleSetGroup() {
+        RoleModel direct = role("EXT_admin");
+        roles.add(direct);
+
+        provider.proxy(realm, local, remote(Collections.singleton("admin"), null), false, false);
+
+        String name = provider.roleSetGroupName(Collections.singleton("admin"));
+        verify(realm).createGroup(RestUserFederationProvider.groupId(realm, name), name);
+        verify(local).deleteRoleMapping(direct);
+        verify(local, never()).grantRole(any(RoleModel.class));
+    }
+
+    @Test
+    public void testGroupCreatedByAnotherNode() {
+        GroupModel existing = group("EXT_team");
+        when(realm.getGroupById(RestUserFederationProvider.groupId(realm, "EXT_team"))).thenReturn(existing);
+
+        provider.proxy(realm, local, remote(null, Collections.singleton("team")), false, false);
+
+        verify(realm, never()).createGroup(anyString(), anyString());
+        verify(local).joinGroup(existing);
+    }
+}
@@ -0,0 +1,92 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Import rate adapted to database latency.
+ */
+public class ImportThrottleTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+    @Test
+    public void testDisabled() {
+        ImportThrottle throttle = new ImportThrottle(0, 0, 100);
+        AtomicInteger probes = new AtomicInteger();
+        for (int i = 0; i < ImportThrottle.WINDOW * 2; i++) {
+            throttle.acquire(1);
+            throttle.record(SLOW, probes::incrementAndGet);
+        }
+        Assert.assertEquals(100, throttle.getRate(), 0);
+        Assert.assertEquals(0, throttle.getDecreases());
+        Assert.assertEquals(0, probes.get());
+    }
+
+    @Test
+    public void testSlowTransactionsHalveRate() {
+        ImportThrottle throttle = new ImportThrottle(100, 0, 100);
+        throttle.adjust(SLOW, 0);
+        Assert.assertEquals(50, throttle.getRate(), 0);
+        throttle.adjust(SLOW, 0);
+        Assert.assertEquals(25, throttle.getRate(), 0);
+        Assert.assertEquals(2, throttle.getDecreases());
+    }
+
+    @Test
+    public void testFastTransactionsIncreaseRate() {
+        ImportThrottle throttle = new ImportThrottle(100, 0, 100);
+        throttle.adjust(SLOW, 0);
+        throttle.adjust(FAST, 0);
+        Assert.assertEquals(55, throttle.getRate(), 0);
+        for (int i = 0; i < 20; i++) {
+            throttle.adjust(FAST, 0);
+        }
+        Assert.assertEquals(100, throttle.getRate(), 0);
+    }
+
+    @Test
+    public void testSlowProbeHalvesRate() {
+        ImportThrottle throttle = new ImportThrottle(100, 50, 100);
+        throttle.adjust(FAST, FAST);
+        Assert.assertEquals(100, throttle.getRate(), 0);
+        throttle.adjust(FAST, SLOW);
+        Assert.assertEquals(50, throttle.getRate(), 0);
+    }
+
+    @Test
+    public void testProbeOncePerWindow() {
+        ImportThrottle throttle = new ImportThrottle(100, 50, 1000000);
+        AtomicInteger probes = new AtomicInteger();
+        for (int i = 0; i < ImportThrottle.WINDOW * 3; i++) {
+            throttle.record(FAST, () -> {
+                probes.incrementAndGet();
+                return FAST;
+            });
+        }
+        Assert.assertEquals(3, probes.get());
+    }
+
+    @Test
+    public void testChunkSamples() {
+        ImportThrottle throttle = new ImportThrottle(100, 0, 100);
+        // One chunk transaction of a window of users, 50 ms by user
+        throttle.record(TimeUnit.MILLISECONDS.toNanos(50) * ImportThrottle.WINDOW, ImportThrottle.WINDOW, () -> 0);
+        Assert.assertEquals(0, throttle.getDecreases());
+        throttle.record(SLOW * ImportThrottle.WINDOW, ImportThrottle.WINDOW, () -> 0);
+        Assert.assertEquals(1, throttle.getDecreases());
+    }
+
+    @Test
+    public void testMinimumRate() {
+        ImportThrottle throttle = new ImportThrottle(100, 0, 4);
+        for (int i = 0; i < 10; i++) {
+            throttle.adjust(SLOW, 0);
+        }
+        Assert.assertEquals(1, throttle.getRate(), 0);
+    }
+}
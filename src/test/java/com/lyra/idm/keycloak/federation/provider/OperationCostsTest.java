@@ -0,0 +1,34 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measured synchronization costs.
+ */
+public class OperationCostsTest {
+
+    @Test
+    public void testDefaults() {
+        OperationCosts costs = new OperationCosts();
+        for (SyncOutcome outcome : SyncOutcome.values()) {
+            Assert.assertFalse(costs.isMeasured(outcome));
+            Assert.assertTrue(costs.nanos(outcome) > 0);
+        }
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(50), costs.nanos(SyncOutcome.ADDED));
+    }
+
+    @Test
+    public void testMovingAverage() {
+        OperationCosts costs = new OperationCosts();
+        costs.record(SyncOutcome.UPDATED, 1000);
+        Assert.assertTrue(costs.isMeasured(SyncOutcome.UPDATED));
+        Assert.assertEquals(1000, costs.nanos(SyncOutcome.UPDATED));
+        costs.record(SyncOutcome.UPDATED, 3000);
+        // 1000 + 0.05 * (3000 - 1000)
+        Assert.assertEquals(1100, costs.nanos(SyncOutcome.UPDATED));
+        Assert.assertFalse(costs.isMeasured(SyncOutcome.ADDED));
+    }
+}
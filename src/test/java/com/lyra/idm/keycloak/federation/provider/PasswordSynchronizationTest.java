@@ -0,0 +1,131 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialManager;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.UserStorageProvider;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Password synchronization: unchanged hashes skipped, failing batches replayed user by user.
+ */
+public class PasswordSynchronizationTest {
+
+    private final RealmModel realm = TestModels.realm();
+    private final UserProvider users = mock(UserProvider.class);
+    private final UserCredentialManager credentials = mock(UserCredentialManager.class);
+    private final ComponentModel component = TestModels.component(RestUserFederationProviderFactory.PASSWORD_SYNC, "true",
+            RestUserFederationProviderFactory.PASSWORD_HASH_ALGORITHM, "pbkdf2-sha256",
+            RestUserFederationProviderFactory.PASSWORD_HASH_ITERATION, "27500",
+            RestUserFederationProviderFactory.PASSWORD_BATCH_SIZE, "10");
+    private KeycloakSession session;
+    private RestUserFederationProvider provider;
+    private UserModel local;
+
+    private static UserDto remote(String userName, String password) {
+        UserDto result = new UserDto();
+        result.setUserName(userName);
+        result.setEmail(userName + "@test.com");
+        result.setPassword(password);
+        return result;
+    }
+
+    private static CredentialModel stored(String hash, String algorithm, int iterations) {
+        CredentialModel result = new CredentialModel();
+        result.setValue(hash);
+        result.setAlgorithm(algorithm);
+        result.setHashIterations(iterations);
+        return result;
+    }
+
+    @Before
+    public void setUp() {
+        session = TestModels.session(realm, users);
+        when(session.userCredentialManager()).thenReturn(credentials);
+        RestUserFederationConfig config = RestUserFederationConfig.of(component);
+        provider = new RestUserFederationProvider(session, component, null, config, new ComponentCache(config));
+        local = TestModels.user("id1", "user1", "user1@test.com");
+    }
+
+    private void storedCredential(CredentialModel credential) {
+        when(credentials.getStoredCredentialsByType(realm, local, UserCredentialModel.PASSWORD)).thenReturn(Collections.singletonList(credential));
+    }
+
+    @Test
+    public void testUnchangedSkipped() {
+        storedCredential(stored("hash", "pbkdf2-sha256", 27500));
+
+        Assert.assertEquals(PasswordStatus.UNCHANGED, provider.passwordSynchronization(realm, local, remote("user1", "hash")));
+
+        verify(credentials, never()).updateCredential(any(RealmModel.class), any(UserModel.class), any(CredentialModel.class));
+        verify(credentials, never()).createCredential(any(RealmModel.class), any(UserModel.class), any(CredentialModel.class));
+    }
+
+    @Test
+    public void testChangedWritten() {
+        for (CredentialModel credential : Arrays.asList(stored("old", "pbkdf2-sha256", 27500), stored("hash", "sha256", 27500),
+                stored("hash", "pbkdf2-sha256", 1))) {
+            storedCredential(credential);
+
+            Assert.assertEquals(PasswordStatus.UPDATED, provider.passwordSynchronization(realm, local, remote("user1", "hash")));
+
+            verify(credentials).updateCredential(realm, local, credential);
+            Assert.assertEquals("hash", credential.getValue());
+            Assert.assertEquals("pbkdf2-sha256", credential.getAlgorithm());
+            Assert.assertEquals(27500, credential.getHashIterations());
+        }
+    }
+
+    @Test
+    public void testCreatedAndMissing() {
+        when(credentials.getStoredCredentialsByType(realm, local, UserCredentialModel.PASSWORD)).thenReturn(Collections.emptyList());
+
+        Assert.assertEquals(PasswordStatus.CREATED, provider.passwordSynchronization(realm, local, remote("user1", "hash")));
+        Assert.assertEquals(PasswordStatus.MISSING, provider.passwordSynchronization(realm, local, remote("user1", null)));
+
+        verify(credentials, times(1)).createCredential(eq(realm), eq(local), any(CredentialModel.class));
+    }
+
+    @Test
+    public void testBatchFallback() {
+        RestUserFederationProvider batchProvider = mock(RestUserFederationProvider.class);
+        when(session.getProvider(eq(UserStorageProvider.class), any(ComponentModel.class))).thenReturn(batchProvider);
+        for (String userName : Arrays.asList("user1", "bad", "user2")) {
+            when(users.getUserByUsername(userName, realm)).thenReturn(TestModels.user("id-" + userName, userName, userName + "@test.com"));
+        }
+        when(batchProvider.passwordSynchronization(eq(realm), any(UserModel.class), any(UserDto.class))).thenAnswer(i -> {
+            if ("bad".equals(((UserDto) i.getArguments()[2]).getUserName())) {
+                throw new ModelException("constraint violation");
+            }
+            return PasswordStatus.CREATED;
+        });
+        RestUserFederationProviderFactory factory = new RestUserFederationProviderFactory();
+
+        PasswordSynchronizationResult result = factory.passwordSynchronization(TestModels.sessionFactory(session), TestModels.REALM_ID,
+                component, RestUserFederationConfig.of(component), Arrays.asList(remote("user1", "h1"), remote("bad", "h2"), remote("user2", "h3")));
+
+        // Failing batch counted once, then replayed user by user
+        Assert.assertEquals(2, result.get(PasswordStatus.CREATED));
+        Assert.assertEquals(1, result.get(PasswordStatus.FAILED));
+        ArgumentCaptor<UserDto> synced = ArgumentCaptor.forClass(UserDto.class);
+        verify(batchProvider, times(5)).passwordSynchronization(eq(realm), any(UserModel.class), synced.capture());
+        Assert.assertEquals(Arrays.asList("user1", "bad", "user1", "bad", "user2"),
+                synced.getAllValues().stream().map(UserDto::getUserName).collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,104 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.api.user.UserMapper;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Password validation with upstream and cache of verified passwords.
+ */
+public class PasswordValidationTest {
+
+    private final UserMapper repository = mock(UserMapper.class);
+    private final RealmModel realm = TestModels.realm();
+    private RestUserFederationProvider provider;
+    private UserModel user;
+
+    @Before
+    public void setUp() {
+        RestUserFederationConfig config = TestModels.config(RestUserFederationProviderFactory.PASSWORD_VALIDATION, "true");
+        provider = new RestUserFederationProvider(TestModels.session(realm, mock(UserProvider.class)), TestModels.component(),
+                repository, config, new ComponentCache(config));
+        user = TestModels.user("id1", "user1", "user1@test.com");
+        when(user.getFederationLink()).thenReturn(TestModels.COMPONENT_ID);
+    }
+
+    private boolean isValid(String password) {
+        return provider.isValid(realm, user, UserCredentialModel.password(password));
+    }
+
+    @Test
+    public void testVerifiedCached() throws IOException {
+        when(repository.verify("user1", "secret")).thenReturn(true);
+
+        Assert.assertTrue(isValid("secret"));
+        Assert.assertTrue(isValid("secret"));
+
+        verify(repository, times(1)).verify("user1", "secret");
+    }
+
+    @Test
+    public void testInvalidNotCached() throws IOException {
+        when(repository.verify("user1", "secret")).thenReturn(true);
+        Assert.assertTrue(isValid("secret"));
+        when(repository.verify("user1", "secret")).thenReturn(false);
+        when(repository.verify("user1", "other")).thenReturn(false);
+
+        // Rejected password drops the verified one
+        Assert.assertFalse(isValid("other"));
+        Assert.assertFalse(isValid("secret"));
+
+        verify(repository, times(2)).verify("user1", "secret");
+    }
+
+    @Test
+    public void testUpstreamFailure() throws IOException {
+        when(repository.verify("user1", "secret")).thenThrow(new IOException("unavailable"));
+
+        Assert.assertFalse(isValid("secret"));
+        Assert.assertFalse(isValid("secret"));
+
+        verify(repository, times(2)).verify("user1", "secret");
+    }
+
+    @Test
+    public void testOtherComponent() throws IOException {
+        when(user.getFederationLink()).thenReturn("another-component");
+
+        Assert.assertFalse(isValid("secret"));
+
+        verify(repository, never()).verify(anyString(), anyString());
+    }
+
+    @Test
+    public void testCache() {
+        VerifiedPasswordCache cache = new VerifiedPasswordCache(1, TimeUnit.MINUTES, 10);
+        cache.verified("user1", "secret");
+
+        Assert.assertTrue(cache.isVerified("user1", "secret"));
+        Assert.assertFalse(cache.isVerified("user1", "other"));
+        Assert.assertFalse(cache.isVerified("user2", "secret"));
+        cache.invalidate("user1");
+        Assert.assertFalse(cache.isVerified("user1", "secret"));
+    }
+
+    @Test
+    public void testCacheExpired() throws InterruptedException {
+        VerifiedPasswordCache cache = new VerifiedPasswordCache(50, TimeUnit.MILLISECONDS, 10);
+        cache.verified("user1", "secret");
+
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        Assert.assertFalse(cache.isVerified("user1", "secret"));
+    }
+}
@@ -0,0 +1,135 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.sync.PartitionPlan;
+import com.lyra.idm.keycloak.federation.sync.PartitionResult;
+import com.lyra.idm.keycloak.federation.sync.PartitionTransport;
+import com.lyra.idm.keycloak.federation.sync.PartitionedSync;
+import com.xebialabs.restito.server.StubServer;
+import org.glassfish.grizzly.http.util.HttpStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.xebialabs.restito.builder.stub.StubHttp.whenHttp;
+import static com.xebialabs.restito.semantics.Action.*;
+import static com.xebialabs.restito.semantics.Condition.startsWithUri;
+import static java.lang.String.format;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Periodic synchronizations handed over to the scheduler threads and claimed in the cluster.
+ */
+public class PeriodicSyncTest {
+
+    private static final int TOTAL_PAGES = 3;
+
+    private StubServer server;
+    private final InMemoryTransport transport = new InMemoryTransport();
+    private final CountDownLatch imported = new CountDownLatch(TOTAL_PAGES);
+    private final RestUserFederationProviderFactory factory = new RestUserFederationProviderFactory() {
+        @Override
+        protected boolean isAdminRequest() {
+            return false;
+        }
+
+        @Override
+        protected PartitionTransport partitionTransport(KeycloakSessionFactory factory) {
+            return transport;
+        }
+
+        @Override
+        protected SynchronizationResult importPages(KeycloakSessionFactory sessionFactory, PartitionPlan plan, int firstPage, int lastPage) {
+            SynchronizationResult result = new SynchronizationResult();
+            for (int page = firstPage; page <= lastPage; page++) {
+                result.increaseAdded();
+                imported.countDown();
+            }
+            return result;
+        }
+    };
+    private final KeycloakSessionFactory sessionFactory = TestModels.sessionFactory(TestModels.session(TestModels.realm(), mock(UserProvider.class)));
+
+    /**
+     * Claims are locks released after work like cluster locks, not reentrant
+     */
+    private static class InMemoryTransport implements PartitionTransport {
+        private final List<PartitionedSync> nodes = new CopyOnWriteArrayList<>();
+        private final Map<String, Boolean> locks = new ConcurrentHashMap<>();
+
+        @Override
+        public void register(PartitionedSync node) {
+            nodes.add(node);
+        }
+
+        @Override
+        public void publish(PartitionPlan plan) {
+            nodes.forEach(n -> n.onPlan(plan));
+        }
+
+        @Override
+        public void report(PartitionResult result) {
+            nodes.forEach(n -> n.onResult(result));
+        }
+
+        @Override
+        public <T> Optional<T> claim(String key, int timeoutSeconds, Callable<T> work) throws Exception {
+            if (locks.putIfAbsent(key, Boolean.TRUE) != null) {
+                return Optional.empty();
+            }
+            try {
+                return Optional.ofNullable(work.call());
+            } finally {
+                locks.remove(key);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        server = new StubServer().run();
+        whenHttp(server).
+                match(startsWithUri("/full")).
+                then(
+                        status(HttpStatus.OK_200),
+                        header("X-Page", "1"),
+                        header("X-Total-Pages", String.valueOf(TOTAL_PAGES)),
+                        header("X-Per-Page", "200"),
+                        contentType("application/json"),
+                        resourceContent("com.lyra.idm.keycloak.federation.api/users.json")
+                );
+        factory.postInit(sessionFactory);
+    }
+
+    @After
+    public void tearDown() {
+        factory.close();
+        server.stop();
+    }
+
+    @Test
+    public void testClusterSync() throws InterruptedException {
+        UserStorageProviderModel model = new UserStorageProviderModel(TestModels.component(
+                RestUserFederationProviderFactory.PROPERTY_URL, format("http://localhost:%d", server.getPort()),
+                RestUserFederationProviderFactory.CLUSTER_SYNC, "true",
+                RestUserFederationProviderFactory.CLUSTER_SYNC_PAGES, "1"));
+
+        // Handed over, then coordinated while the periodic claim is held
+        Assert.assertTrue(factory.sync(sessionFactory, TestModels.REALM_ID, model).isIgnored());
+
+        Assert.assertTrue("every page imported", imported.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,144 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.api.user.UserMapper;
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Remote users (no import): remote users cache and Keycloak user cache kept consistent.
+ */
+public class RemoteModeTest {
+
+    private final UserMapper repository = mock(UserMapper.class);
+    private final RestUserFederationProviderFactory factory = new RestUserFederationProviderFactory() {
+        @Override
+        protected UserMapper repository(RestUserFederationConfig config) {
+            return repository;
+        }
+    };
+    private final RealmModel realm = TestModels.realm();
+    private final UserCache userCache = mock(UserCache.class);
+    private final ComponentModel component = TestModels.component(RestUserFederationProviderFactory.REMOTE_MODE, "true",
+            RestUserFederationProviderFactory.REMOTE_CACHE_TTL, "60");
+    private KeycloakSessionFactory sessionFactory;
+    private TtlCache<String, RemoteUser> remoteUsers;
+
+    private static RemoteUser remote(String userName, boolean enabled, boolean emailVerified) {
+        return new RemoteUser(userName, userName + "@test.com", "first", "last", enabled, emailVerified, Collections.emptyMap(),
+                Collections.emptySet(), Collections.emptySet());
+    }
+
+    @Before
+    public void setUp() {
+        KeycloakSession session = TestModels.session(realm, mock(UserProvider.class));
+        when(session.userCache()).thenReturn(userCache);
+        sessionFactory = TestModels.sessionFactory(session);
+        remoteUsers = factory.getCache(factory.getConfig(component)).getRemoteUsers();
+        RemoteUser user1 = remote("user1", true, true);
+        remoteUsers.put("username:user1", user1);
+        remoteUsers.put("email:user1@test.com", user1);
+        RemoteUser user2 = remote("user2", true, true);
+        remoteUsers.put("username:user2", user2);
+        remoteUsers.put("email:user2@test.com", user2);
+    }
+
+    private List<UserModel> evicted(int count) {
+        ArgumentCaptor<UserModel> users = ArgumentCaptor.forClass(UserModel.class);
+        verify(userCache, times(count)).evict(eq(realm), users.capture());
+        return users.getAllValues();
+    }
+
+    @Test
+    public void testResync() throws IOException {
+        List<ResyncResult> result = factory.resync(sessionFactory, TestModels.REALM_ID, component, Collections.singletonList("User1"));
+
+        Assert.assertEquals(SyncOutcome.SKIPPED.name(), result.get(0).getStatus());
+        Assert.assertNull(remoteUsers.get("username:user1"));
+        Assert.assertNull(remoteUsers.get("email:user1@test.com"));
+        Assert.assertNotNull(remoteUsers.get("username:user2"));
+        // Keycloak user cache entries by id, user name and email
+        UserModel user = evicted(1).get(0);
+        Assert.assertEquals("f:" + TestModels.COMPONENT_ID + ":user1", user.getId());
+        Assert.assertEquals("user1", user.getUsername());
+        Assert.assertEquals("user1@test.com", user.getEmail());
+        verifyZeroInteractions(repository);
+    }
+
+    @Test
+    public void testResyncNotCached() throws IOException {
+        factory.resync(sessionFactory, TestModels.REALM_ID, component, Collections.singletonList("user3"));
+
+        UserModel user = evicted(1).get(0);
+        Assert.assertEquals("user3", user.getUsername());
+        Assert.assertNull(user.getEmail());
+    }
+
+    @Test
+    public void testSync() {
+        factory.syncImpl(Optional.empty(), sessionFactory, TestModels.REALM_ID, component);
+
+        Assert.assertEquals(0, remoteUsers.size());
+        // Each user once, cached by user name and email
+        Assert.assertEquals(2, evicted(2).stream().map(UserModel::getUsername).distinct().count());
+        verifyZeroInteractions(repository);
+    }
+
+    @Test
+    public void testCachePolicy() {
+        RestUserFederationProviderFactory.remoteCachePolicy(component);
+
+        UserStorageProviderModel model = new UserStorageProviderModel(component);
+        Assert.assertEquals(UserStorageProviderModel.CachePolicy.MAX_LIFESPAN, model.getCachePolicy());
+        Assert.assertEquals(60000L, model.getMaxLifespan());
+    }
+
+    @Test
+    public void testCachePolicyKept() {
+        UserStorageProviderModel noCache = new UserStorageProviderModel(component);
+        noCache.setCachePolicy(UserStorageProviderModel.CachePolicy.NO_CACHE);
+        UserStorageProviderModel shorter = new UserStorageProviderModel(component);
+        shorter.setCachePolicy(UserStorageProviderModel.CachePolicy.MAX_LIFESPAN);
+        shorter.setMaxLifespan(1000);
+        ComponentModel imported = TestModels.component();
+
+        RestUserFederationProviderFactory.remoteCachePolicy(noCache);
+        RestUserFederationProviderFactory.remoteCachePolicy(shorter);
+        RestUserFederationProviderFactory.remoteCachePolicy(imported);
+
+        Assert.assertEquals(UserStorageProviderModel.CachePolicy.NO_CACHE, new UserStorageProviderModel(noCache).getCachePolicy());
+        Assert.assertEquals(1000L, new UserStorageProviderModel(shorter).getMaxLifespan());
+        Assert.assertNull(imported.getConfig().getFirst("cachePolicy"));
+    }
+
+    @Test
+    public void testEmailVerified() {
+        RemoteUserAdapter adapter = new RemoteUserAdapter(mock(KeycloakSession.class), realm, component, remote("user1", true, false), null);
+        UserDto restUser = new UserDto();
+        restUser.setEnabled(true);
+
+        Assert.assertTrue(adapter.isEnabled());
+        Assert.assertFalse(adapter.isEmailVerified());
+        // Enabled flag without upstream value
+        Assert.assertTrue(RestUserFederationProvider.emailVerified(restUser));
+        restUser.setEmailVerified(false);
+        Assert.assertFalse(RestUserFederationProvider.emailVerified(restUser));
+    }
+}
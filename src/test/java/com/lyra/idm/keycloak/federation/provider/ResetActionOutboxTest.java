@@ -0,0 +1,117 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.UserStorageProvider;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.lyra.idm.keycloak.federation.provider.RestUserFederationProviderFactory.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Durable outbox of reset action emails: retries, abandon and rate limit.
+ */
+public class ResetActionOutboxTest {
+
+    private final ResetActionOutbox outbox = new ResetActionOutbox();
+    private RealmModel realm;
+    private UserModel user;
+    private RestUserFederationProvider provider;
+    private KeycloakSessionFactory sessionFactory;
+    private ComponentModel component;
+
+    @Before
+    public void setUp() {
+        realm = TestModels.realm();
+        user = TestModels.user("id1", "user1", "user1@test.com");
+        UserProvider local = mock(UserProvider.class);
+        when(local.getUserById("id1", realm)).thenReturn(user);
+        when(local.searchForUserByUserAttribute(ResetActionOutbox.OUTBOX_COMPONENT, TestModels.COMPONENT_ID, realm))
+                .thenAnswer(i -> user.getFirstAttribute(ResetActionOutbox.OUTBOX_COMPONENT) != null
+                        ? Collections.singletonList(user) : Collections.emptyList());
+        KeycloakSession session = TestModels.session(realm, local);
+        provider = mock(RestUserFederationProvider.class);
+        component = TestModels.component();
+        when(session.getProvider(UserStorageProvider.class, component)).thenReturn(provider);
+        sessionFactory = TestModels.sessionFactory(session);
+        ResetActionOutbox.enqueue(user, TestModels.COMPONENT_ID, Arrays.asList("UPDATE_PASSWORD", "VERIFY_EMAIL"));
+    }
+
+    private RestUserFederationConfig config(String rate, String retry) {
+        return TestModels.config(PUBLIC_URL, "http://idm.test", RESET_ACTION_RATE, rate, RESET_ACTION_RETRY, retry);
+    }
+
+    @Test
+    public void testSent() {
+        when(provider.sendResetAction(eq(realm), eq(user), anyString(), any(ResetActionContext.class))).thenReturn(true);
+
+        outbox.send(sessionFactory, TestModels.REALM_ID, component, config("0", "3"));
+
+        verify(provider, times(2)).sendResetAction(eq(realm), eq(user), anyString(), any(ResetActionContext.class));
+        Assert.assertNull(user.getFirstAttribute(ResetActionOutbox.OUTBOX_COMPONENT));
+        Assert.assertNull(user.getAttribute(ResetActionOutbox.OUTBOX_ACTIONS));
+    }
+
+    @Test
+    public void testRetryThenAbandon() {
+        when(provider.sendResetAction(eq(realm), eq(user), eq("UPDATE_PASSWORD"), any(ResetActionContext.class))).thenReturn(true);
+        when(provider.sendResetAction(eq(realm), eq(user), eq("VERIFY_EMAIL"), any(ResetActionContext.class))).thenReturn(false);
+        RestUserFederationConfig config = config("0", "2");
+
+        outbox.send(sessionFactory, TestModels.REALM_ID, component, config);
+        // Only the failed action is kept
+        Assert.assertEquals(Collections.singletonList("VERIFY_EMAIL"), user.getAttribute(ResetActionOutbox.OUTBOX_ACTIONS));
+        Assert.assertEquals("1", user.getFirstAttribute(ResetActionOutbox.OUTBOX_ATTEMPTS));
+
+        outbox.send(sessionFactory, TestModels.REALM_ID, component, config);
+        Assert.assertNull(user.getFirstAttribute(ResetActionOutbox.OUTBOX_COMPONENT));
+
+        outbox.send(sessionFactory, TestModels.REALM_ID, component, config);
+        verify(provider, times(1)).sendResetAction(eq(realm), eq(user), eq("UPDATE_PASSWORD"), any(ResetActionContext.class));
+        verify(provider, times(2)).sendResetAction(eq(realm), eq(user), eq("VERIFY_EMAIL"), any(ResetActionContext.class));
+    }
+
+    @Test
+    public void testAttemptsCountedBeforeSending() {
+        // Outcome of a previous attempt lost after its emails were sent
+        user.setSingleAttribute(ResetActionOutbox.OUTBOX_ATTEMPTS, "3");
+
+        outbox.send(sessionFactory, TestModels.REALM_ID, component, config("0", "3"));
+
+        verify(provider, never()).sendResetAction(any(RealmModel.class), any(UserModel.class), anyString(), any(ResetActionContext.class));
+        Assert.assertNull(user.getFirstAttribute(ResetActionOutbox.OUTBOX_COMPONENT));
+    }
+
+    @Test
+    public void testNoEmail() {
+        when(user.getEmail()).thenReturn(null);
+
+        outbox.send(sessionFactory, TestModels.REALM_ID, component, config("0", "3"));
+
+        verify(provider, never()).sendResetAction(any(RealmModel.class), any(UserModel.class), anyString(), any(ResetActionContext.class));
+        Assert.assertNull(user.getFirstAttribute(ResetActionOutbox.OUTBOX_COMPONENT));
+    }
+
+    @Test
+    public void testRateLimit() {
+        ResetActionOutbox.enqueue(user, TestModels.COMPONENT_ID, Arrays.asList("A", "B", "C", "D"));
+        when(provider.sendResetAction(eq(realm), eq(user), anyString(), any(ResetActionContext.class))).thenReturn(true);
+
+        long start = System.nanoTime();
+        outbox.send(sessionFactory, TestModels.REALM_ID, component, config("10", "3"));
+
+        // First email at once, then one every 100 ms
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(290));
+        verify(provider, times(4)).sendResetAction(eq(realm), eq(user), anyString(), any(ResetActionContext.class));
+    }
+}
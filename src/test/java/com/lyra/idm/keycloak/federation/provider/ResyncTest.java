@@ -0,0 +1,87 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.api.user.UserMapper;
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Targeted synchronization of some users.
+ */
+public class ResyncTest {
+
+    private final UserMapper repository = mock(UserMapper.class);
+    private final List<String> imported = new ArrayList<>();
+    private final RestUserFederationProviderFactory factory = new RestUserFederationProviderFactory() {
+        @Override
+        protected UserMapper repository(RestUserFederationConfig config) {
+            return repository;
+        }
+
+        @Override
+        protected SyncOutcome importUser(UserDto restUser, KeycloakSessionFactory sessionFactory, String realmId, ComponentModel fedModel,
+                                         RestUserFederationConfig config, SynchronizationResult syncResult) {
+            imported.add(restUser.getUserName());
+            return "new".equals(restUser.getUserName()) ? SyncOutcome.ADDED : SyncOutcome.UPDATED;
+        }
+    };
+    private final KeycloakSessionFactory sessionFactory = TestModels.sessionFactory(TestModels.session(TestModels.realm(), mock(UserProvider.class)));
+
+    private static UserDto user(String userName) {
+        UserDto result = new UserDto();
+        result.setUserName(userName);
+        result.setEmail(userName + "@test.com");
+        return result;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testResync() throws IOException {
+        when(repository.getUsers(anyCollection())).thenReturn(new HashSet<>(Arrays.asList(user("new"), user("known"))));
+
+        List<ResyncResult> result = factory.resync(sessionFactory, TestModels.REALM_ID, TestModels.component(),
+                Arrays.asList(" Known", "new", "unknown", "known", null));
+
+        Assert.assertEquals(3, result.size());
+        Assert.assertEquals("known", result.get(0).getUserName());
+        Assert.assertEquals(SyncOutcome.UPDATED.name(), result.get(0).getStatus());
+        Assert.assertEquals(SyncOutcome.ADDED.name(), result.get(1).getStatus());
+        Assert.assertEquals(ResyncResult.NOT_FOUND, result.get(2).getStatus());
+        Assert.assertEquals(Arrays.asList("known", "new"), imported);
+        // Normalized and deduplicated names requested at once
+        ArgumentCaptor<Collection> names = ArgumentCaptor.forClass(Collection.class);
+        verify(repository).getUsers(names.capture());
+        Assert.assertEquals(Arrays.asList("known", "new", "unknown"), new ArrayList<>(names.getValue()));
+    }
+
+    @Test
+    public void testDryRun() throws IOException {
+        List<ResyncResult> result = factory.resync(sessionFactory, TestModels.REALM_ID,
+                TestModels.component(RestUserFederationProviderFactory.DRY_RUN, "true"), Arrays.asList("user1", "user2"));
+
+        Assert.assertEquals(2, result.size());
+        Assert.assertTrue(result.stream().allMatch(r -> SyncOutcome.SKIPPED.name().equals(r.getStatus())));
+        verifyZeroInteractions(repository);
+    }
+
+    @Test(expected = IOException.class)
+    public void testUpstreamUnavailable() throws IOException {
+        when(repository.getUsers(anyCollection())).thenThrow(new IOException("unavailable"));
+
+        factory.resync(sessionFactory, TestModels.REALM_ID, TestModels.component(), Arrays.asList("user1", "user2"));
+    }
+}
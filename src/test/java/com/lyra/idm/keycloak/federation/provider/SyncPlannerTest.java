@@ -0,0 +1,101 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.UserStorageProvider;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Dry-run plan computed against mocked local users.
+ */
+public class SyncPlannerTest {
+
+    private static UserDto remote(String userName, String email, String firstName) {
+        UserDto result = new UserDto();
+        result.setUserName(userName);
+        result.setEmail(email);
+        result.setFirstName(firstName);
+        return result;
+    }
+
+    private static UserModel local(String userName, String federationLink, String firstName) {
+        UserModel result = TestModels.user("id-" + userName, userName, userName + "@test.com");
+        when(result.getFederationLink()).thenReturn(federationLink);
+        when(result.getFirstName()).thenReturn(firstName);
+        return result;
+    }
+
+    private static UserDto tombstone(String userName) {
+        UserDto result = remote(userName, null, null);
+        result.setDeleted(true);
+        return result;
+    }
+
+    private static SyncPlan plan(List<UserDto> remoteUsers, ComponentModel component, UserModel... localUsers) {
+        RealmModel realm = TestModels.realm();
+        UserProvider users = mock(UserProvider.class);
+        for (UserModel localUser : localUsers) {
+            String userName = localUser.getUsername();
+            when(users.getUserByUsername(userName, realm)).thenReturn(localUser);
+        }
+        KeycloakSession session = TestModels.session(realm, users);
+        when(session.getProvider(UserStorageProvider.class, component)).thenReturn(mock(RestUserFederationProvider.class));
+        SyncPlan result = new SyncPlanner().plan(remoteUsers, TestModels.sessionFactory(session), TestModels.REALM_ID, component,
+                RestUserFederationConfig.of(component), new OperationCosts(), 1000);
+        // Nothing written
+        verify(session.getTransactionManager(), atLeastOnce()).setRollbackOnly();
+        return result;
+    }
+
+    @Test
+    public void testPlan() {
+        UserModel gone = local("gone", TestModels.COMPONENT_ID, "first");
+        when(gone.isEnabled()).thenReturn(true);
+
+        SyncPlan plan = plan(Arrays.asList(remote("new", "new@test.com", "first"), remote("same", "same@test.com", "first"),
+                remote("changed", "changed@test.com", "new"), remote("other", "other@test.com", "first"), remote("noemail", null, "first"),
+                tombstone("gone"), tombstone("unknown")), TestModels.component(),
+                local("same", TestModels.COMPONENT_ID, "first"), local("changed", TestModels.COMPONENT_ID, "old"),
+                local("other", "another-component", "first"), gone);
+
+        Assert.assertEquals(1, plan.get(SyncOutcome.ADDED));
+        // Tombstone disables the local user
+        Assert.assertEquals(3, plan.get(SyncOutcome.UPDATED));
+        Assert.assertEquals(1, plan.getUnchanged());
+        Assert.assertEquals(0, plan.get(SyncOutcome.REMOVED));
+        Assert.assertEquals(1, plan.get(SyncOutcome.SKIPPED));
+        Assert.assertEquals(1, plan.get(SyncOutcome.FAILED));
+        Assert.assertEquals(1, plan.getConflicts());
+        Assert.assertTrue(plan.getSampleConflicts().get(0).startsWith("other"));
+        // Default costs: 50 + 3 * 20 + 2 + 2 * 5 ms
+        Assert.assertEquals(1000 + 122, plan.getProjectedMillis());
+    }
+
+    @Test
+    public void testTombstones() {
+        UserModel enabled = local("enabled", TestModels.COMPONENT_ID, "first");
+        when(enabled.isEnabled()).thenReturn(true);
+        UserModel disabled = local("disabled", TestModels.COMPONENT_ID, "first");
+        UserModel other = local("other", "another-component", "first");
+        List<UserDto> tombstones = Arrays.asList(tombstone("enabled"), tombstone("disabled"), tombstone("other"));
+
+        SyncPlan disable = plan(tombstones, TestModels.component(), enabled, disabled, other);
+        SyncPlan remove = plan(tombstones, TestModels.component(RestUserFederationProviderFactory.TOMBSTONE_ACTION, "REMOVE"),
+                enabled, disabled, other);
+
+        Assert.assertEquals(1, disable.get(SyncOutcome.UPDATED));
+        Assert.assertEquals(2, disable.get(SyncOutcome.SKIPPED));
+        Assert.assertEquals(2, remove.get(SyncOutcome.REMOVED));
+        Assert.assertEquals(1, remove.get(SyncOutcome.SKIPPED));
+    }
+}
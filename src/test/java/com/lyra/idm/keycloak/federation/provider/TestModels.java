@@ -0,0 +1,111 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Keycloak models mocked for provider tests: components, sessions and users with in memory attributes.
+ */
+final class TestModels {
+
+    static final String COMPONENT_ID = "component1";
+    static final String REALM_ID = "realm1";
+
+    private TestModels() {
+    }
+
+    /**
+     * @param properties property names and values
+     * @return federation component
+     */
+    static ComponentModel component(String... properties) {
+        ComponentModel model = new ComponentModel();
+        model.setId(COMPONENT_ID);
+        model.setName("test");
+        model.setParentId(REALM_ID);
+        model.setConfig(new MultivaluedHashMap<>());
+        for (int i = 0; i < properties.length; i += 2) {
+            model.getConfig().putSingle(properties[i], properties[i + 1]);
+        }
+        return model;
+    }
+
+    static RestUserFederationConfig config(String... properties) {
+        return RestUserFederationConfig.of(component(properties));
+    }
+
+    /**
+     * Session with a realm and a local user storage, transactions do nothing
+     */
+    static KeycloakSession session(RealmModel realm, UserProvider local) {
+        KeycloakSession session = mock(KeycloakSession.class);
+        RealmProvider realms = mock(RealmProvider.class);
+        when(realms.getRealm(anyString())).thenReturn(realm);
+        when(session.realms()).thenReturn(realms);
+        when(session.userLocalStorage()).thenReturn(local);
+        when(session.userStorageManager()).thenReturn(local);
+        when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        return session;
+    }
+
+    static KeycloakSessionFactory sessionFactory(KeycloakSession session) {
+        KeycloakSessionFactory factory = mock(KeycloakSessionFactory.class);
+        when(factory.create()).thenReturn(session);
+        return factory;
+    }
+
+    /**
+     * Realm with attributes kept in memory
+     */
+    static RealmModel realm() {
+        RealmModel realm = mock(RealmModel.class);
+        Map<String, String> attributes = new HashMap<>();
+        when(realm.getId()).thenReturn(REALM_ID);
+        when(realm.getName()).thenReturn(REALM_ID);
+        when(realm.getAttributes()).thenReturn(attributes);
+        when(realm.getAttribute(anyString())).thenAnswer(i -> attributes.get((String) i.getArguments()[0]));
+        doAnswer(i -> attributes.put((String) i.getArguments()[0], (String) i.getArguments()[1]))
+                .when(realm).setAttribute(anyString(), anyString());
+        doAnswer(i -> attributes.remove((String) i.getArguments()[0])).when(realm).removeAttribute(anyString());
+        return realm;
+    }
+
+    /**
+     * User with attributes kept in memory
+     */
+    @SuppressWarnings("unchecked")
+    static UserModel user(String id, String userName, String email) {
+        UserModel user = mock(UserModel.class);
+        Map<String, List<String>> attributes = new HashMap<>();
+        when(user.getId()).thenReturn(id);
+        when(user.getUsername()).thenReturn(userName);
+        when(user.getEmail()).thenReturn(email);
+        when(user.getAttributes()).thenReturn(attributes);
+        when(user.getAttribute(anyString())).thenAnswer(i -> attributes.get((String) i.getArguments()[0]));
+        when(user.getFirstAttribute(anyString())).thenAnswer(i -> {
+            List<String> values = attributes.get((String) i.getArguments()[0]);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        });
+        doAnswer(i -> attributes.put((String) i.getArguments()[0], new ArrayList<>((List<String>) i.getArguments()[1])))
+                .when(user).setAttribute(anyString(), anyList());
+        doAnswer(i -> attributes.put((String) i.getArguments()[0], Collections.singletonList((String) i.getArguments()[1])))
+                .when(user).setSingleAttribute(anyString(), anyString());
+        doAnswer(i -> attributes.remove((String) i.getArguments()[0])).when(user).removeAttribute(anyString());
+        return user;
+    }
+}
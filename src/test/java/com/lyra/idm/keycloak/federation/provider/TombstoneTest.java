@@ -0,0 +1,145 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Users deleted upstream: removal outcomes and precedence over live records.
+ */
+public class TombstoneTest {
+
+    private final RestUserFederationProviderFactory factory = new RestUserFederationProviderFactory();
+    private final RealmModel realm = TestModels.realm();
+    private final UserProvider users = mock(UserProvider.class);
+    private final RestUserFederationProvider provider = mock(RestUserFederationProvider.class);
+    private KeycloakSessionFactory sessionFactory;
+
+    private static UserDto remote(String userName, boolean deleted, Long lastModified) {
+        UserDto result = new UserDto();
+        result.setUserName(userName);
+        result.setEmail(deleted ? null : userName + "@test.com");
+        result.setDeleted(deleted);
+        result.setLastModified(lastModified);
+        return result;
+    }
+
+    private UserModel local(String userName, String federationLink, boolean enabled) {
+        UserModel result = TestModels.user("id-" + userName, userName, userName + "@test.com");
+        when(result.getFederationLink()).thenReturn(federationLink);
+        when(result.isEnabled()).thenReturn(enabled);
+        when(users.getUserByUsername(userName, realm)).thenReturn(result);
+        return result;
+    }
+
+    @Before
+    public void setUp() {
+        KeycloakSession session = TestModels.session(realm, users);
+        when(session.users()).thenReturn(users);
+        when(session.userCache()).thenReturn(mock(UserCache.class));
+        when(session.getProvider(eq(UserStorageProvider.class), any(ComponentModel.class))).thenReturn(provider);
+        sessionFactory = TestModels.sessionFactory(session);
+    }
+
+    private SyncOutcome removeUser(String userName, SynchronizationResult result, String... properties) {
+        ComponentModel component = TestModels.component(properties);
+        return factory.removeUser(remote(userName, true, null), sessionFactory, TestModels.REALM_ID, component,
+                RestUserFederationConfig.of(component), result);
+    }
+
+    @Test
+    public void testDisable() {
+        UserModel user = local("user1", TestModels.COMPONENT_ID, true);
+        SynchronizationResult result = new SynchronizationResult();
+
+        Assert.assertEquals(SyncOutcome.UPDATED, removeUser("user1", result));
+
+        verify(user).setEnabled(false);
+        verify(users, never()).removeUser(realm, user);
+        Assert.assertEquals(1, result.getUpdated());
+    }
+
+    @Test
+    public void testRemove() {
+        UserModel user = local("user1", TestModels.COMPONENT_ID, true);
+        SynchronizationResult result = new SynchronizationResult();
+
+        Assert.assertEquals(SyncOutcome.REMOVED, removeUser("user1", result, RestUserFederationProviderFactory.TOMBSTONE_ACTION, "REMOVE"));
+
+        verify(users).removeUser(realm, user);
+        Assert.assertEquals(1, result.getRemoved());
+    }
+
+    @Test
+    public void testSkipped() {
+        UserModel disabled = local("disabled", TestModels.COMPONENT_ID, false);
+        UserModel other = local("other", "another-component", true);
+        SynchronizationResult result = new SynchronizationResult();
+
+        Assert.assertEquals(SyncOutcome.SKIPPED, removeUser("disabled", result));
+        Assert.assertEquals(SyncOutcome.SKIPPED, removeUser("other", result));
+        Assert.assertEquals(SyncOutcome.SKIPPED, removeUser("unknown", result));
+
+        verify(disabled, never()).setEnabled(anyBoolean());
+        verify(other, never()).setEnabled(anyBoolean());
+        Assert.assertEquals(0, result.getUpdated());
+        Assert.assertEquals(0, result.getFailed());
+    }
+
+    @Test
+    public void testNoPasswordSync() {
+        local("user1", TestModels.COMPONENT_ID, true);
+        ComponentModel component = TestModels.component(RestUserFederationProviderFactory.PASSWORD_SYNC, "true");
+
+        factory.importUsers(Collections.singletonList(remote("user1", true, null)), sessionFactory, TestModels.REALM_ID, component,
+                RestUserFederationConfig.of(component), new SynchronizationResult());
+
+        // Disabled, password not requested
+        verify(provider, never()).passwordSynchronization(any(RealmModel.class), any(UserModel.class), any(UserDto.class));
+    }
+
+    @Test
+    public void testNewerRecordWins() {
+        UserDto live = remote("user1", false, 1000L);
+        UserDto tombstone = remote("user1", true, 2000L);
+
+        Set<UserDto> result = RestUserFederationProviderFactory.protector(new LinkedHashSet<>(Arrays.asList(live, tombstone)),
+                new SynchronizationResult());
+
+        Assert.assertEquals(Collections.singleton(tombstone), new LinkedHashSet<>(result));
+    }
+
+    @Test
+    public void testLiveRecordWins() {
+        UserDto live = remote("user1", false, null);
+        UserDto tombstone = remote("user1", true, null);
+        SynchronizationResult syncResult = new SynchronizationResult();
+
+        // Same record kept whatever the order
+        for (Set<UserDto> list : Arrays.<Set<UserDto>>asList(new LinkedHashSet<>(Arrays.asList(live, tombstone)),
+                new LinkedHashSet<>(Arrays.asList(tombstone, live)))) {
+            Set<UserDto> result = RestUserFederationProviderFactory.protector(list, syncResult);
+
+            Assert.assertEquals(1, result.size());
+            Assert.assertSame(live, result.iterator().next());
+        }
+        Assert.assertEquals(2, syncResult.getFailed());
+    }
+}
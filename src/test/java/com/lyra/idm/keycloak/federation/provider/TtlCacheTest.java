@@ -0,0 +1,41 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded TTL cache tests.
+ */
+public class TtlCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void testExpiration() {
+        TtlCache<String, Boolean> cache = new TtlCache<>(10, TimeUnit.SECONDS, 100, now::get);
+        cache.put("user1", Boolean.TRUE);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(9));
+        Assert.assertEquals(Boolean.TRUE, cache.get("user1"));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        Assert.assertNull(cache.get("user1"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        TtlCache<String, Boolean> cache = new TtlCache<>(10, TimeUnit.SECONDS, 2, now::get);
+        cache.put("user1", Boolean.TRUE);
+        cache.put("user2", Boolean.TRUE);
+        cache.get("user1");
+        cache.put("user3", Boolean.TRUE);
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNotNull(cache.get("user1"));
+        Assert.assertNull(cache.get("user2"));
+        Assert.assertNotNull(cache.get("user3"));
+    }
+}
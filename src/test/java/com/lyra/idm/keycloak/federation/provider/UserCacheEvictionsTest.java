@@ -0,0 +1,88 @@
+package com.lyra.idm.keycloak.federation.provider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.cache.UserCache;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * User cache evictions by user or for the whole realm, measured against the realm users.
+ */
+public class UserCacheEvictionsTest {
+
+    private final RealmModel realm = TestModels.realm();
+    private final UserProvider users = mock(UserProvider.class);
+    private final UserCache userCache = mock(UserCache.class);
+    private KeycloakSession session;
+
+    @Before
+    public void setUp() {
+        session = TestModels.session(realm, users);
+        when(session.userCache()).thenReturn(userCache);
+        when(users.getUsersCount(realm)).thenReturn(10);
+        when(users.getUserByUsername(anyString(), eq(realm))).thenAnswer(i -> TestModels.user("id", (String) i.getArguments()[0], null));
+    }
+
+    private UserCacheEvictions evictions(int batchSize, int clearPercent) {
+        return new UserCacheEvictions(TestModels.sessionFactory(session), TestModels.REALM_ID, batchSize, clearPercent);
+    }
+
+    @Test
+    public void testUsers() {
+        UserCacheEvictions evictions = evictions(3, 50);
+        for (int i = 0; i < 4; i++) {
+            evictions.add("user" + i);
+        }
+        verify(userCache, times(3)).evict(eq(realm), any(UserModel.class));
+
+        evictions.flush();
+
+        verify(userCache, times(4)).evict(eq(realm), any(UserModel.class));
+        verify(userCache, never()).evict(realm);
+    }
+
+    @Test
+    public void testRealmEvictedOnce() {
+        UserCacheEvictions evictions = evictions(1, 50);
+        for (int i = 0; i < 8; i++) {
+            evictions.add("user" + i);
+        }
+        verify(userCache, never()).evict(realm);
+
+        evictions.flush();
+        evictions.flush();
+
+        // 4 users evicted before reaching half of the realm users
+        verify(userCache, times(4)).evict(eq(realm), any(UserModel.class));
+        verify(userCache, times(1)).evict(realm);
+    }
+
+    @Test
+    public void testRatioOfRealm() {
+        // Every synchronized user changed but few users of the realm
+        when(users.getUsersCount(realm)).thenReturn(1000);
+        UserCacheEvictions evictions = evictions(100, 50);
+        evictions.add("user1");
+        evictions.flush();
+
+        verify(userCache, times(1)).evict(eq(realm), any(UserModel.class));
+        verify(userCache, never()).evict(realm);
+    }
+
+    @Test
+    public void testNeverRealm() {
+        UserCacheEvictions evictions = evictions(100, 0);
+        for (int i = 0; i < 10; i++) {
+            evictions.add("user" + i);
+        }
+        evictions.flush();
+
+        verify(userCache, never()).evict(realm);
+        verify(users, never()).getUsersCount(realm);
+    }
+}
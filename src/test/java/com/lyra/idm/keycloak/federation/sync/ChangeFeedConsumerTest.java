@@ -0,0 +1,70 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Change feed consumer tests.
+ */
+public class ChangeFeedConsumerTest {
+
+    private final List<String> requested = new CopyOnWriteArrayList<>();
+    private final List<String> applied = new CopyOnWriteArrayList<>();
+    private final List<String> saved = new CopyOnWriteArrayList<>();
+
+    private static UserDto user(String name) {
+        UserDto result = new UserDto();
+        result.setUserName(name);
+        return result;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < end) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        Assert.assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void testResume() throws InterruptedException {
+        ChangeFeedConsumer consumer = new ChangeFeedConsumer("id", "test", 1, (eventId, listener) -> {
+            requested.add(String.valueOf(eventId));
+            if ("5".equals(eventId)) {
+                listener.onChanges("6", Collections.singletonList(user("user6")));
+                listener.onChanges("7", Collections.singletonList(user("user7")));
+            }
+        }, users -> users.forEach(u -> applied.add(u.getUserName())), () -> Optional.of("5"), saved::add, null);
+        consumer.start();
+        await(() -> requested.size() >= 2);
+        consumer.stop();
+        await(() -> saved.contains("7"));
+        Assert.assertEquals("5", requested.get(0));
+        Assert.assertEquals("7", requested.get(1));
+        Assert.assertEquals(2, applied.size());
+        Assert.assertEquals("user6", applied.get(0));
+    }
+
+    @Test
+    public void testFailures() throws InterruptedException {
+        ChangeFeedConsumer consumer = new ChangeFeedConsumer("id", "test", 1, (eventId, listener) -> {
+            throw new IOException("feed down");
+        }, users -> {
+        }, Optional::empty, saved::add, null);
+        consumer.start();
+        await(() -> consumer.getFailures() >= 1);
+        Assert.assertTrue(consumer.isHealthy());
+        consumer.stop();
+        Assert.assertFalse(consumer.isHealthy());
+        Assert.assertTrue(saved.isEmpty());
+    }
+}
@@ -0,0 +1,134 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import com.lyra.idm.keycloak.federation.api.user.UserRepository;
+import com.xebialabs.restito.server.StubServer;
+import org.glassfish.grizzly.http.util.HttpStatus;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.xebialabs.restito.builder.stub.StubHttp.whenHttp;
+import static com.xebialabs.restito.semantics.Action.*;
+import static com.xebialabs.restito.semantics.Condition.startsWithUri;
+import static java.lang.String.format;
+
+/**
+ * Partitioned synchronization with several nodes in the same JVM against a stub upstream.
+ */
+public class PartitionedSyncTest {
+
+    private static final int TOTAL_PAGES = 7;
+    private static final int USERS_BY_PAGE = 2;
+
+    private static StubServer server;
+
+    @BeforeClass
+    public static void setUp() {
+        server = new StubServer().run();
+        whenHttp(server).
+                match(startsWithUri("/full")).
+                then(
+                        status(HttpStatus.OK_200),
+                        header("X-Page", "1"),
+                        header("X-Total-Pages", String.valueOf(TOTAL_PAGES)),
+                        header("X-Per-Page", "200"),
+                        contentType("application/json"),
+                        resourceContent("com.lyra.idm.keycloak.federation.api/users.json")
+                );
+    }
+
+    @AfterClass
+    public static void stop() {
+        server.stop();
+    }
+
+    /**
+     * Nodes connected in memory, claims are locks released after work like cluster locks
+     */
+    private static class InMemoryTransport implements PartitionTransport {
+        private final List<PartitionedSync> nodes = new CopyOnWriteArrayList<>();
+        private final Map<String, Boolean> locks = new ConcurrentHashMap<>();
+
+        @Override
+        public void register(PartitionedSync node) {
+            nodes.add(node);
+        }
+
+        @Override
+        public void publish(PartitionPlan plan) {
+            nodes.forEach(n -> n.onPlan(plan));
+        }
+
+        @Override
+        public void report(PartitionResult result) {
+            nodes.forEach(n -> n.onResult(result));
+        }
+
+        @Override
+        public <T> Optional<T> claim(String key, int timeoutSeconds, Callable<T> work) throws Exception {
+            if (locks.putIfAbsent(key, Boolean.TRUE) != null) {
+                return Optional.empty();
+            }
+            try {
+                return Optional.ofNullable(work.call());
+            } finally {
+                locks.remove(key);
+            }
+        }
+    }
+
+    @Test
+    public void testPartitionedSync() throws Exception {
+        UserRepository repository = new UserRepository(format("http://localhost:%d", server.getPort()), false);
+        InMemoryTransport transport = new InMemoryTransport();
+        Map<String, AtomicInteger> pagesByNode = new ConcurrentHashMap<>();
+        List<ExecutorService> executors = new ArrayList<>();
+
+        List<PartitionedSync> nodes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final String node = "node" + i;
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            executors.add(executor);
+            nodes.add(new PartitionedSync(node, transport, (plan, firstPage, lastPage) -> {
+                SynchronizationResult result = new SynchronizationResult();
+                for (int page = firstPage; page <= lastPage; page++) {
+                    try {
+                        result.setAdded(result.getAdded() + repository.getUsersPage(page).getUsers().size());
+                        pagesByNode.computeIfAbsent(node, k -> new AtomicInteger()).incrementAndGet();
+                    } catch (IOException e) {
+                        result.increaseFailed();
+                    }
+                }
+                return result;
+            }, executor, 60));
+        }
+
+        int totalPages = repository.getUsersPage(1).getTotalPages();
+        Assert.assertEquals(TOTAL_PAGES, totalPages);
+
+        PartitionPlan plan = new PartitionPlan("run1", "realm", "component", totalPages, 2);
+        SynchronizationResult result = nodes.get(0).coordinate(plan, 30, TimeUnit.SECONDS);
+
+        Assert.assertEquals(4, plan.getPartitions());
+        Assert.assertEquals(TOTAL_PAGES * USERS_BY_PAGE, result.getAdded());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertTrue("every page imported", pagesByNode.values().stream().mapToInt(AtomicInteger::get).sum() >= TOTAL_PAGES);
+
+        executors.forEach(ExecutorService::shutdownNow);
+    }
+}
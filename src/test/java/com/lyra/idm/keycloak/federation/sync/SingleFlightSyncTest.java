@@ -0,0 +1,190 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-flight synchronization policies.
+ */
+public class SingleFlightSyncTest {
+
+    private final SingleFlightSync singleFlight = new SingleFlightSync();
+    private final List<String> runs = new CopyOnWriteArrayList<>();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private SynchronizationResult task(Optional<Date> date) {
+        runs.add(date.map(d -> "updated " + d.getTime()).orElse("full"));
+        if (runs.size() == 1) {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return SynchronizationResult.empty();
+    }
+
+    /**
+     * Task recording the dates of skipped updated triggers
+     */
+    private final SingleFlightSync.SyncTask recording = new SingleFlightSync.SyncTask() {
+        @Override
+        public SynchronizationResult run(Optional<Date> date) {
+            return task(date);
+        }
+
+        @Override
+        public void skipped(Date since) {
+            runs.add("skipped " + since.getTime());
+        }
+    };
+
+    private Future<SynchronizationResult> start(Optional<Date> date) throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<SynchronizationResult> result = executor.submit(() -> singleFlight.execute("c1", "test", date, this::task));
+        executor.shutdown();
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        return result;
+    }
+
+    @Test
+    public void testFullRunningSkipsTriggers() throws Exception {
+        Future<SynchronizationResult> running = start(Optional.empty());
+
+        Assert.assertTrue(singleFlight.execute("c1", "test", Optional.of(new Date(1)), this::task).isIgnored());
+        Assert.assertTrue(singleFlight.execute("c1", "test", Optional.empty(), this::task).isIgnored());
+        release.countDown();
+        running.get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(1, runs.size());
+        Assert.assertFalse(singleFlight.isRunning("c1"));
+    }
+
+    @Test
+    public void testUpdatedTriggersCoalesce() throws Exception {
+        Future<SynchronizationResult> running = start(Optional.of(new Date(1)));
+
+        singleFlight.execute("c1", "test", Optional.of(new Date(30)), this::task);
+        singleFlight.execute("c1", "test", Optional.of(new Date(20)), this::task);
+        release.countDown();
+        running.get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(2, runs.size());
+        Assert.assertEquals("updated 20", runs.get(1));
+    }
+
+    @Test
+    public void testFullSupersedesQueuedUpdated() throws Exception {
+        Future<SynchronizationResult> running = start(Optional.of(new Date(1)));
+
+        singleFlight.execute("c1", "test", Optional.of(new Date(30)), this::task);
+        singleFlight.execute("c1", "test", Optional.empty(), this::task);
+        singleFlight.execute("c1", "test", Optional.of(new Date(40)), this::task);
+        release.countDown();
+        running.get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(2, runs.size());
+        Assert.assertEquals("full", runs.get(1));
+    }
+
+    @Test
+    public void testChangesWaitForRunningSync() throws Exception {
+        Future<SynchronizationResult> running = start(Optional.empty());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> changes = executor.submit(() -> singleFlight.executeChanges("c1", "test", () -> runs.add("changes")));
+        executor.shutdown();
+
+        TimeUnit.MILLISECONDS.sleep(100);
+        Assert.assertFalse(changes.isDone());
+        release.countDown();
+        running.get(10, TimeUnit.SECONDS);
+
+        Assert.assertTrue(changes.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("full", "changes"), runs);
+        Assert.assertFalse(singleFlight.isRunning("c1"));
+    }
+
+    @Test
+    public void testTriggerWaitsForChanges() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> changes = executor.submit(() -> singleFlight.executeChanges("c1", "test", () -> {
+            started.countDown();
+            try {
+                return release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }));
+        executor.shutdown();
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        ExecutorService trigger = Executors.newSingleThreadExecutor();
+        Future<SynchronizationResult> updated = trigger.submit(() -> singleFlight.execute("c1", "test", Optional.of(new Date(1)), this::task));
+        trigger.shutdown();
+
+        TimeUnit.MILLISECONDS.sleep(100);
+        Assert.assertFalse(updated.isDone());
+        release.countDown();
+
+        // Not skipped: run once changes are applied
+        Assert.assertFalse(updated.get(10, TimeUnit.SECONDS).isIgnored());
+        Assert.assertTrue(changes.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.singletonList("updated 1"), runs);
+    }
+
+    @Test
+    public void testSkippedUpdatedHandedBack() throws Exception {
+        Future<SynchronizationResult> running = start(Optional.of(new Date(1)));
+
+        singleFlight.execute("c1", "test", Optional.of(new Date(30)), recording);
+        singleFlight.execute("c1", "test", Optional.empty(), recording);
+        singleFlight.execute("c1", "test", Optional.of(new Date(40)), recording);
+        release.countDown();
+        running.get(10, TimeUnit.SECONDS);
+        Assert.assertFalse(singleFlight.execute("c1", "test", Optional.of(new Date(50)), recording).isIgnored());
+
+        // Superseded by the queued full synchronization: not handed back, skipped: handed back
+        Assert.assertEquals(Arrays.asList("updated 1", "skipped 40", "full", "updated 50"), runs);
+    }
+
+    @Test
+    public void testInterruptedTriggerHandedBack() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> changes = executor.submit(() -> singleFlight.executeChanges("c1", "test", () -> {
+            started.countDown();
+            try {
+                return release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }));
+        executor.shutdown();
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        ExecutorService trigger = Executors.newSingleThreadExecutor();
+        Future<SynchronizationResult> updated = trigger.submit(() -> singleFlight.execute("c1", "test", Optional.of(new Date(1)), recording));
+
+        TimeUnit.MILLISECONDS.sleep(100);
+        trigger.shutdownNow();
+
+        Assert.assertTrue(updated.get(10, TimeUnit.SECONDS).isIgnored());
+        Assert.assertEquals(Collections.singletonList("skipped 1"), runs);
+        release.countDown();
+        Assert.assertTrue(changes.get(10, TimeUnit.SECONDS));
+    }
+}
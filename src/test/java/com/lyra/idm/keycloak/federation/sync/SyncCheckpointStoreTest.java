@@ -0,0 +1,109 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Checkpoint failed users split in realm attribute values.
+ */
+public class SyncCheckpointStoreTest {
+
+    private final Map<String, String> attributes = new HashMap<>();
+    private final RealmModel realm = mock(RealmModel.class);
+    private final KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+
+    {
+        when(realm.getAttribute(anyString())).thenAnswer(i -> attributes.get((String) i.getArguments()[0]));
+        doAnswer(i -> attributes.put((String) i.getArguments()[0], (String) i.getArguments()[1]))
+                .when(realm).setAttribute(anyString(), anyString());
+        doAnswer(i -> attributes.remove((String) i.getArguments()[0])).when(realm).removeAttribute(anyString());
+        KeycloakSession session = mock(KeycloakSession.class);
+        RealmProvider realms = mock(RealmProvider.class);
+        when(realms.getRealm("realm1")).thenReturn(realm);
+        when(session.realms()).thenReturn(realms);
+        when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        when(sessionFactory.create()).thenReturn(session);
+    }
+
+    @Test
+    public void testChunks() {
+        List<String> chunks = SyncCheckpointStore.chunks(Arrays.asList("user1", "user2", "user3", "bad,name", "user4"), 11);
+
+        Assert.assertEquals(Arrays.asList("user1,user2", "user3,user4"), chunks);
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertTrue(SyncCheckpointStore.chunks(Collections.emptyList(), 255).isEmpty());
+    }
+
+    @Test
+    public void testSaveLoad() {
+        SyncCheckpoint checkpoint = SyncCheckpoint.start(SyncMode.UPDATED, "2020-01-01");
+        checkpoint.setLastPage(2);
+        checkpoint.setTotalPages(5);
+        checkpoint.addFailedUser("user1");
+        SyncCheckpointStore.save(sessionFactory, "realm1", "component1", checkpoint);
+
+        SyncCheckpoint loaded = SyncCheckpointStore.load(sessionFactory, "realm1", "component1", SyncMode.UPDATED).get();
+
+        Assert.assertEquals(checkpoint.getRunId(), loaded.getRunId());
+        Assert.assertEquals("2020-01-01", loaded.getSince());
+        Assert.assertEquals(2, loaded.getLastPage());
+        Assert.assertEquals(Collections.singleton("user1"), loaded.getFailedUsers());
+    }
+
+    @Test
+    public void testUnchangedNotWritten() {
+        SyncCheckpoint checkpoint = SyncCheckpoint.start(SyncMode.FULL, null);
+        checkpoint.addFailedUser("user1");
+        SyncCheckpointStore.save(sessionFactory, "realm1", "component1", checkpoint);
+        checkpoint.setLastPage(1);
+        SyncCheckpointStore.save(sessionFactory, "realm1", "component1", checkpoint);
+
+        // Failed users unchanged: written once
+        verify(realm, times(1)).setAttribute(eq(SyncCheckpointStore.PREFIX + "component1_FULL_failed_0"), anyString());
+        verify(realm, times(2)).setAttribute(eq(SyncCheckpointStore.PREFIX + "component1_FULL"), anyString());
+    }
+
+    @Test
+    public void testClear() {
+        SyncCheckpoint checkpoint = SyncCheckpoint.start(SyncMode.FULL, null);
+        checkpoint.addFailedUser("user1");
+        SyncCheckpointStore.save(sessionFactory, "realm1", "component1", checkpoint);
+
+        SyncCheckpointStore.clear(sessionFactory, "realm1", "component1", SyncMode.FULL);
+        SyncCheckpointStore.clear(sessionFactory, "realm1", "component1", SyncMode.FULL);
+
+        Assert.assertTrue(attributes.isEmpty());
+        Assert.assertFalse(SyncCheckpointStore.load(sessionFactory, "realm1", "component1", SyncMode.FULL).isPresent());
+        // Nothing removed without checkpoint
+        verify(realm, times(1)).removeAttribute(SyncCheckpointStore.PREFIX + "component1_FULL");
+    }
+
+    @Test
+    public void testModesKeptApart() {
+        SyncCheckpoint full = SyncCheckpoint.start(SyncMode.FULL, null);
+        full.setLastPage(3);
+        SyncCheckpointStore.save(sessionFactory, "realm1", "component1", full);
+        SyncCheckpointStore.save(sessionFactory, "realm1", "component1", SyncCheckpoint.start(SyncMode.UPDATED, "2020-01-01"));
+
+        SyncCheckpointStore.clear(sessionFactory, "realm1", "component1", SyncMode.UPDATED);
+
+        Assert.assertFalse(SyncCheckpointStore.load(sessionFactory, "realm1", "component1", SyncMode.UPDATED).isPresent());
+        Assert.assertEquals(full.getRunId(), SyncCheckpointStore.load(sessionFactory, "realm1", "component1", SyncMode.FULL).get().getRunId());
+    }
+}
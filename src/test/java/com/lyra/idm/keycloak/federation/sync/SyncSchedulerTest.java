@@ -0,0 +1,160 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Node scheduler of synchronizations.
+ */
+public class SyncSchedulerTest {
+
+    private final AtomicInteger current = new AtomicInteger();
+    private final AtomicInteger max = new AtomicInteger();
+
+    private String task(String componentId) {
+        max.accumulateAndGet(current.incrementAndGet(), Math::max);
+        try {
+            TimeUnit.MILLISECONDS.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        current.decrementAndGet();
+        return componentId;
+    }
+
+    private void runAll(SyncScheduler scheduler, Set<String> hosts) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String componentId = "c" + i;
+            results.add(executor.submit(() -> scheduler.run(componentId, componentId, hosts, () -> task(componentId))));
+        }
+        for (int i = 0; i < 8; i++) {
+            Assert.assertEquals("c" + i, results.get(i).get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testConcurrencyCap() throws Exception {
+        SyncScheduler scheduler = new SyncScheduler(2, 0, 0);
+        runAll(scheduler, Collections.singleton("host1"));
+
+        Assert.assertTrue(max.get() <= 2);
+        Assert.assertEquals(0, scheduler.getRunning());
+        Assert.assertEquals(0, scheduler.getWaiting());
+    }
+
+    @Test
+    public void testHostLimit() throws Exception {
+        runAll(new SyncScheduler(4, 1, 0), Collections.singleton("host1"));
+
+        Assert.assertEquals(1, max.get());
+    }
+
+    @Test
+    public void testLeastRecentlyStartedFirst() throws Exception {
+        SyncScheduler scheduler = new SyncScheduler(1, 0, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        Set<String> hosts = Collections.singleton("host1");
+
+        Future<?> running = executor.submit(() -> scheduler.run("a", "a", hosts, () -> {
+            try {
+                return release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }));
+        awaitRunning(scheduler);
+        Future<?> again = executor.submit(() -> scheduler.run("a", "a", hosts, () -> order.add("a")));
+        awaitWaiting(scheduler, 1);
+        Future<?> other = executor.submit(() -> scheduler.run("b", "b", hosts, () -> order.add("b")));
+        awaitWaiting(scheduler, 2);
+        release.countDown();
+
+        running.get(10, TimeUnit.SECONDS);
+        again.get(10, TimeUnit.SECONDS);
+        other.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+        Assert.assertEquals(Arrays.asList("b", "a"), order);
+    }
+
+    @Test
+    public void testMaxWait() throws Exception {
+        SyncScheduler scheduler = new SyncScheduler(1, 0, 0, 100);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Set<String> hosts = Collections.singleton("host1");
+        Future<?> running = executor.submit(() -> scheduler.run("a", "a", hosts, () -> {
+            try {
+                return release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }));
+        awaitRunning(scheduler);
+
+        try {
+            scheduler.run("b", "b", hosts, () -> "b");
+            Assert.fail("Slot wait expected to time out");
+        } catch (TimeoutException e) {
+            Assert.assertEquals(0, scheduler.getWaiting());
+        } finally {
+            release.countDown();
+        }
+        running.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+        Assert.assertEquals("b", scheduler.run("b", "b", hosts, () -> "b"));
+    }
+
+    @Test
+    public void testSubmitWithJitter() throws Exception {
+        SyncScheduler scheduler = new SyncScheduler(2, 0, 200);
+        CountDownLatch done = new CountDownLatch(4);
+        List<String> threads = new CopyOnWriteArrayList<>();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 4; i++) {
+            String componentId = "c" + i;
+            scheduler.submit(componentId, () -> {
+                threads.add(Thread.currentThread().getName());
+                done.countDown();
+            });
+        }
+        // Submitting thread not blocked by jitter nor by slots
+        Assert.assertTrue(System.currentTimeMillis() - start < 100);
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(threads.stream().allMatch(n -> n.startsWith("rest-federation-sync")));
+        scheduler.shutdown();
+    }
+
+    private static void awaitRunning(SyncScheduler scheduler) throws InterruptedException {
+        for (int i = 0; i < 1000 && scheduler.getRunning() == 0; i++) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private static void awaitWaiting(SyncScheduler scheduler, int waiting) throws InterruptedException {
+        for (int i = 0; i < 1000 && scheduler.getWaiting() < waiting; i++) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.lyra.idm.keycloak.federation.sync;
+
+import com.lyra.idm.keycloak.federation.model.UserDto;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Full export snapshot difference tests.
+ */
+public class UserSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static UserDto user(String userName, String... roles) {
+        return new UserDto("first", "last", userName, userName + "@test.com", true, new LinkedHashSet<>(Arrays.asList(roles)),
+                Collections.singletonMap("attribute", Collections.singletonList("value")), null, null, null, false, null);
+    }
+
+    @Test
+    public void testDigestIgnoresOrder() {
+        Assert.assertEquals(UserSnapshot.digest(user("user1", "role1", "role2")), UserSnapshot.digest(user("user1", "role2", "role1")));
+        Assert.assertNotEquals(UserSnapshot.digest(user("user1", "role1")), UserSnapshot.digest(user("user1", "role1", "role2")));
+    }
+
+    @Test
+    public void testDiff() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("component.snapshot");
+        List<UserDto> previous = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            previous.add(user("user" + i, "role1"));
+        }
+        UserSnapshot.of(previous).write(file, 1, Collections.singleton("user50"));
+
+        List<UserDto> current = new ArrayList<>(previous.subList(0, 90));
+        current.set(10, user("user10", "role2"));
+        current.add(user("new"));
+
+        UserSnapshot snapshot = UserSnapshot.of(current);
+        UserSnapshot.Diff diff = snapshot.diff(file, 1, 0).orElseThrow(IllegalStateException::new);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("new", "user50")), diff.getAdded());
+        Assert.assertEquals(Collections.singleton("user10"), diff.getChanged());
+        Assert.assertEquals(10, diff.getRemoved().size());
+        Assert.assertTrue(diff.getRemoved().contains("user99"));
+    }
+
+    @Test
+    public void testUnusableSnapshot() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("component.snapshot");
+        UserSnapshot snapshot = UserSnapshot.of(Collections.singletonList(user("user1")));
+
+        Assert.assertFalse(snapshot.diff(file, 1, 0).isPresent());
+        snapshot.write(file, 1, Collections.emptySet());
+        Assert.assertFalse(snapshot.diff(file, 2, 0).isPresent());
+        Assert.assertFalse(snapshot.diff(file, 1, 0).get().contains("user1"));
+    }
+}